@@ -0,0 +1,209 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The framing layer alone over a pair of {@link LoopbackTransport} sockets:
+ * an {@link OutboundQueue} drained by a plain writer thread, and a round trip
+ * of raw frames through a {@link FrameDecoder} and an echo thread. No
+ * service is involved, {@link ChatServiceBenchmark} measures that path.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatDataPathBenchmark {
+
+    private static final UUID SERVICE = UUID.fromString("ba9ccfa6-65af-4f35-8ee1-1453c8869a93");
+
+    /**
+     * A connected pair of loopback sockets.
+     */
+    static class Link {
+        ChatServerSocket mServer;
+        ChatSocket mClient;
+        ChatSocket mAccepted;
+
+        void open() throws IOException {
+            LoopbackTransport.Network network = new LoopbackTransport.Network();
+            LoopbackTransport client = new LoopbackTransport(network, "client");
+            LoopbackTransport server = new LoopbackTransport(network, "server");
+            mServer = server.listen("bench", SERVICE, true);
+            mClient = client.createSocket("server", SERVICE, true);
+            mClient.connect();
+            mAccepted = mServer.accept();
+        }
+
+        void close() throws IOException {
+            mClient.close();
+            mAccepted.close();
+            mServer.close();
+        }
+    }
+
+    /**
+     * Sender side queue and writer thread, with a reader thread which decodes
+     * and discards every frame on the receiving end.
+     */
+    @State(Scope.Benchmark)
+    public static class WritePath {
+        @Param({"32", "1024"})
+        public int payloadSize;
+
+        final Link mLink = new Link();
+        OutboundQueue mQueue;
+        byte[] mPayload;
+        private Thread mWriter;
+        private Thread mReader;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mLink.open();
+            mPayload = new byte[payloadSize];
+            mQueue = new OutboundQueue(256, OutboundQueue.OverflowPolicy.BLOCK, 4 * 1024);
+
+            final OutputStream out = mLink.mClient.getOutputStream();
+            mWriter = new Thread("bench-writer") {
+                public void run() {
+                    try {
+                        while (mQueue.drain(out, null)) {
+                            // until closed
+                        }
+                    } catch (Exception e) {
+                        // link torn down
+                    }
+                }
+            };
+            final InputStream in = mLink.mAccepted.getInputStream();
+            final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+                @Override
+                public void onFrame(int type, int flags, byte[] buffer, int offset, int length) {
+                    // discard
+                }
+            });
+            mReader = new Thread("bench-reader") {
+                public void run() {
+                    try {
+                        while (decoder.readFrom(in) >= 0) {
+                            // until closed
+                        }
+                    } catch (IOException e) {
+                        // link torn down
+                    }
+                }
+            };
+            mWriter.start();
+            mReader.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            mQueue.close("Benchmark done");
+            mWriter.join(1000);
+            mLink.close();
+            mReader.join(1000);
+        }
+    }
+
+    /**
+     * An echo thread on the far end which sends every frame straight back.
+     */
+    @State(Scope.Thread)
+    public static class RoundTrip implements FrameDecoder.Listener {
+        @Param({"32", "1024"})
+        public int payloadSize;
+
+        final Link mLink = new Link();
+        byte[] mPayload;
+        byte[] mScratch = new byte[8 * 1024];
+        OutputStream mOut;
+        InputStream mIn;
+        FrameDecoder mDecoder;
+        boolean mEchoed;
+        private Thread mEcho;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mLink.open();
+            mPayload = new byte[payloadSize];
+            mOut = mLink.mClient.getOutputStream();
+            mIn = mLink.mClient.getInputStream();
+            mDecoder = new FrameDecoder(this);
+
+            final InputStream echoIn = mLink.mAccepted.getInputStream();
+            final OutputStream echoOut = mLink.mAccepted.getOutputStream();
+            final byte[] echoScratch = new byte[8 * 1024];
+            final FrameDecoder echo = new FrameDecoder(new FrameDecoder.Listener() {
+                @Override
+                public void onFrame(int type, int flags, byte[] buffer, int offset, int length)
+                        throws IOException {
+                    FrameCodec.write(echoOut, echoScratch, type, flags, buffer, offset, length);
+                }
+            });
+            mEcho = new Thread("bench-echo") {
+                public void run() {
+                    try {
+                        while (echo.readFrom(echoIn) >= 0) {
+                            // until closed
+                        }
+                    } catch (IOException e) {
+                        // link torn down
+                    }
+                }
+            };
+            mEcho.start();
+        }
+
+        @Override
+        public void onFrame(int type, int flags, byte[] buffer, int offset, int length) {
+            mEchoed = true;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            mLink.close();
+            mEcho.join(1000);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public WriteHandle write(WritePath path, Traffic traffic) {
+        traffic.count(1, path.payloadSize);
+        return path.mQueue.offer(FrameCodec.TYPE_DATA, FrameCodec.FLAG_NONE, path.mPayload);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean roundTrip(RoundTrip trip, Traffic traffic) throws IOException {
+        trip.mEchoed = false;
+        FrameCodec.write(trip.mOut, trip.mScratch, FrameCodec.TYPE_DATA, FrameCodec.FLAG_NONE,
+                trip.mPayload, 0, trip.payloadSize);
+        while (!trip.mEchoed) {
+            if (trip.mDecoder.readFrom(trip.mIn) < 0) {
+                throw new IOException("Echo closed");
+            }
+        }
+        traffic.count(1, trip.payloadSize);
+        return trip.mEchoed;
+    }
+}
@@ -0,0 +1,166 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two {@link MyChatService}s connected over a {@link LoopbackTransport}:
+ * MyChatService.write() throughput, and the latency of a message from
+ * write() until the receiving service hands it to its {@link ChatListener}.
+ * Everything in between is measured: channel scheduling, compression,
+ * credits, session acks, metrics and the event bus.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatServiceBenchmark {
+
+    // Time to wait for the services to connect
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+
+    /**
+     * A sender connected to a receiver whose listener releases every message
+     * on the thread which published it, and counts it.
+     */
+    @State(Scope.Benchmark)
+    public static class ServicePair {
+        @Param({"32", "1024"})
+        public int payloadSize;
+
+        @Param({"true", "false"})
+        public boolean compression;
+
+        MyChatService mSender;
+        MyChatService mReceiver;
+        byte[] mPayload;
+        final Semaphore mArrived = new Semaphore(0);
+
+        @Setup(Level.Trial)
+        public void setUp() throws InterruptedException {
+            LoopbackTransport.Network network = new LoopbackTransport.Network();
+            ChatEventBus events = new ChatEventBus();
+            events.subscribe(new Receiver(mArrived), new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    task.run();
+                }
+            });
+            mReceiver = new MyChatService(new LoopbackTransport(network, "receiver"), events);
+            mReceiver.setCompression(compression, 64);
+            mReceiver.start();
+
+            mSender = new MyChatService(new LoopbackTransport(network, "sender"), new ChatEventBus());
+            mSender.setOutboundPolicy(256, OutboundQueue.OverflowPolicy.BLOCK);
+            mSender.setCompression(compression, 64);
+            mSender.coonnect("receiver", true);
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            while (mSender.getState() != MyChatService.STATE_CONNECTED
+                    || mReceiver.getState() != MyChatService.STATE_CONNECTED) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Services did not connect");
+                }
+                Thread.sleep(10);
+            }
+
+            // Text-like bytes, so compression has something to do
+            mPayload = new byte[payloadSize];
+            Random random = new Random(1);
+            for (int i = 0; i < payloadSize; i++) {
+                mPayload[i] = (byte) ('a' + random.nextInt(16));
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void drain() {
+            mArrived.drainPermits();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mSender.stop();
+            mReceiver.stop();
+        }
+    }
+
+    /**
+     * Releases received messages, which returns credit to the sender.
+     */
+    private static class Receiver implements ChatListener {
+        private final Semaphore mArrived;
+
+        Receiver(Semaphore arrived) {
+            mArrived = arrived;
+        }
+
+        @Override
+        public void onMessageRead(int channel, int peerId, PooledBuffer buffer) {
+            buffer.release();
+            mArrived.release();
+        }
+
+        @Override
+        public void onStateChanged(int state, int oldState) {
+        }
+
+        @Override
+        public void onPeerStateChanged(int peerId, int state, String address) {
+        }
+
+        @Override
+        public void onDeviceName(int peerId, String name, String address) {
+        }
+
+        @Override
+        public void onMessageWritten(int channel, byte[] payload) {
+        }
+
+        @Override
+        public void onLinkStats(int peerId, LinkStats stats) {
+        }
+
+        @Override
+        public void onTransferProgress(TransferProgress progress) {
+        }
+
+        @Override
+        public void onNotice(String text) {
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public WriteHandle write(ServicePair pair, Traffic traffic) {
+        traffic.count(1, pair.payloadSize);
+        return pair.mSender.write(pair.mPayload);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void delivery(ServicePair pair, Traffic traffic) throws InterruptedException {
+        WriteHandle handle = pair.mSender.write(pair.mPayload);
+        if (handle.isDone() && !handle.isSuccess()) {
+            // Nothing is coming, waiting would hang the run
+            throw new IllegalStateException("Write failed: " + handle.getFailure());
+        }
+        pair.mArrived.acquire();
+        traffic.count(1, pair.payloadSize);
+    }
+}
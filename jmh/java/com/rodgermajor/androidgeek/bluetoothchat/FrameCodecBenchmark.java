@@ -0,0 +1,85 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning messages into frames and back, without any I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    // Frames per decode() call, a burst as it would come off the socket
+    private static final int BURST = 64;
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    private byte[] mPayload;
+    private byte[] mFrame;
+    private byte[] mStream;
+    private FrameDecoder mDecoder;
+    private int mDecoded;
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+        mFrame = new byte[FrameCodec.HEADER_SIZE + payloadSize];
+
+        mStream = new byte[BURST * mFrame.length];
+        for (int i = 0; i < BURST; i++) {
+            FrameCodec.encode(FrameCodec.TYPE_DATA, FrameCodec.FLAG_NONE, mPayload, 0,
+                    payloadSize, mStream, i * mFrame.length);
+        }
+
+        mDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int type, int flags, byte[] buffer, int offset, int length) {
+                mDecoded += length;
+            }
+        });
+    }
+
+    @Benchmark
+    public int encode(Traffic traffic) {
+        traffic.count(1, payloadSize);
+        return FrameCodec.encode(FrameCodec.TYPE_DATA, FrameCodec.FLAG_NONE, mPayload, 0,
+                payloadSize, mFrame, 0);
+    }
+
+    @Benchmark
+    public int decodeBurst(Traffic traffic) throws IOException {
+        mDecoder.feed(mStream, 0, mStream.length);
+        traffic.count(BURST, (long) BURST * payloadSize);
+        return mDecoded;
+    }
+
+    @Benchmark
+    public int decodeTrickle(Traffic traffic) throws IOException {
+        // Same burst arriving in small reads, so most frames span two of them
+        for (int off = 0; off < mStream.length; off += 100) {
+            mDecoder.feed(mStream, off, Math.min(100, mStream.length - off));
+        }
+        traffic.count(BURST, (long) BURST * payloadSize);
+        return mDecoded;
+    }
+}
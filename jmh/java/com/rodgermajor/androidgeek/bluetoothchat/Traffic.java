@@ -0,0 +1,30 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary counters reported next to the primary score, as messages per
+ * second and bytes per second.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Traffic {
+
+    public long messages;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        messages = 0;
+        bytes = 0;
+    }
+
+    void count(int messageCount, long byteCount) {
+        messages += messageCount;
+        bytes += byteCount;
+    }
+}
@@ -0,0 +1,91 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning text arriving in 1024 byte reads into chars: a new String
+ * per read, which garbles characters split between two reads, against the
+ * streaming decoder and the message codec's own decoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8DecodeBenchmark {
+
+    // Bytes per read, as the old read loop used
+    private static final int CHUNK = 1024;
+
+    // Characters the text is made of
+    private static final String ASCII = "The quick brown fox jumps over the lazy dog. ";
+    private static final String MIXED = "Gr\u00fc\u00dfe, na\u00efve caf\u00e9 \u2615 \u2014 "
+            + "\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8 \ud83d\ude00 ";
+
+    @Param({"ascii", "mixed"})
+    public String text;
+
+    @Param({"64", "16384"})
+    public int textSize;
+
+    private byte[] mBytes;
+    private final StringBuilder mOut = new StringBuilder();
+    private final Utf8StreamDecoder mDecoder = new Utf8StreamDecoder();
+
+    @Setup
+    public void setUp() throws UnsupportedEncodingException {
+        String alphabet = "ascii".equals(text) ? ASCII : MIXED;
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < textSize) {
+            int start = random.nextInt(alphabet.length() - 8);
+            builder.append(alphabet, start, start + 8);
+        }
+        mBytes = builder.toString().getBytes("UTF-8");
+        mOut.ensureCapacity(mBytes.length);
+    }
+
+    @Benchmark
+    public int newStringPerRead(Traffic traffic) {
+        mOut.setLength(0);
+        for (int off = 0; off < mBytes.length; off += CHUNK) {
+            mOut.append(new String(mBytes, off, Math.min(CHUNK, mBytes.length - off)));
+        }
+        traffic.count(1, mBytes.length);
+        return mOut.length();
+    }
+
+    @Benchmark
+    public int streamDecoder(Traffic traffic) {
+        mOut.setLength(0);
+        for (int off = 0; off < mBytes.length; off += CHUNK) {
+            int length = Math.min(CHUNK, mBytes.length - off);
+            mDecoder.decode(mBytes, off, length, off + length == mBytes.length, mOut);
+        }
+        traffic.count(1, mBytes.length);
+        return mOut.length();
+    }
+
+    @Benchmark
+    public int codecWhole(Traffic traffic) {
+        mOut.setLength(0);
+        ChatMessageCodec.decodeUtf8(mBytes, 0, mBytes.length, mOut);
+        traffic.count(1, mBytes.length);
+        return mOut.length();
+    }
+}
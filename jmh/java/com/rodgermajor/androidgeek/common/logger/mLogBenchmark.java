@@ -0,0 +1,103 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of an mLog call as made from the chat service's hot paths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class mLogBenchmark {
+
+    private static final String TAG = "mLogBenchmark";
+
+    private int mCounter;
+
+    /**
+     * Node at the end of the chain which only keeps the last message, so the
+     * call cannot be optimised away while it stays reachable from mLog.
+     */
+    private static class SinkNode implements mLogNode {
+        String mLast;
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            mLast = msg;
+        }
+    }
+
+    /**
+     * Installs a log chain for the duration of a benchmark.
+     */
+    public abstract static class Chain {
+        private mLogNode mPrevious;
+
+        @Setup
+        public void install() {
+            mPrevious = mLog.getLogNode();
+            mLog.setLogNode(create());
+        }
+
+        @TearDown
+        public void restore() {
+            mLog.setLogNode(mPrevious);
+        }
+
+        abstract mLogNode create();
+    }
+
+    @State(Scope.Benchmark)
+    public static class NoChain extends Chain {
+        @Override
+        mLogNode create() {
+            return null;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SinkChain extends Chain {
+        @Override
+        mLogNode create() {
+            return new SinkNode();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FilteredChain extends Chain {
+        @Override
+        mLogNode create() {
+            return new mMessageMLogFilter(new SinkNode());
+        }
+    }
+
+    @Benchmark
+    public void noNode(NoChain chain) {
+        mLog.d(TAG, "frame " + mCounter++);
+    }
+
+    @Benchmark
+    public void sinkNode(SinkChain chain) {
+        mLog.d(TAG, "frame " + mCounter++);
+    }
+
+    @Benchmark
+    public void filteredChain(FilteredChain chain) {
+        mLog.d(TAG, "frame " + mCounter++);
+    }
+}
@@ -0,0 +1,95 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a DEBUG call with the level enabled and disabled, for each way of
+ * passing the message: concatenated by the caller, as a format with its
+ * argument, from a supplier, and behind an isLoggable() guard.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class mLogLevelBenchmark {
+
+    private static final String TAG = "mLogLevelBenchmark";
+
+    @Param({"true", "false"})
+    public boolean enabled;
+
+    private mLogNode mPrevious;
+    private int mPreviousLevel;
+    private int mCounter;
+
+    /**
+     * Node at the end of the chain which only keeps the last message, so the
+     * call cannot be optimised away while it stays reachable from mLog.
+     */
+    private static class SinkNode implements mLogNode {
+        String mLast;
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            mLast = msg;
+        }
+    }
+
+    @Setup
+    public void install() {
+        mPrevious = mLog.getLogNode();
+        mPreviousLevel = mLog.getMinLevel();
+        mLog.setLogNode(new SinkNode());
+        mLog.setMinLevel(enabled ? mLog.DEBUG : mLog.INFO);
+    }
+
+    @TearDown
+    public void restore() {
+        mLog.setLogNode(mPrevious);
+        mLog.setMinLevel(mPreviousLevel);
+    }
+
+    @Benchmark
+    public void concatenated() {
+        mLog.d(TAG, "frame " + mCounter++);
+    }
+
+    @Benchmark
+    public void format() {
+        mLog.d(TAG, "frame %d", mCounter++);
+    }
+
+    @Benchmark
+    public void supplier() {
+        final int counter = mCounter++;
+        mLog.d(TAG, new mLog.Supplier() {
+            @Override
+            public String get() {
+                return "frame " + counter;
+            }
+        });
+    }
+
+    @Benchmark
+    public void guarded() {
+        int counter = mCounter++;
+        if (mLog.isLoggable(TAG, mLog.DEBUG)) {
+            mLog.d(TAG, "frame " + counter);
+        }
+    }
+}
@@ -1,14 +1,11 @@
 package com.rodgermajor.androidgeek.bluetoothchat;
 
-import android.annotation.SuppressLint;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
@@ -19,6 +16,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.util.SparseArray;
 import android.view.inputmethod.EditorInfo;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -29,6 +27,10 @@ import android.widget.Toast;
 
 import com.rodgermajor.androidgeek.common.logger.mLog;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
 import static android.widget.Toast.makeText;
 
 /**
@@ -42,6 +44,9 @@ public class BluetoothChatMain extends Fragment {
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
     private static final int REQUEST_ENABLE_BT = 3;
 
+    // Longest a received message waits for a display frame
+    private static final long INBOUND_MAX_LATENCY_MS = 50;
+
     // Layout Views
     private ListView myConversationView;
     private EditText myOutEditText;
@@ -52,6 +57,27 @@ public class BluetoothChatMain extends Fragment {
      */
     private String myConnectedDeviceName = null;
 
+    /**
+     * Address of the connected device, and of the peer the conversation shown is with
+     */
+    private String myConnectedAddress = null;
+    private String myConversationAddress = null;
+
+    /**
+     * True while the service dials a lost peer again, its session resumes
+     */
+    private boolean myReconnecting;
+
+    /**
+     * Names of the connected peers by peer id, more than one in hub mode
+     */
+    private final SparseArray<String> myPeerNames = new SparseArray<String>();
+
+    /**
+     * Text decoders of the connected peers by peer id
+     */
+    private final SparseArray<Utf8StreamDecoder> myPeerDecoders = new SparseArray<Utf8StreamDecoder>();
+
     /**
      * Array adapter for the conversation thread
      */
@@ -62,6 +88,23 @@ public class BluetoothChatMain extends Fragment {
      */
     private StringBuffer myOutStringBuffer;
 
+    /**
+     * Reused for encoding outgoing and decoding sent and received messages
+     */
+    private final ChatMessage myOutMessage = new ChatMessage();
+    private final ChatMessage myInMessage = new ChatMessage();
+
+    /**
+     * Id of the next outgoing message
+     */
+    private long myNextMessageId = 1;
+
+    /**
+     * Batches received messages per display frame, and the lines of a batch
+     */
+    private InboundDispatcher myInbound;
+    private final ArrayList<String> myReceivedLines = new ArrayList<String>();
+
     /**
      * Local Bluetooth adapter
      */
@@ -72,6 +115,11 @@ public class BluetoothChatMain extends Fragment {
      */
     private MyChatService MyChatService = null;
 
+    /**
+     * Subscription of myListener to the events of the chat service
+     */
+    private ChatEventBus.Subscription mySubscription;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -107,7 +155,15 @@ public class BluetoothChatMain extends Fragment {
     public void onDestroy() {
         super.onDestroy();
         if (MyChatService != null) {
-            MyChatService.stop();
+            // Joining the workers could hold up the main thread for seconds
+            MyChatService.stopAsync();
+        }
+        if (myInbound != null) {
+            myInbound.close();
+            mLog.d(TAG, "Inbound: %s", myInbound);
+        }
+        if (mySubscription != null) {
+            mySubscription.close();
         }
     }
 
@@ -163,7 +219,16 @@ public class BluetoothChatMain extends Fragment {
         });
 
         // Initialize the ChatService to perform bluetooth connections
-        MyChatService = new MyChatService(getActivity(), myHandler);
+        // Events reach myListener on the main thread until onDestroy
+        ChatEventBus events = new ChatEventBus();
+        mySubscription = events.subscribe(myListener, ChatEventBus.mainThread());
+        MyChatService = new MyChatService(getActivity(), events);
+        MyChatService.setDownloadDirectory(new File(getActivity().getFilesDir(), "received"));
+
+        // Show received messages once per display frame rather than one by one
+        myInbound = new InboundDispatcher(myInboundSink, INBOUND_MAX_LATENCY_MS,
+                getActivity().getWindowManager().getDefaultDisplay().getRefreshRate());
+        MyChatService.setInboundDispatcher(myInbound);
 
         // Initialize the buffer for outgoing messages
         myOutStringBuffer = new StringBuffer("");
@@ -193,9 +258,22 @@ public class BluetoothChatMain extends Fragment {
 
         // Check that there's actually something to send
         if (message.length() > 0) {
-            // Get the message bytes and tell the ChatService to write
-            byte[] send = message.getBytes();
-            MyChatService.write(send);
+            // Encode the message and tell the ChatService to write it
+            String name = myBluetoothAdapter.getName();
+            myOutMessage.clear()
+                    .setId(myNextMessageId++)
+                    .setTimestamp(System.currentTimeMillis())
+                    .setSender(name != null ? name : "")
+                    .setBody(message);
+            byte[] send = ChatMessageCodec.encode(myOutMessage);
+            WriteHandle handle = MyChatService.write(send);
+
+            // The write is queued, it only fails right away when the queue is full
+            if (handle.isDone() && !handle.isSuccess()) {
+                makeText(getActivity(), handle.getFailure().getMessage(),
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
 
             // Reset out string buffer to zero and clear the edit text field
             myOutStringBuffer.setLength(0);
@@ -203,6 +281,60 @@ public class BluetoothChatMain extends Fragment {
         }
     }
 
+    /**
+     * Adds each batch of received messages to the conversation with a
+     * single relayout of the list.
+     */
+    private final InboundDispatcher.Sink myInboundSink = new InboundDispatcher.Sink() {
+        @Override
+        public void onBatch(InboundDispatcher.Batch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                String line = receivedLine(batch.channel(i), batch.peerId(i), batch.buffer(i));
+                if (line != null) {
+                    myReceivedLines.add(line);
+                }
+            }
+            if (!myReceivedLines.isEmpty()) {
+                myConversationArrayAdapter.addAll(myReceivedLines);
+                myReceivedLines.clear();
+            }
+        }
+    };
+
+    /**
+     * Decodes a received message into its conversation line and releases
+     * its buffer.
+     *
+     * @return The line, or null if there is nothing to show
+     */
+    private String receivedLine(int channel, int peerId, PooledBuffer buffer) {
+        if (channel != MyConstants.CHANNEL_CHAT) {
+            // Not a chat line, nothing to show
+            buffer.release();
+            return null;
+        }
+        Utf8StreamDecoder decoder = myPeerDecoders.get(peerId);
+        if (decoder == null) {
+            decoder = new Utf8StreamDecoder();
+            myPeerDecoders.put(peerId, decoder);
+        }
+        try {
+            ChatMessageCodec.decode(buffer.array(), 0, buffer.length(), myInMessage, decoder);
+        } catch (IOException e) {
+            mLog.w(TAG, "Dropping a message that cannot be decoded", e);
+            return null;
+        } finally {
+            // the buffer goes back to the service's pool once decoded
+            buffer.release();
+        }
+        // peers predating the message format do not name themselves
+        CharSequence sender = myInMessage.getSender();
+        if (sender.length() == 0) {
+            sender = myPeerNames.get(peerId, myConnectedDeviceName);
+        }
+        return sender + ":  " + myInMessage.getBody();
+    }
+
     /**
      * The action listener for the EditText widget, to listen for the return key
      */
@@ -250,62 +382,119 @@ public class BluetoothChatMain extends Fragment {
     }
 
     /**
-     * The Handler that gets information back from the ChatService
+     * Gets information back from the ChatService, on the main thread
      */
-    @SuppressLint("HandlerLeak")
-    private final Handler myHandler;
+    private final ChatListener myListener = new ChatListener() {
+        @Override
+        public void onStateChanged(int state, int oldState) {
+            switch (state) {
+                case com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_CONNECTED:
+                    setTheStatus(getString(R.string.title_connected_to, myConnectedDeviceName));
+                    // A resumed session keeps its conversation, only another peer starts afresh
+                    if (!myReconnecting || myConnectedAddress == null
+                            || !myConnectedAddress.equals(myConversationAddress)) {
+                        myConversationArrayAdapter.clear();
+                    }
+                    myConversationAddress = myConnectedAddress;
+                    myReconnecting = false;
+                    break;
+                case com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_CONNECTING:
+                    setTheStatus(R.string.title_connecting);
+                    myReconnecting = oldState
+                            == com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_CONNECTED;
+                    break;
+                case com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_LISTEN:
+                case com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_NONE:
+                    setTheStatus(R.string.title_not_connected);
+                    myReconnecting = false;
+                    break;
+            }
+        }
+
+        @Override
+        public void onMessageWritten(int channel, byte[] payload) {
+            if (channel != MyConstants.CHANNEL_CHAT) {
+                return;
+            }
+            try {
+                ChatMessageCodec.decode(payload, 0, payload.length, myInMessage);
+            } catch (IOException e) {
+                mLog.e(TAG, "Cannot decode a sent message", e);
+                return;
+            }
+            myConversationArrayAdapter.add("Me:  " + myInMessage.getBody());
+        }
 
-    {
-        myHandler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
+        @Override
+        public void onMessageRead(int channel, int peerId, PooledBuffer buffer) {
+            String line = receivedLine(channel, peerId, buffer);
+            if (line != null) {
+                myConversationArrayAdapter.add(line);
+            }
+        }
+
+        @Override
+        public void onDeviceName(int peerId, String name, String address) {
+            // save the connected device's name
+            myConnectedDeviceName = name;
+            myConnectedAddress = address;
+            myPeerNames.put(peerId, myConnectedDeviceName);
+            FragmentActivity activity = getActivity();
+            if (null != activity) {
+                makeText(activity, "Connected to "
+                        + myConnectedDeviceName, Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        public void onPeerStateChanged(int peerId, int state, String address) {
+            if (state != com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_CONNECTED) {
+                // The peer's last messages may still wait for a frame, they need its decoder
+                if (myInbound != null) {
+                    myInbound.flush();
+                }
+                String lost = myPeerNames.get(peerId, address);
+                myPeerNames.remove(peerId);
+                myPeerDecoders.remove(peerId);
                 FragmentActivity activity = getActivity();
-                switch (msg.what) {
-                    case MyConstants.MESSAGE_STATE_CHANGE:
-                        switch (msg.arg1) {
-                            case com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_CONNECTED:
-                                setTheStatus(getString(R.string.title_connected_to, myConnectedDeviceName));
-                                myConversationArrayAdapter.clear();
-                                break;
-                            case com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_CONNECTING:
-                                setTheStatus(R.string.title_connecting);
-                                break;
-                            case com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_LISTEN:
-                            case com.rodgermajor.androidgeek.bluetoothchat.MyChatService.STATE_NONE:
-                                setTheStatus(R.string.title_not_connected);
-                                break;
-                        }
-                        break;
-                    case MyConstants.MESSAGE_WRITE:
-                        byte[] writeBuf = (byte[]) msg.obj;
-                        // construct a string from the buffer
-                        String writeMessage = new String(writeBuf);
-                        myConversationArrayAdapter.add("Me:  " + writeMessage);
-                        break;
-                    case MyConstants.MESSAGE_READ:
-                        byte[] readBuf = (byte[]) msg.obj;
-                        // construct a string from the valid bytes in the buffer
-                        String readMessage = new String(readBuf, 0, msg.arg1);
-                        myConversationArrayAdapter.add(myConnectedDeviceName + ":  " + readMessage);
-                        break;
-                    case MyConstants.MESSAGE_DEVICE_NAME:
-                        // save the connected device's name
-                        myConnectedDeviceName = msg.getData().getString(MyConstants.DEVICE_NAME);
-                        if (null != activity) {
-                            makeText(activity, "Connected to "
-                                    + myConnectedDeviceName, Toast.LENGTH_SHORT).show();
-                        }
-                        break;
-                    case MyConstants.MESSAGE_TOAST:
-                        if (null != activity) {
-                            makeText(activity, msg.getData().getString(MyConstants.TOAST),
-                                    Toast.LENGTH_SHORT).show();
-                        }
-                        break;
+                if (null != activity) {
+                    makeText(activity, lost + " left", Toast.LENGTH_SHORT).show();
                 }
             }
-        };
-    }
+        }
+
+        @Override
+        public void onLinkStats(int peerId, LinkStats stats) {
+            mLog.d(TAG, "%s: %s", myPeerNames.get(peerId, myConnectedDeviceName), stats);
+            if (MyChatService != null && !MyChatService.isHubMode()) {
+                setTheStatus(getString(R.string.title_connected_rtt,
+                        myConnectedDeviceName, stats.lastRtt / 1000));
+            }
+        }
+
+        @Override
+        public void onTransferProgress(TransferProgress progress) {
+            mLog.d(TAG, progress.toString());
+            FragmentActivity activity = getActivity();
+            if (null != activity && progress.state == TransferProgress.STATE_DONE
+                    && progress.incoming) {
+                makeText(activity, getString(R.string.transfer_done, progress.name),
+                        Toast.LENGTH_SHORT).show();
+            } else if (null != activity
+                    && progress.state == TransferProgress.STATE_FAILED) {
+                makeText(activity, getString(R.string.transfer_failed, progress.name),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        public void onNotice(String text) {
+            FragmentActivity activity = getActivity();
+            if (null != activity) {
+                makeText(activity, text, Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
 
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         switch (requestCode) {
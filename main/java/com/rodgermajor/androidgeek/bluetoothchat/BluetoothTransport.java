@@ -0,0 +1,101 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link ChatTransport} over Bluetooth RFCOMM, the one the app uses on a device.
+ */
+public class BluetoothTransport implements ChatTransport {
+
+    private final BluetoothAdapter mAdapter;
+
+    public BluetoothTransport(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public ChatServerSocket listen(String name, UUID uuid, boolean secure) throws IOException {
+        BluetoothServerSocket socket = secure
+                ? mAdapter.listenUsingRfcommWithServiceRecord(name, uuid)
+                : mAdapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid);
+        return new ServerSocketWrapper(socket);
+    }
+
+    @Override
+    public ChatSocket createSocket(String address, UUID uuid, boolean secure) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothSocket socket = secure
+                ? device.createRfcommSocketToServiceRecord(uuid)
+                : device.createInsecureRfcommSocketToServiceRecord(uuid);
+        return new SocketWrapper(socket);
+    }
+
+    @Override
+    public void cancelDiscovery() {
+        mAdapter.cancelDiscovery();
+    }
+
+    private static class ServerSocketWrapper implements ChatServerSocket {
+        private final BluetoothServerSocket mSocket;
+
+        ServerSocketWrapper(BluetoothServerSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public ChatSocket accept() throws IOException {
+            return new SocketWrapper(mSocket.accept());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    private static class SocketWrapper implements ChatSocket {
+        private final BluetoothSocket mSocket;
+
+        SocketWrapper(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the buffers used to hand received messages over to the UI.
+ *
+ * Buffers are grouped in power of two size classes from 256 bytes up to
+ * {@link FrameCodec#MAX_PAYLOAD}. Once every class holds enough free buffers
+ * for the traffic in flight, {@link #acquire(int)} no longer allocates. Each
+ * time a class runs dry a new buffer is created and counted as a miss, which
+ * is the number to watch when sizing the pool.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 8;
+
+    private final SizeClass[] mClasses;
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param buffersPerClass How many free buffers each size class keeps around
+     */
+    public BufferPool(int buffersPerClass) {
+        int count = classFor(FrameCodec.MAX_PAYLOAD) + 1;
+        mClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            mClasses[i] = new SizeClass(1 << (MIN_SHIFT + i), buffersPerClass);
+        }
+    }
+
+    /**
+     * Leases a buffer holding at least length bytes, with its length set.
+     */
+    public PooledBuffer acquire(int length) {
+        if (length < 0 || length > FrameCodec.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Cannot pool a buffer of " + length + " bytes");
+        }
+        mAcquired.incrementAndGet();
+        SizeClass sizeClass = mClasses[classFor(length)];
+        PooledBuffer buffer = sizeClass.poll();
+        if (buffer == null) {
+            mMisses.incrementAndGet();
+            buffer = new PooledBuffer(this, sizeClass.mCapacity);
+        }
+        buffer.setLength(length);
+        buffer.lease();
+        return buffer;
+    }
+
+    /**
+     * Returns the number of buffers handed out so far.
+     */
+    public long getAcquireCount() {
+        return mAcquired.get();
+    }
+
+    /**
+     * Returns how many times a buffer had to be allocated because its size
+     * class was empty.
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    void recycle(PooledBuffer buffer) {
+        mClasses[classFor(buffer.capacity())].offer(buffer);
+    }
+
+    private static int classFor(int length) {
+        if (length <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Fixed size stack of the free buffers of one capacity.
+     */
+    private static final class SizeClass {
+        private final int mCapacity;
+        private final PooledBuffer[] mFree;
+        private int mCount;
+
+        SizeClass(int capacity, int slots) {
+            mCapacity = capacity;
+            mFree = new PooledBuffer[slots];
+        }
+
+        synchronized PooledBuffer poll() {
+            if (mCount == 0) {
+                return null;
+            }
+            PooledBuffer buffer = mFree[--mCount];
+            mFree[mCount] = null;
+            return buffer;
+        }
+
+        synchronized void offer(PooledBuffer buffer) {
+            // A full class simply lets the extra buffer be collected
+            if (mCount < mFree.length) {
+                mFree[mCount++] = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.rodgermajor.androidgeek.common.logger.mLog;
+
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Carries the events of a {@link MyChatService} to its subscribers.
+ *
+ * Every subscriber has a ring of preallocated slots, so publishing neither
+ * allocates nor takes a lock. The service publishes from several of its
+ * threads, so a ring takes many producers, each claiming a slot with a
+ * compare-and-set, and has a single consumer: a drain task run on the
+ * subscriber's executor, the main thread for the UI or the calling thread
+ * in tests.
+ *
+ * A subscription lasts until it is closed. Closing it, in onDestroy for
+ * a fragment, drops the events still waiting and releases their buffers,
+ * so nothing is delivered to a listener that is gone.
+ */
+public class ChatEventBus {
+    private static final String TAG = "ChatEventBus";
+
+    // Slots per subscriber unless asked otherwise
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * Returns an executor running tasks on the main thread.
+     */
+    public static Executor mainThread() {
+        return MainThread.INSTANCE;
+    }
+
+    /**
+     * Delivers the events published from now on to the listener, on the
+     * given executor.
+     */
+    public Subscription subscribe(ChatListener listener, Executor executor) {
+        return subscribe(listener, executor, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Events that may wait for the executor, rounded up to
+     *                 a power of two. More are dropped.
+     */
+    public Subscription subscribe(ChatListener listener, Executor executor, int capacity) {
+        Subscription subscription = new Subscription(this, listener, executor, capacity);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    void stateChanged(int state, int oldState) {
+        publish(MyConstants.MESSAGE_STATE_CHANGE, state, oldState, null, null);
+    }
+
+    void peerStateChanged(int peerId, int state, String address) {
+        publish(MyConstants.MESSAGE_PEER_STATE_CHANGE, peerId, state, address, null);
+    }
+
+    void deviceName(int peerId, String name, String address) {
+        publish(MyConstants.MESSAGE_DEVICE_NAME, peerId, 0, name, address);
+    }
+
+    /**
+     * Publishes a received message to the first subscriber only, a buffer
+     * has one owner. With no subscriber to take it, it goes straight back
+     * to the pool.
+     */
+    void messageRead(int channel, int peerId, PooledBuffer buffer) {
+        Iterator<Subscription> subscriptions = mSubscriptions.iterator();
+        if (!subscriptions.hasNext()
+                || !subscriptions.next().offer(MyConstants.MESSAGE_READ, channel, peerId, buffer, null)) {
+            buffer.release();
+        }
+    }
+
+    void messageWritten(int channel, byte[] payload) {
+        publish(MyConstants.MESSAGE_WRITE, channel, 0, payload, null);
+    }
+
+    void linkStats(int peerId, LinkStats stats) {
+        publish(MyConstants.MESSAGE_LINK_STATS, peerId, 0, stats, null);
+    }
+
+    void transferProgress(TransferProgress progress) {
+        publish(MyConstants.MESSAGE_TRANSFER_PROGRESS, 0, 0, progress, null);
+    }
+
+    void notice(String text) {
+        publish(MyConstants.MESSAGE_TOAST, 0, 0, text, null);
+    }
+
+    private void publish(int kind, int arg1, int arg2, Object obj1, Object obj2) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(kind, arg1, arg2, obj1, obj2);
+        }
+    }
+
+    /**
+     * One listener's ring and drain task.
+     */
+    public static final class Subscription implements Runnable {
+        private final ChatEventBus mBus;
+        private final ChatListener mListener;
+        private final Executor mExecutor;
+        private final int mMask;
+
+        // Slot i is free for the producer claiming position p when its
+        // sequence is p, and holds the event of position p once it is p + 1
+        private final AtomicLongArray mSequences;
+        private final int[] mKinds;
+        private final int[] mArgs1;
+        private final int[] mArgs2;
+        private final Object[] mObjs1;
+        private final Object[] mObjs2;
+        private final AtomicLong mTail = new AtomicLong();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private final AtomicLong mDropped = new AtomicLong();
+        private volatile boolean mClosed;
+
+        // Consumer only
+        private long mHead;
+
+        Subscription(ChatEventBus bus, ChatListener listener, Executor executor, int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+            mBus = bus;
+            mListener = listener;
+            mExecutor = executor;
+            mMask = size - 1;
+            mSequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                mSequences.set(i, i);
+            }
+            mKinds = new int[size];
+            mArgs1 = new int[size];
+            mArgs2 = new int[size];
+            mObjs1 = new Object[size];
+            mObjs2 = new Object[size];
+        }
+
+        /**
+         * Claims a slot and schedules the drain if it is not pending yet.
+         *
+         * @return false if the subscription is closed or its ring is full
+         */
+        boolean offer(int kind, int arg1, int arg2, Object obj1, Object obj2) {
+            if (mClosed) {
+                return false;
+            }
+            long position = mTail.get();
+            int index;
+            while (true) {
+                index = (int) position & mMask;
+                long lag = mSequences.get(index) - position;
+                if (lag == 0) {
+                    if (mTail.compareAndSet(position, position + 1)) {
+                        break;
+                    }
+                    position = mTail.get();
+                } else if (lag < 0) {
+                    // The slot still holds an event from one lap ago
+                    if (mDropped.getAndIncrement() == 0) {
+                        mLog.w(TAG, "Events dropped, " + mListener + " falls behind");
+                    }
+                    return false;
+                } else {
+                    position = mTail.get();
+                }
+            }
+            mKinds[index] = kind;
+            mArgs1[index] = arg1;
+            mArgs2[index] = arg2;
+            mObjs1[index] = obj1;
+            mObjs2[index] = obj2;
+            // Publishes the slot's fields to the consumer
+            mSequences.lazySet(index, position + 1);
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+            return true;
+        }
+
+        /**
+         * Drains the ring, on the executor.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                // At most one lap, then let the executor run other work
+                if (drain(mMask + 1)) {
+                    mExecutor.execute(this);
+                    return;
+                }
+                mScheduled.set(false);
+                // An event published after the drain found it scheduled
+                if (isEmpty() || !mScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if events are left after the budget was used up
+         */
+        private boolean drain(int budget) {
+            for (int n = 0; n < budget; n++) {
+                int index = (int) mHead & mMask;
+                if (mSequences.get(index) != mHead + 1) {
+                    return false;
+                }
+                int kind = mKinds[index];
+                int arg1 = mArgs1[index];
+                int arg2 = mArgs2[index];
+                Object obj1 = mObjs1[index];
+                Object obj2 = mObjs2[index];
+                mObjs1[index] = null;
+                mObjs2[index] = null;
+                mSequences.lazySet(index, mHead + mMask + 1);
+                mHead++;
+                if (mClosed) {
+                    if (kind == MyConstants.MESSAGE_READ) {
+                        ((PooledBuffer) obj1).release();
+                    }
+                    continue;
+                }
+                try {
+                    dispatch(kind, arg1, arg2, obj1, obj2);
+                } catch (RuntimeException e) {
+                    mLog.e(TAG, "Listener failed on event " + kind, e);
+                }
+            }
+            return !isEmpty();
+        }
+
+        private boolean isEmpty() {
+            return mSequences.get((int) mHead & mMask) != mHead + 1;
+        }
+
+        private void dispatch(int kind, int arg1, int arg2, Object obj1, Object obj2) {
+            switch (kind) {
+                case MyConstants.MESSAGE_STATE_CHANGE:
+                    mListener.onStateChanged(arg1, arg2);
+                    break;
+                case MyConstants.MESSAGE_PEER_STATE_CHANGE:
+                    mListener.onPeerStateChanged(arg1, arg2, (String) obj1);
+                    break;
+                case MyConstants.MESSAGE_DEVICE_NAME:
+                    mListener.onDeviceName(arg1, (String) obj1, (String) obj2);
+                    break;
+                case MyConstants.MESSAGE_READ:
+                    mListener.onMessageRead(arg1, arg2, (PooledBuffer) obj1);
+                    break;
+                case MyConstants.MESSAGE_WRITE:
+                    mListener.onMessageWritten(arg1, (byte[]) obj1);
+                    break;
+                case MyConstants.MESSAGE_LINK_STATS:
+                    mListener.onLinkStats(arg1, (LinkStats) obj1);
+                    break;
+                case MyConstants.MESSAGE_TRANSFER_PROGRESS:
+                    mListener.onTransferProgress((TransferProgress) obj1);
+                    break;
+                case MyConstants.MESSAGE_TOAST:
+                    mListener.onNotice((String) obj1);
+                    break;
+            }
+        }
+
+        /**
+         * Returns the events dropped because the ring was full.
+         */
+        public long getDropped() {
+            return mDropped.get();
+        }
+
+        /**
+         * Stops the deliveries. Events still in the ring are dropped, with
+         * their buffers released, on the executor.
+         */
+        public void close() {
+            mBus.mSubscriptions.remove(this);
+            mClosed = true;
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+    }
+
+    /**
+     * Posts to the main looper, created the first time it is used.
+     */
+    private static final class MainThread implements Executor {
+        static final MainThread INSTANCE = new MainThread();
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable task) {
+            mHandler.post(task);
+        }
+    }
+}
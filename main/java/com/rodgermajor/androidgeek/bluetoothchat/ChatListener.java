@@ -0,0 +1,45 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+/**
+ * Events of a {@link MyChatService}, delivered through a
+ * {@link ChatEventBus} on the subscriber's executor.
+ */
+public interface ChatListener {
+
+    /**
+     * The service moved from one STATE_* to another.
+     */
+    void onStateChanged(int state, int oldState);
+
+    /**
+     * A peer connected or was lost, state is STATE_CONNECTED or STATE_NONE.
+     */
+    void onPeerStateChanged(int peerId, int state, String address);
+
+    /**
+     * The name and address behind a peer id.
+     */
+    void onDeviceName(int peerId, String name, String address);
+
+    /**
+     * A message arrived. The listener has to release the buffer.
+     */
+    void onMessageRead(int channel, int peerId, PooledBuffer buffer);
+
+    /**
+     * A message went out on the given channel.
+     */
+    void onMessageWritten(int channel, byte[] payload);
+
+    /**
+     * A new round trip time was measured on a link.
+     */
+    void onLinkStats(int peerId, LinkStats stats);
+
+    void onTransferProgress(TransferProgress progress);
+
+    /**
+     * Something the user should be told.
+     */
+    void onNotice(String text);
+}
@@ -0,0 +1,183 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.util.ArrayList;
+
+/**
+ * A chat message as carried on CHANNEL_CHAT, see {@link ChatMessageCodec}
+ * for its wire format.
+ *
+ * Instances are mutable and meant to be reused: decoding into the same
+ * message again reuses its text buffers, so reading a message allocates
+ * nothing once the buffers have grown to size.
+ */
+public class ChatMessage {
+
+    // Message types
+    public static final int TYPE_TEXT = 0;
+
+    private long mId;
+    private long mTimestamp;
+    private int mType = TYPE_TEXT;
+    private final StringBuilder mSender = new StringBuilder();
+    private final StringBuilder mBody = new StringBuilder();
+
+    // Attribute keys and values, only the first mAttributeCount are in use
+    private final ArrayList<StringBuilder> mKeys = new ArrayList<StringBuilder>();
+    private final ArrayList<StringBuilder> mValues = new ArrayList<StringBuilder>();
+    private int mAttributeCount;
+
+    /**
+     * Resets every field, keeping the buffers for the next message.
+     */
+    public ChatMessage clear() {
+        mId = 0;
+        mTimestamp = 0;
+        mType = TYPE_TEXT;
+        mSender.setLength(0);
+        mBody.setLength(0);
+        mAttributeCount = 0;
+        return this;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public ChatMessage setId(long id) {
+        mId = id;
+        return this;
+    }
+
+    /**
+     * Returns when the message was written, in milliseconds since the
+     * epoch, or 0 when unknown.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public ChatMessage setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
+        return this;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public ChatMessage setType(int type) {
+        mType = type;
+        return this;
+    }
+
+    /**
+     * Returns the name the sender gave itself, empty when unknown. Only
+     * valid until the message is decoded into again.
+     */
+    public CharSequence getSender() {
+        return mSender;
+    }
+
+    public ChatMessage setSender(CharSequence sender) {
+        mSender.setLength(0);
+        mSender.append(sender);
+        return this;
+    }
+
+    /**
+     * Returns the text of the message. Only valid until the message is
+     * decoded into again.
+     */
+    public CharSequence getBody() {
+        return mBody;
+    }
+
+    public ChatMessage setBody(CharSequence body) {
+        mBody.setLength(0);
+        mBody.append(body);
+        return this;
+    }
+
+    public int getAttributeCount() {
+        return mAttributeCount;
+    }
+
+    public CharSequence getAttributeKey(int index) {
+        return mKeys.get(checkAttribute(index));
+    }
+
+    public CharSequence getAttributeValue(int index) {
+        return mValues.get(checkAttribute(index));
+    }
+
+    /**
+     * Returns the value of the first attribute with the given key, or null.
+     */
+    public CharSequence getAttribute(CharSequence key) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (contentEquals(mKeys.get(i), key)) {
+                return mValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    public ChatMessage addAttribute(CharSequence key, CharSequence value) {
+        newAttribute().append(key);
+        mValues.get(mAttributeCount - 1).append(value);
+        return this;
+    }
+
+    /**
+     * Appends an empty attribute and returns its key buffer, its value
+     * buffer is the one at the same index.
+     */
+    StringBuilder newAttribute() {
+        if (mAttributeCount == mKeys.size()) {
+            mKeys.add(new StringBuilder());
+            mValues.add(new StringBuilder());
+        }
+        StringBuilder key = mKeys.get(mAttributeCount);
+        key.setLength(0);
+        mValues.get(mAttributeCount).setLength(0);
+        mAttributeCount++;
+        return key;
+    }
+
+    StringBuilder senderBuffer() {
+        return mSender;
+    }
+
+    StringBuilder bodyBuffer() {
+        return mBody;
+    }
+
+    StringBuilder valueBuffer(int index) {
+        return mValues.get(index);
+    }
+
+    private int checkAttribute(int index) {
+        if (index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException("No attribute " + index);
+        }
+        return index;
+    }
+
+    private static boolean contentEquals(CharSequence a, CharSequence b) {
+        int length = a.length();
+        if (length != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ChatMessage #" + mId + " from " + mSender + " at " + mTimestamp + ": " + mBody;
+    }
+}
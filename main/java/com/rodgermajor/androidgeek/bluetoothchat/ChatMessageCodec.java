@@ -0,0 +1,382 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+
+/**
+ * Binary encoding of {@link ChatMessage}s.
+ *
+ * A message starts with a version byte, major version in the high nibble
+ * and minor in the low one, followed by tagged fields. Each field is a
+ * varint key, the field number shifted left by one with the low bit set
+ * for length delimited fields, then either a varint or a varint length and
+ * that many bytes:
+ *
+ *   1  varint   message id
+ *   2  varint   timestamp, milliseconds since the epoch
+ *   3  varint   message type
+ *   4  bytes    sender, UTF-8
+ *   5  bytes    body, UTF-8
+ *   6  bytes    attribute: varint key length, UTF-8 key, UTF-8 value
+ *
+ * Decoders skip fields they do not know, so minor versions may add fields
+ * freely. A new major version is not understood by older decoders.
+ *
+ * Peers predating the format sent the bare text of a message. A version
+ * byte is a control character no text starts with, so payloads that do not
+ * start with one are read as such a body.
+ *
+ * Text goes straight between chars and UTF-8 bytes, with no String or
+ * byte[] in between.
+ */
+public final class ChatMessageCodec {
+
+    public static final int VERSION_MAJOR = 1;
+    public static final int VERSION_MINOR = 0;
+    private static final int VERSION = VERSION_MAJOR << 4 | VERSION_MINOR;
+
+    // Field numbers
+    private static final int FIELD_ID = 1;
+    private static final int FIELD_TIMESTAMP = 2;
+    private static final int FIELD_TYPE = 3;
+    private static final int FIELD_SENDER = 4;
+    private static final int FIELD_BODY = 5;
+    private static final int FIELD_ATTRIBUTE = 6;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_BYTES = 1;
+
+    private static final char REPLACEMENT = '\ufffd';
+
+    private ChatMessageCodec() {
+    }
+
+    /**
+     * Returns the encoded size of a message.
+     */
+    public static int encodedLength(ChatMessage message) {
+        int length = 1;
+        length += 1 + varintLength(message.getId());
+        length += 1 + varintLength(message.getTimestamp());
+        if (message.getType() != ChatMessage.TYPE_TEXT) {
+            length += 1 + varintLength(message.getType() & 0xffffffffL);
+        }
+        if (message.getSender().length() > 0) {
+            length += bytesFieldLength(utf8Length(message.getSender()));
+        }
+        length += bytesFieldLength(utf8Length(message.getBody()));
+        for (int i = 0; i < message.getAttributeCount(); i++) {
+            int keyLength = utf8Length(message.getAttributeKey(i));
+            int valueLength = utf8Length(message.getAttributeValue(i));
+            length += bytesFieldLength(varintLength(keyLength) + keyLength + valueLength);
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a message into a new array of exactly its size.
+     */
+    public static byte[] encode(ChatMessage message) {
+        byte[] out = new byte[encodedLength(message)];
+        encode(message, out, 0);
+        return out;
+    }
+
+    /**
+     * Encodes a message into dst, which has to have room for
+     * {@link #encodedLength(ChatMessage)} bytes.
+     *
+     * @return The offset after the message
+     */
+    public static int encode(ChatMessage message, byte[] dst, int off) {
+        dst[off++] = (byte) VERSION;
+        off = writeVarint(dst, off, key(FIELD_ID, WIRE_VARINT));
+        off = writeVarint(dst, off, message.getId());
+        off = writeVarint(dst, off, key(FIELD_TIMESTAMP, WIRE_VARINT));
+        off = writeVarint(dst, off, message.getTimestamp());
+        if (message.getType() != ChatMessage.TYPE_TEXT) {
+            off = writeVarint(dst, off, key(FIELD_TYPE, WIRE_VARINT));
+            off = writeVarint(dst, off, message.getType() & 0xffffffffL);
+        }
+        if (message.getSender().length() > 0) {
+            off = writeText(dst, off, FIELD_SENDER, message.getSender());
+        }
+        off = writeText(dst, off, FIELD_BODY, message.getBody());
+        for (int i = 0; i < message.getAttributeCount(); i++) {
+            CharSequence key = message.getAttributeKey(i);
+            CharSequence value = message.getAttributeValue(i);
+            int keyLength = utf8Length(key);
+            off = writeVarint(dst, off, key(FIELD_ATTRIBUTE, WIRE_BYTES));
+            off = writeVarint(dst, off, varintLength(keyLength) + keyLength + utf8Length(value));
+            off = writeVarint(dst, off, keyLength);
+            off = writeUtf8(dst, off, key);
+            off = writeUtf8(dst, off, value);
+        }
+        return off;
+    }
+
+    /**
+     * Decodes a message into the given one, replacing its contents.
+     *
+     * @throws IOException If the message is malformed or of a newer major
+     *                     version
+     */
+    public static ChatMessage decode(byte[] src, int off, int len, ChatMessage into)
+            throws IOException {
+        return decode(src, off, len, into, null);
+    }
+
+    /**
+     * Decodes a message into the given one, its text through the given
+     * decoder of the connection it came from.
+     *
+     * @param text Decoder for the text fields, null to use the codec's own
+     */
+    public static ChatMessage decode(byte[] src, int off, int len, ChatMessage into,
+                                     Utf8StreamDecoder text) throws IOException {
+        into.clear();
+        if (len == 0) {
+            return into;
+        }
+        int version = src[off] & 0xff;
+        if (!isVersionByte(version)) {
+            // Bare text from a peer predating the format
+            decodeText(src, off, len, into.bodyBuffer(), text);
+            return into;
+        }
+        if (version >> 4 != VERSION_MAJOR) {
+            throw new IOException("Unsupported message version " + (version >> 4)
+                    + "." + (version & 0x0f));
+        }
+        int end = off + len;
+        int[] position = {off + 1};
+        while (position[0] < end) {
+            long key = readVarint(src, position, end);
+            int field = (int) (key >>> 1);
+            if ((key & 1) == WIRE_VARINT) {
+                long value = readVarint(src, position, end);
+                switch (field) {
+                    case FIELD_ID:
+                        into.setId(value);
+                        break;
+                    case FIELD_TIMESTAMP:
+                        into.setTimestamp(value);
+                        break;
+                    case FIELD_TYPE:
+                        into.setType((int) value);
+                        break;
+                    default:
+                        // Added in a later minor version
+                        break;
+                }
+                continue;
+            }
+            long length = readVarint(src, position, end);
+            int start = position[0];
+            // A varint of 10 bytes reads as negative, which must not pass for short
+            if (length < 0 || length > end - start) {
+                throw new IOException("Field " + field + " overruns the message");
+            }
+            int stop = start + (int) length;
+            switch (field) {
+                case FIELD_SENDER:
+                    decodeText(src, start, stop - start, into.senderBuffer(), text);
+                    break;
+                case FIELD_BODY:
+                    decodeText(src, start, stop - start, into.bodyBuffer(), text);
+                    break;
+                case FIELD_ATTRIBUTE:
+                    long keyLength = readVarint(src, position, stop);
+                    if (keyLength < 0 || keyLength > stop - position[0]) {
+                        throw new IOException("Attribute key overruns the message");
+                    }
+                    int keyEnd = position[0] + (int) keyLength;
+                    decodeText(src, position[0], keyEnd - position[0], into.newAttribute(), text);
+                    decodeText(src, keyEnd, stop - keyEnd,
+                            into.valueBuffer(into.getAttributeCount() - 1), text);
+                    break;
+                default:
+                    // Added in a later minor version
+                    break;
+            }
+            position[0] = stop;
+        }
+        return into;
+    }
+
+    /**
+     * Returns true if a payload is in this format rather than bare text.
+     */
+    public static boolean isEncoded(byte[] src, int off, int len) {
+        return len > 0 && isVersionByte(src[off] & 0xff);
+    }
+
+    // Versions 1.0 to 1.15 are the control characters 0x10 to 0x1f, of which
+    // only DLE to US are left, none of them the start of typed text
+    private static boolean isVersionByte(int b) {
+        return b >= 0x10 && b <= 0x1f;
+    }
+
+    private static long key(int field, int wireType) {
+        return (long) field << 1 | wireType;
+    }
+
+    private static int bytesFieldLength(int length) {
+        return 1 + varintLength(length) + length;
+    }
+
+    static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static int writeVarint(byte[] dst, int off, long value) {
+        while ((value & ~0x7fL) != 0) {
+            dst[off++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[off++] = (byte) value;
+        return off;
+    }
+
+    /**
+     * Reads a varint at position[0], advancing it past the varint.
+     */
+    static long readVarint(byte[] src, int[] position, int end) throws IOException {
+        long value = 0;
+        int off = position[0];
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (off >= end) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = src[off++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                position[0] = off;
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than 64 bits");
+    }
+
+    private static int writeText(byte[] dst, int off, int field, CharSequence text) {
+        off = writeVarint(dst, off, key(field, WIRE_BYTES));
+        off = writeVarint(dst, off, utf8Length(text));
+        return writeUtf8(dst, off, text);
+    }
+
+    /**
+     * Returns the UTF-8 length of text. Unpaired surrogates take the one
+     * byte of the '?' they are encoded as.
+     */
+    static int utf8Length(CharSequence text) {
+        int n = text.length();
+        int length = n;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                length++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // Four bytes for the two chars of the pair
+                length += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    static int writeUtf8(byte[] dst, int off, CharSequence text) {
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                dst[off++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[off++] = (byte) (0xc0 | c >> 6);
+                dst[off++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                dst[off++] = (byte) (0xf0 | cp >> 18);
+                dst[off++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                dst[off++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                dst[off++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                dst[off++] = '?';
+            } else {
+                dst[off++] = (byte) (0xe0 | c >> 12);
+                dst[off++] = (byte) (0x80 | c >> 6 & 0x3f);
+                dst[off++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return off;
+    }
+
+    private static void decodeText(byte[] src, int off, int len, StringBuilder out,
+                                   Utf8StreamDecoder text) {
+        if (text != null) {
+            text.decode(src, off, len, true, out);
+        } else {
+            decodeUtf8(src, off, len, out);
+        }
+    }
+
+    /**
+     * Decodes UTF-8 into out. Malformed sequences, overlong forms and
+     * encoded surrogates each become one U+FFFD.
+     */
+    static void decodeUtf8(byte[] src, int off, int len, StringBuilder out) {
+        int end = off + len;
+        out.ensureCapacity(out.length() + len);
+        while (off < end) {
+            int b = src[off++];
+            if (b >= 0) {
+                out.append((char) b);
+                continue;
+            }
+            int extra;
+            int cp;
+            int min;
+            if ((b & 0xe0) == 0xc0) {
+                extra = 1;
+                cp = b & 0x1f;
+                min = 0x80;
+            } else if ((b & 0xf0) == 0xe0) {
+                extra = 2;
+                cp = b & 0x0f;
+                min = 0x800;
+            } else if ((b & 0xf8) == 0xf0) {
+                extra = 3;
+                cp = b & 0x07;
+                min = 0x10000;
+            } else {
+                out.append(REPLACEMENT);
+                continue;
+            }
+            int i = 0;
+            while (i < extra && off < end && (src[off] & 0xc0) == 0x80) {
+                cp = cp << 6 | src[off++] & 0x3f;
+                i++;
+            }
+            if (i < extra || cp < min || cp > Character.MAX_CODE_POINT
+                    || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE)) {
+                out.append(REPLACEMENT);
+            } else if (cp >= 0x10000) {
+                cp -= 0x10000;
+                out.append((char) (Character.MIN_HIGH_SURROGATE + (cp >> 10)));
+                out.append((char) (Character.MIN_LOW_SURROGATE + (cp & 0x3ff)));
+            } else {
+                out.append((char) cp);
+            }
+        }
+    }
+}
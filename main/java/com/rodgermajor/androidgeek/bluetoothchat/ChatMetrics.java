@@ -0,0 +1,59 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+/**
+ * Counters and histograms of a running {@link MyChatService}, shared by
+ * all of its connections.
+ *
+ * Recording happens on the reader and writer threads for every frame, so
+ * it only ever bumps striped counters and histogram buckets: no lock and
+ * no allocation. Only state changes, a few per connection, synchronize.
+ */
+final class ChatMetrics {
+
+    final StripedCounter bytesIn = new StripedCounter();
+    final StripedCounter framesIn = new StripedCounter();
+    final StripedCounter bytesOut = new StripedCounter();
+    final StripedCounter framesOut = new StripedCounter();
+
+    // Returns from the socket read of a read loop
+    final StripedCounter readWakeups = new StripedCounter();
+
+    final StripedCounter reconnectAttempts = new StripedCounter();
+
+    // Microseconds from queueing a message until its last frame is on the stream
+    final MetricHistogram writeLatency = new MetricHistogram();
+
+    // Depth of the outbound queue a message joins, itself included
+    final MetricHistogram queueDepth = new MetricHistogram();
+
+    // Time spent in each STATE_*, guarded by this
+    private final long[] mStateNanos = new long[4];
+    private int mState = MyChatService.STATE_NONE;
+    private long mStateSince = System.nanoTime();
+
+    synchronized void stateChanged(int state) {
+        long now = System.nanoTime();
+        mStateNanos[mState] += now - mStateSince;
+        mState = state;
+        mStateSince = now;
+    }
+
+    /**
+     * @param queued Messages waiting in every outbound queue right now
+     */
+    MetricsSnapshot snapshot(int queued) {
+        long[] stateMillis = new long[mStateNanos.length];
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (int i = 0; i < stateMillis.length; i++) {
+                long nanos = mStateNanos[i] + (i == mState ? now - mStateSince : 0);
+                stateMillis[i] = nanos / 1000000;
+            }
+        }
+        return new MetricsSnapshot(bytesIn.sum(), framesIn.sum(), bytesOut.sum(),
+                framesOut.sum(), readWakeups.sum(), reconnectAttempts.sum(),
+                writeLatency.count(), writeLatency.mean(), writeLatency.percentile(50),
+                writeLatency.percentile(99), writeLatency.max(), queued,
+                queueDepth.percentile(99), queueDepth.max(), stateMillis);
+    }
+}
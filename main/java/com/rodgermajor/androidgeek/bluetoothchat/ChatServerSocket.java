@@ -0,0 +1,19 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Listens for incoming connections on a {@link ChatTransport}.
+ */
+public interface ChatServerSocket extends Closeable {
+
+    /**
+     * Blocks until a peer connects. Closing the server socket makes a pending
+     * accept throw.
+     */
+    public ChatSocket accept() throws IOException;
+
+    @Override
+    public void close() throws IOException;
+}
@@ -0,0 +1,265 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Conversation state which outlives a single connection, so that a link can
+ * be resumed after it drops.
+ *
+ * Both ends announce their session id and how many data frames they have
+ * received in a hello frame right after connecting. When the ids match, each
+ * side replays the frames the other one missed. Otherwise the accepting side
+ * adopts the id of the connecting side and both start counting afresh.
+ *
+ * The hello also carries the receive window of its sender, the number of
+ * data frames the other side may send before waiting for credit, and
+ * optionally a byte of capabilities such as inflating compressed frames.
+ *
+ * A side whose retransmit buffer had to drop frames cannot replay them, and
+ * asks for a fresh start instead: the connecting side with a new id, the
+ * accepting side with id 0.
+ *
+ * Data messages a lost link did not send are kept here and queued again on
+ * the next link, until the session ends.
+ */
+class ChatSession {
+
+    // Version of the hello frame
+    static final int HELLO_VERSION = 1;
+
+    // Size of the hello payload: version, session id, received count, receive window
+    static final int HELLO_SIZE = 1 + 8 + 8 + 4;
+
+    // Optional byte after the hello, the features its sender understands
+    static final int HELLO_CAPS_SIZE = HELLO_SIZE + 1;
+
+    // Capabilities
+    static final int CAP_DEFLATE = 0x01;    // can inflate FLAG_COMPRESSED frames
+
+    // Size of the ack payload: received count
+    static final int ACK_SIZE = 8;
+
+    // Size of the credit payload: number of frames granted
+    static final int CREDIT_SIZE = 4;
+
+    // Acknowledge after this many data frames
+    static final int ACK_INTERVAL = 16;
+
+    private static final Random sRandom = new Random();
+
+    final String mAddress;
+    final boolean mInitiator;
+    final RetransmitBuffer mRetransmit;
+    final MessageAssembler mAssembler = new MessageAssembler();
+    private long mId;
+    private long mReceived;
+    private long mLastAcked;
+
+    // Set when the next hello has to start the session afresh
+    private boolean mRestart;
+
+    // Messages lost links did not send, oldest first, and why the session ended
+    private final List<OutboundQueue.Entry> mUnsent = new ArrayList<OutboundQueue.Entry>();
+    private IOException mEnded;
+
+    /**
+     * @param address   Address of the peer
+     * @param initiator true on the side which connected, which owns the id
+     */
+    ChatSession(String address, boolean initiator, int retransmitCapacity) {
+        mAddress = address;
+        mInitiator = initiator;
+        mRetransmit = new RetransmitBuffer(retransmitCapacity);
+        if (initiator) {
+            mId = newId();
+        }
+    }
+
+    private static long newId() {
+        synchronized (sRandom) {
+            // 0 means "no session yet"
+            long id;
+            do {
+                id = sRandom.nextLong();
+            } while (id == 0);
+            return id;
+        }
+    }
+
+    synchronized long getId() {
+        return mId;
+    }
+
+    synchronized long getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * Counts a received data frame.
+     *
+     * @return true when it is time to send an ack
+     */
+    synchronized boolean onReceived() {
+        mReceived++;
+        if (mReceived - mLastAcked >= ACK_INTERVAL) {
+            mLastAcked = mReceived;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes this side's hello payload into dst.
+     *
+     * @param window       Receive window of this side, 0 for no flow control
+     * @param capabilities Bitwise or of CAP_ constants, written when dst has room
+     */
+    synchronized void writeHello(byte[] dst, int window, int capabilities) {
+        if (mRetransmit.hasDropped() && !mRestart) {
+            // The peer may miss frames which are gone, resuming would leave a gap
+            mRestart = true;
+            if (mInitiator) {
+                mId = newId();
+            }
+        }
+        dst[0] = (byte) HELLO_VERSION;
+        putLong(dst, 1, mRestart && !mInitiator ? 0 : mId);
+        putLong(dst, 9, mReceived);
+        putInt(dst, 17, window);
+        if (dst.length >= HELLO_CAPS_SIZE) {
+            dst[HELLO_SIZE] = (byte) capabilities;
+        }
+    }
+
+    /**
+     * Returns the receive window announced in a hello.
+     */
+    static int helloWindow(byte[] src, int off) {
+        return getInt(src, off + 17);
+    }
+
+    /**
+     * Returns the capabilities announced in a hello, none for peers which
+     * predate them.
+     */
+    static int helloCapabilities(byte[] src, int off, int length) {
+        return length >= HELLO_CAPS_SIZE ? src[off + HELLO_SIZE] & 0xff : 0;
+    }
+
+    /**
+     * Handles the peer's hello.
+     *
+     * @return the peer's received count when the session resumes, or -1 when
+     * both sides start afresh
+     */
+    synchronized long onHello(byte[] src, int off) {
+        long peerId = getLong(src, off + 1);
+        long peerReceived = getLong(src, off + 9);
+        if (!mRestart && peerId != 0 && peerId == mId) {
+            return peerReceived;
+        }
+        mRestart = false;
+        if (!mInitiator) {
+            mId = peerId;
+        }
+        mReceived = 0;
+        mLastAcked = 0;
+        mRetransmit.reset();
+        mAssembler.reset();
+        return -1;
+    }
+
+    /**
+     * Keeps the messages a lost link did not send, or fails them if the
+     * session has ended.
+     */
+    void keepUnsent(List<OutboundQueue.Entry> entries) {
+        IOException ended;
+        synchronized (this) {
+            ended = mEnded;
+            if (ended == null) {
+                // A writer may hand over the message it was on after the rest
+                mUnsent.addAll(entries);
+                Collections.sort(mUnsent, OutboundQueue.OFFER_ORDER);
+                return;
+            }
+        }
+        OutboundQueue.fail(entries, ended);
+    }
+
+    /**
+     * Takes the kept messages for a new link. When the session starts
+     * afresh, the messages the peer got part of cannot be finished and are
+     * failed.
+     *
+     * @param resumed true if the new link resumes the session
+     */
+    List<OutboundQueue.Entry> takeUnsent(boolean resumed) {
+        List<OutboundQueue.Entry> unsent;
+        List<OutboundQueue.Entry> started = new ArrayList<OutboundQueue.Entry>();
+        synchronized (this) {
+            unsent = new ArrayList<OutboundQueue.Entry>(mUnsent);
+            mUnsent.clear();
+        }
+        if (!resumed) {
+            for (int i = unsent.size() - 1; i >= 0; i--) {
+                if (unsent.get(i).mSent > 0) {
+                    started.add(unsent.remove(i));
+                }
+            }
+            OutboundQueue.fail(started, new IOException("Session restarted"));
+        }
+        return unsent;
+    }
+
+    /**
+     * Ends the session for good. Kept messages are failed, and so are those
+     * handed over later.
+     */
+    void end(String reason) {
+        List<OutboundQueue.Entry> unsent;
+        IOException ended = new IOException(reason);
+        synchronized (this) {
+            if (mEnded != null) {
+                return;
+            }
+            mEnded = ended;
+            unsent = new ArrayList<OutboundQueue.Entry>(mUnsent);
+            mUnsent.clear();
+        }
+        OutboundQueue.fail(unsent, ended);
+    }
+
+    static void putInt(byte[] dst, int off, int value) {
+        dst[off] = (byte) (value >>> 24);
+        dst[off + 1] = (byte) (value >>> 16);
+        dst[off + 2] = (byte) (value >>> 8);
+        dst[off + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] src, int off) {
+        return ((src[off] & 0xff) << 24)
+                | ((src[off + 1] & 0xff) << 16)
+                | ((src[off + 2] & 0xff) << 8)
+                | (src[off + 3] & 0xff);
+    }
+
+    static void putLong(byte[] dst, int off, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dst[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] src, int off) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[off + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,36 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connection to one peer, as created by a {@link ChatTransport}.
+ */
+public interface ChatSocket extends Closeable {
+
+    /**
+     * Connects an outgoing socket. This is a blocking call which only returns
+     * on success or failure, closing the socket aborts it.
+     */
+    public void connect() throws IOException;
+
+    public InputStream getInputStream() throws IOException;
+
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Returns the address of the peer, in the format the transport's
+     * {@link ChatTransport#createSocket} takes.
+     */
+    public String getRemoteAddress();
+
+    /**
+     * Returns a human readable name for the peer.
+     */
+    public String getRemoteName();
+
+    @Override
+    public void close() throws IOException;
+}
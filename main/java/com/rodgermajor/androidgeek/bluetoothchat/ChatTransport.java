@@ -0,0 +1,34 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * The link layer {@link MyChatService} runs on. The service only ever talks
+ * to the transport, so the same accept, connect and read/write logic runs
+ * over Bluetooth RFCOMM on a device and over the in-memory or TCP stand-ins
+ * on a plain JVM.
+ *
+ * @see BluetoothTransport
+ * @see LoopbackTransport
+ * @see TcpTransport
+ */
+public interface ChatTransport {
+
+    /**
+     * Opens a server socket which accepts incoming connections for the service.
+     */
+    public ChatServerSocket listen(String name, UUID uuid, boolean secure) throws IOException;
+
+    /**
+     * Creates an unconnected socket to the peer at the given address.
+     * {@link ChatSocket#connect()} performs the actual connection.
+     */
+    public ChatSocket createSocket(String address, UUID uuid, boolean secure) throws IOException;
+
+    /**
+     * Stops anything that would slow down a connection attempt, such as a
+     * running Bluetooth discovery.
+     */
+    public void cancelDiscovery();
+}
@@ -0,0 +1,51 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+/**
+ * Snapshot of the frame compression of a link, see
+ * {@link MyChatService#getCompressionStats(String)}.
+ */
+public final class CompressionStats {
+    public final long framesCompressed;
+    public final long framesSkipped;    // too small, incompressible or no gain
+    public final long bytesIn;          // before compression, of the compressed frames
+    public final long bytesOut;         // after compression
+    public final long compressNanos;    // spent deflating, skipped frames included
+    public final long framesInflated;
+    public final long inflateNanos;
+
+    public CompressionStats(long framesCompressed, long framesSkipped, long bytesIn,
+                            long bytesOut, long compressNanos, long framesInflated,
+                            long inflateNanos) {
+        this.framesCompressed = framesCompressed;
+        this.framesSkipped = framesSkipped;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.compressNanos = compressNanos;
+        this.framesInflated = framesInflated;
+        this.inflateNanos = inflateNanos;
+    }
+
+    /**
+     * Returns compressed size over original size of the compressed frames,
+     * 1 while nothing was compressed.
+     */
+    public double ratio() {
+        return bytesIn == 0 ? 1 : (double) bytesOut / bytesIn;
+    }
+
+    /**
+     * Returns the bytes compression kept off the link per millisecond spent
+     * deflating. A net win when the link carries fewer bytes per
+     * millisecond than this.
+     */
+    public double savedBytesPerMilli() {
+        return compressNanos == 0 ? 0 : (bytesIn - bytesOut) * 1e6 / compressNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "compressed " + framesCompressed + " frames (skipped " + framesSkipped
+                + ") to " + Math.round(ratio() * 100) + "% in " + compressNanos / 1000
+                + "us, inflated " + framesInflated + " in " + inflateNanos / 1000 + "us";
+    }
+}
@@ -0,0 +1,191 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holder of a {@link MyChatService} connection state. Changing and reading
+ * the state is lock-free, delivering the changes to listeners is serialized
+ * under a lock.
+ *
+ * Every change goes through a compare-and-set against the state the caller
+ * believes is current, and is checked against a fixed transition table, so a
+ * stale thread cannot overwrite the work of a newer one. Reading the state
+ * is a single volatile read.
+ *
+ * Each transition takes the next sequence number in the same compare-and-set,
+ * and listeners hear of transitions in that order: threads racing to change
+ * the state cannot deliver the older change last.
+ */
+public class ConnectionStateMachine {
+
+    /**
+     * Notified after every successful transition, one at a time and in the
+     * order they were made. Runs on the thread which made it, or on one which
+     * made a later transition while this one was being delivered.
+     */
+    public interface Listener {
+        void onStateChanged(int oldState, int newState);
+    }
+
+    // TRANSITIONS[from][to] is true when the move is legal
+    private static final boolean[][] TRANSITIONS = new boolean[4][4];
+
+    static {
+        allow(MyChatService.STATE_NONE, MyChatService.STATE_LISTEN);
+        allow(MyChatService.STATE_NONE, MyChatService.STATE_CONNECTING);
+
+        allow(MyChatService.STATE_LISTEN, MyChatService.STATE_NONE);
+        allow(MyChatService.STATE_LISTEN, MyChatService.STATE_CONNECTING);
+        allow(MyChatService.STATE_LISTEN, MyChatService.STATE_CONNECTED);
+
+        allow(MyChatService.STATE_CONNECTING, MyChatService.STATE_NONE);
+        allow(MyChatService.STATE_CONNECTING, MyChatService.STATE_LISTEN);
+        allow(MyChatService.STATE_CONNECTING, MyChatService.STATE_CONNECTED);
+
+        allow(MyChatService.STATE_CONNECTED, MyChatService.STATE_NONE);
+        allow(MyChatService.STATE_CONNECTED, MyChatService.STATE_LISTEN);
+        allow(MyChatService.STATE_CONNECTED, MyChatService.STATE_CONNECTING);
+    }
+
+    // The transition's sequence number in the high half, the state in the low one
+    private final AtomicLong mState = new AtomicLong(MyChatService.STATE_NONE);
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    // Transitions made but not delivered yet, by sequence number. Guarded by itself
+    private final TreeMap<Long, int[]> mPending = new TreeMap<Long, int[]>();
+    private long mNextDelivery = 1;
+    private boolean mDelivering;
+
+    private static void allow(int from, int to) {
+        TRANSITIONS[from][to] = true;
+    }
+
+    /**
+     * Returns true if the table allows moving from one state to the other.
+     */
+    public static boolean isAllowed(int from, int to) {
+        return from >= 0 && from < TRANSITIONS.length
+                && to >= 0 && to < TRANSITIONS.length
+                && TRANSITIONS[from][to];
+    }
+
+    /**
+     * Returns the current state.
+     */
+    public int get() {
+        return stateOf(mState.get());
+    }
+
+    private static int stateOf(long value) {
+        return (int) value;
+    }
+
+    private static long sequenceOf(long value) {
+        return value >>> 32;
+    }
+
+    /**
+     * Returns the value holding the next state and sequence number after current.
+     */
+    private static long next(long current, int next) {
+        return ((sequenceOf(current) + 1) << 32) | next;
+    }
+
+    /**
+     * Moves from expected to next, if the state still is expected.
+     *
+     * @return true if this call made the transition
+     * @throws IllegalStateException if the table does not allow the move
+     */
+    public boolean transition(int expected, int next) {
+        if (!isAllowed(expected, next)) {
+            throw new IllegalStateException("Illegal transition " + expected + " -> " + next);
+        }
+        while (true) {
+            long current = mState.get();
+            if (stateOf(current) != expected) {
+                return false;
+            }
+            long value = next(current, next);
+            if (mState.compareAndSet(current, value)) {
+                notifyListeners(sequenceOf(value), expected, next);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves to next from whatever the current state is, as long as the table
+     * allows it. Moving to the current state does nothing.
+     *
+     * @return the state before the call, or -1 if the move was not allowed
+     */
+    public int moveTo(int next) {
+        while (true) {
+            long current = mState.get();
+            int state = stateOf(current);
+            if (state == next) {
+                return state;
+            }
+            if (!isAllowed(state, next)) {
+                return -1;
+            }
+            long value = next(current, next);
+            if (mState.compareAndSet(current, value)) {
+                notifyListeners(sequenceOf(value), state, next);
+                return state;
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Queues a transition, then delivers the queued ones in sequence order
+     * unless another thread already is. Stops at a gap, the thread which made
+     * the missing transition takes over once it gets here.
+     */
+    private void notifyListeners(long sequence, int oldState, int newState) {
+        synchronized (mPending) {
+            mPending.put(sequence, new int[] {oldState, newState});
+            if (mDelivering) {
+                return;
+            }
+            mDelivering = true;
+        }
+        while (true) {
+            int[] transition;
+            synchronized (mPending) {
+                transition = mPending.remove(mNextDelivery);
+                if (transition == null) {
+                    mDelivering = false;
+                    return;
+                }
+                mNextDelivery++;
+            }
+            boolean delivered = false;
+            try {
+                for (Listener listener : mListeners) {
+                    listener.onStateChanged(transition[0], transition[1]);
+                }
+                delivered = true;
+            } finally {
+                if (!delivered) {
+                    // A listener threw, let the next caller deliver the rest
+                    synchronized (mPending) {
+                        mDelivering = false;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksums for file chunks.
+ *
+ * Uses java.util.zip.CRC32C where the runtime has it, Android 8.0 and
+ * Java 9 onwards, whose update is compiled to the CPU's CRC instructions.
+ * Older runtimes get a table driven implementation of the same polynomial.
+ */
+final class Crc32c {
+
+    // Reversed Castagnoli polynomial
+    private static final int POLYNOMIAL = 0x82f63b78;
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private static final Class<?> INTRINSIC = findIntrinsic();
+
+    private Crc32c() {
+    }
+
+    private static Class<?> findIntrinsic() {
+        try {
+            return Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if checksums come from the runtime's CRC32C.
+     */
+    static boolean isIntrinsic() {
+        return INTRINSIC != null;
+    }
+
+    /**
+     * Returns a new checksum. Like every Checksum it is not thread safe.
+     */
+    static Checksum newChecksum() {
+        if (INTRINSIC != null) {
+            try {
+                return (Checksum) INTRINSIC.getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                // Fall back to the table below
+            }
+        }
+        return new Software();
+    }
+
+    /**
+     * Returns the CRC32C of a range of bytes, using the given checksum.
+     */
+    static int compute(Checksum checksum, byte[] buffer, int offset, int length) {
+        checksum.reset();
+        checksum.update(buffer, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Byte at a time CRC32C for runtimes without java.util.zip.CRC32C.
+     */
+    static final class Software implements Checksum {
+        private int mCrc = 0xffffffff;
+
+        @Override
+        public void update(int b) {
+            mCrc = (mCrc >>> 8) ^ TABLE[(mCrc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            int crc = mCrc;
+            for (int i = offset; i < offset + length; i++) {
+                crc = (crc >>> 8) ^ TABLE[(crc ^ buffer[i]) & 0xff];
+            }
+            mCrc = crc;
+        }
+
+        @Override
+        public long getValue() {
+            return ~mCrc & 0xffffffffL;
+        }
+
+        @Override
+        public void reset() {
+            mCrc = 0xffffffff;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import com.rodgermajor.androidgeek.common.logger.mLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.zip.Checksum;
+
+/**
+ * Receiving side of a file transfer. Chunks are verified against their
+ * CRC32C and written in place as they arrive, in any order, to a .part file
+ * which is renamed once complete.
+ *
+ * Which chunks are safely on disk is recorded in a manifest next to the
+ * .part file, so a transfer cut short, even by a restart of the app, picks
+ * up from the verified chunks when the same file is offered again. The
+ * same file means the same peer, name, size, chunk size and modification
+ * time on the sender's side.
+ *
+ * Chunks arrive on the read loop of the connection, which must not wait for
+ * the disk: the manifest is saved every few chunks by a worker, and only
+ * when the link is lost or the transfer fails is it saved in place.
+ */
+class FileReceiver {
+    private static final String TAG = "FileReceiver";
+
+    // "FTM2", first bytes of a manifest
+    private static final int MANIFEST_MAGIC = 0x46544d32;
+
+    // Verified chunks between two manifest updates
+    private static final int MANIFEST_INTERVAL = 32;
+
+    final long mId;
+    final String mAddress;
+    private final FileTransferManager mManager;
+    private final File mTarget;
+    private final File mPartial;
+    private final File mManifest;
+    private final long mSize;
+    private final long mModified;
+    private final int mChunkSize;
+    private final int mChunkCount;
+    private final FileChannel mChannel;
+    private final Checksum mChecksum = Crc32c.newChecksum();
+    private final BitSet mReceived = new BitSet();
+    private final long mStartNanos = System.nanoTime();
+    private final long mResumedBytes;
+    private int mCumulative;
+    private int mUnrecorded;
+    private boolean mSaving;
+    private int mCorrupt;
+    private long mLastProgress;
+    private boolean mFinished;
+
+    // Held while the manifest is written, and while the files are closed, so a
+    // background save never runs into a finished transfer. Taken after this
+    private final Object mManifestLock = new Object();
+
+    /**
+     * @param modified Modification time of the file on the sender's side
+     */
+    FileReceiver(FileTransferManager manager, long id, String address, File target, long size,
+                 int chunkSize, long modified) throws IOException {
+        mManager = manager;
+        mId = id;
+        mAddress = address;
+        mTarget = target;
+        mPartial = new File(target.getPath() + ".part");
+        mManifest = new File(target.getPath() + ".manifest");
+        mSize = size;
+        mModified = modified;
+        mChunkSize = chunkSize;
+        mChunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        boolean resumed = mPartial.length() == size && readManifest();
+        if (!resumed) {
+            mReceived.clear();
+        }
+        RandomAccessFile file = new RandomAccessFile(mPartial, "rw");
+        if (!resumed) {
+            file.setLength(size);
+        }
+        mChannel = file.getChannel();
+        while (mReceived.get(mCumulative)) {
+            mCumulative++;
+        }
+        mResumedBytes = verifiedBytes();
+        if (resumed) {
+            mLog.i(TAG, "Resuming " + target.getName() + " with " + mReceived.cardinality()
+                    + " of " + mChunkCount + " chunks verified");
+        }
+    }
+
+    /**
+     * Loads the verified chunks of an earlier attempt, if its manifest
+     * describes the same file from the same peer.
+     */
+    private boolean readManifest() {
+        if (!mManifest.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mManifest)));
+            if (in.readInt() != MANIFEST_MAGIC || !in.readUTF().equals(mAddress)
+                    || in.readLong() != mModified || in.readLong() != mSize || in.readInt() != mChunkSize
+                    || in.readInt() != mChunkCount) {
+                return false;
+            }
+            for (int i = 0; i < mChunkCount; i += 8) {
+                int bits = in.readUnsignedByte();
+                for (int bit = 0; bit < 8 && i + bit < mChunkCount; bit++) {
+                    if ((bits & (1 << bit)) != 0) {
+                        mReceived.set(i + bit);
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            mLog.w(TAG, "Ignoring unreadable manifest " + mManifest.getName(), e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    mLog.e(TAG, "close() of " + mManifest.getName() + " failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the verified chunks. Their data is forced to disk first, so
+     * the manifest never claims a chunk the .part file may not hold. Called
+     * holding mManifestLock, with a copy of the received chunks.
+     */
+    private void writeManifest(BitSet received) throws IOException {
+        if (!mChannel.isOpen()) {
+            // Finished or failed meanwhile, which settled the manifest already
+            return;
+        }
+        mChannel.force(false);
+        File temp = new File(mManifest.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeUTF(mAddress);
+            out.writeLong(mModified);
+            out.writeLong(mSize);
+            out.writeInt(mChunkSize);
+            out.writeInt(mChunkCount);
+            for (int i = 0; i < mChunkCount; i += 8) {
+                int bits = 0;
+                for (int bit = 0; bit < 8 && i + bit < mChunkCount; bit++) {
+                    if (received.get(i + bit)) {
+                        bits |= 1 << bit;
+                    }
+                }
+                out.writeByte(bits);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mManifest)) {
+            throw new IOException("Cannot rename " + temp);
+        }
+    }
+
+    /**
+     * Saves the progress so far, called when the link to the sender is lost.
+     */
+    synchronized void checkpoint() {
+        if (mFinished || mUnrecorded == 0) {
+            return;
+        }
+        BitSet received = (BitSet) mReceived.clone();
+        mUnrecorded = 0;
+        try {
+            synchronized (mManifestLock) {
+                writeManifest(received);
+            }
+        } catch (IOException e) {
+            mLog.e(TAG, "Saving the manifest of " + mTarget.getName() + " failed", e);
+        }
+    }
+
+    /**
+     * Saves the progress so far on a worker, unless a save is running already.
+     */
+    private void saveInBackground() {
+        if (mSaving) {
+            return;
+        }
+        final BitSet received = (BitSet) mReceived.clone();
+        mSaving = true;
+        boolean started = mManager.startWorker(new WorkerPool.Worker("FileReceiver-manifest") {
+            @Override
+            protected void work() {
+                try {
+                    synchronized (mManifestLock) {
+                        writeManifest(received);
+                    }
+                } catch (IOException e) {
+                    mLog.e(TAG, "Saving the manifest of " + mTarget.getName() + " failed", e);
+                } finally {
+                    synchronized (FileReceiver.this) {
+                        mSaving = false;
+                    }
+                }
+            }
+
+            @Override
+            public void cancel() {
+                // Done as soon as the write is
+            }
+        });
+        if (started) {
+            mUnrecorded = 0;
+        } else {
+            // Tried again after the next chunk, or saved when the link goes
+            mSaving = false;
+        }
+    }
+
+    /**
+     * Accepts the offer, telling the sender which chunks it can skip: the
+     * number verified in order, then a bitmap of the ones verified beyond.
+     */
+    synchronized void accept() {
+        int beyond = mReceived.length() - mCumulative;
+        if (beyond < 0) {
+            beyond = 0;
+        }
+        // The bitmap has to fit a single message, the sender just resends the rest
+        beyond = Math.min(beyond, (FrameCodec.MAX_PAYLOAD - FileTransferManager.HEADER_SIZE - 16) * 8);
+        ByteBuffer out = FileTransferManager.message(FileTransferManager.OP_ACCEPT, mId,
+                4 + 4 + (beyond + 7) / 8);
+        out.putInt(mCumulative);
+        out.putInt(beyond);
+        for (int i = 0; i < beyond; i += 8) {
+            int bits = 0;
+            for (int bit = 0; bit < 8 && i + bit < beyond; bit++) {
+                if (mReceived.get(mCumulative + i + bit)) {
+                    bits |= 1 << bit;
+                }
+            }
+            out.put((byte) bits);
+        }
+        mManager.send(mAddress, MyConstants.CHANNEL_TRANSFER, out);
+    }
+
+    /**
+     * Returns true while this receiver writes the given file.
+     */
+    synchronized boolean isWriting(File target) {
+        return !mFinished && mTarget.equals(target);
+    }
+
+    int getChunkCount() {
+        return mChunkCount;
+    }
+
+    /**
+     * Verifies and writes a chunk, and acknowledges everything received so
+     * far. A chunk failing verification is asked for again right away.
+     */
+    synchronized void onChunk(int index, int crc, byte[] buffer, int offset, int length) {
+        if (mFinished) {
+            return;
+        }
+        long position = (long) index * mChunkSize;
+        if (index < 0 || index >= mChunkCount
+                || length != (int) Math.min(mChunkSize, mSize - position)) {
+            mLog.w(TAG, "Dropping malformed chunk " + index + " of " + mTarget.getName());
+            return;
+        }
+        if (!mReceived.get(index) && index >= mCumulative) {
+            if (Crc32c.compute(mChecksum, buffer, offset, length) != crc) {
+                mCorrupt++;
+                mLog.w(TAG, "Chunk " + index + " of " + mTarget.getName() + " failed verification");
+                ByteBuffer out = FileTransferManager.message(FileTransferManager.OP_NACK, mId, 4);
+                out.putInt(index);
+                mManager.send(mAddress, MyConstants.CHANNEL_TRANSFER, out);
+                return;
+            }
+            try {
+                ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+                while (data.hasRemaining()) {
+                    mChannel.write(data, position + data.position() - offset);
+                }
+                mReceived.set(index);
+                while (mReceived.get(mCumulative)) {
+                    mCumulative++;
+                }
+                if (++mUnrecorded >= MANIFEST_INTERVAL && mCumulative < mChunkCount) {
+                    saveInBackground();
+                }
+            } catch (IOException e) {
+                mLog.e(TAG, "Writing " + mTarget.getName() + " failed", e);
+                mManager.sendCancel(mAddress, mId, "Cannot store file");
+                fail(e.getMessage(), false);
+                return;
+            }
+        }
+        ack();
+        checkComplete();
+    }
+
+    /**
+     * Acknowledges the chunks received in order and, selectively, the
+     * first ones received beyond a gap.
+     */
+    private void ack() {
+        int sacks = 0;
+        for (int i = mReceived.nextSetBit(mCumulative); i >= 0 && sacks < FileTransferManager.MAX_SACKS;
+             i = mReceived.nextSetBit(i + 1)) {
+            sacks++;
+        }
+        ByteBuffer out = FileTransferManager.message(FileTransferManager.OP_ACK, mId, 4 + 2 + 4 * sacks);
+        out.putInt(mCumulative);
+        out.putShort((short) sacks);
+        for (int i = mReceived.nextSetBit(mCumulative); i >= 0 && sacks > 0;
+             i = mReceived.nextSetBit(i + 1)) {
+            out.putInt(i);
+            sacks--;
+        }
+        mManager.send(mAddress, MyConstants.CHANNEL_TRANSFER, out);
+    }
+
+    /**
+     * Finishes the transfer once every chunk is on disk, and reports progress.
+     */
+    synchronized void checkComplete() {
+        if (mFinished) {
+            return;
+        }
+        if (mCumulative < mChunkCount) {
+            long now = System.currentTimeMillis();
+            if (now - mLastProgress >= FileTransferManager.PROGRESS_INTERVAL_MS) {
+                mLastProgress = now;
+                post(TransferProgress.STATE_RUNNING);
+            }
+            return;
+        }
+        mFinished = true;
+        mManager.finished(this, true);
+        try {
+            synchronized (mManifestLock) {
+                mChannel.force(true);
+                mChannel.close();
+                if (mTarget.exists() && !mTarget.delete()) {
+                    throw new IOException("Cannot replace " + mTarget);
+                }
+                if (!mPartial.renameTo(mTarget)) {
+                    throw new IOException("Cannot rename " + mPartial);
+                }
+                if (mManifest.exists() && !mManifest.delete()) {
+                    mLog.w(TAG, "Cannot delete " + mManifest.getName());
+                }
+            }
+        } catch (IOException e) {
+            mLog.e(TAG, "Finishing " + mTarget.getName() + " failed", e);
+            post(TransferProgress.STATE_FAILED);
+            return;
+        }
+        mLog.i(TAG, "Received " + mTarget.getName() + (mCorrupt > 0
+                ? ", " + mCorrupt + " chunks resent after failing verification" : ""));
+        post(TransferProgress.STATE_DONE);
+    }
+
+    /**
+     * Gives up on the transfer.
+     *
+     * @param discard true to delete what was received, false to keep it
+     *                for the sender to resume later
+     */
+    synchronized void fail(String reason, boolean discard) {
+        if (mFinished) {
+            return;
+        }
+        if (!discard) {
+            checkpoint();
+        }
+        mFinished = true;
+        mManager.finished(this, false);
+        mLog.w(TAG, "Receiving " + mTarget.getName() + " failed: " + reason);
+        synchronized (mManifestLock) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                mLog.e(TAG, "close() of " + mPartial.getName() + " failed", e);
+            }
+            if (discard && (!mPartial.delete() || (mManifest.exists() && !mManifest.delete()))) {
+                mLog.w(TAG, "Cannot delete the partial " + mTarget.getName());
+            }
+        }
+        post(TransferProgress.STATE_FAILED);
+    }
+
+    private long verifiedBytes() {
+        return Math.min(mSize, (long) mReceived.cardinality() * mChunkSize);
+    }
+
+    private void post(int state) {
+        mManager.post(FileTransferManager.progress(mId, mTarget.getName(), true, state,
+                verifiedBytes(), mSize, mStartNanos, mResumedBytes));
+    }
+}
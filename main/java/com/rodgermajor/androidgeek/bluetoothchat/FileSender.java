@@ -0,0 +1,500 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import com.rodgermajor.androidgeek.common.logger.mLog;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * Sending side of a file transfer. Reads the file chunk by chunk with
+ * positional FileChannel reads, so only the chunks in flight are ever on
+ * the heap.
+ *
+ * When the link to the receiver is lost the transfer is suspended. Once the
+ * link is back it offers the file again and the receiver answers with the
+ * chunks it already verified, so only the others are sent.
+ */
+class FileSender {
+    private static final String TAG = "FileSender";
+
+    // How long the receiver may take to accept the offer
+    private static final long ACCEPT_TIMEOUT_MS = 30000;
+
+    // Bounds of the retransmit timeout, which follows the measured round trip
+    private static final long MIN_RTO_MS = 200;
+    private static final long MAX_RTO_MS = 5000;
+
+    // Retransmit timeout until the first round trip is measured
+    private static final long INITIAL_RTO_MS = 1000;
+
+    // Pause before resending a chunk whose write failed, a link may be resuming
+    private static final long RETRY_DELAY_MS = 250;
+
+    // Timeouts in a row without any progress before giving up
+    private static final int MAX_STRIKES = 6;
+
+    // How long writes may keep failing, while the link is down, before giving up
+    private static final long MAX_OUTAGE_MS = 60000;
+
+    /**
+     * A chunk on its way to the receiver.
+     */
+    private static final class Flight {
+        final long mSentAt;
+        final boolean mResent;
+        long mDeadline;
+        boolean mWriteFailed;
+
+        Flight(long sentAt, boolean resent, long deadline) {
+            mSentAt = sentAt;
+            mResent = resent;
+            mDeadline = deadline;
+        }
+    }
+
+    final long mId;
+    final String mAddress;
+    private final FileTransferManager mManager;
+    private final File mFile;
+    private final int mChunkSize;
+    private final int mWindow;
+    private final long mSize;
+    private final long mModified;
+    private final int mChunkCount;
+
+    // Guarded by this
+    private int mGeneration;
+    private boolean mRunning;
+    private boolean mSuspended;
+    private boolean mAccepted;
+    private String mFailure;
+    private int mNext;
+    private int mCumulative;
+    private final BitSet mAcked = new BitSet();
+    private final Map<Integer, Flight> mInFlight = new HashMap<Integer, Flight>();
+    private final ArrayDeque<Integer> mResend = new ArrayDeque<Integer>();
+    private final BitSet mSentOnce = new BitSet();
+    private int mStrikes;
+    private int mCorrupt;
+    private long mLastProgress;
+    private long mSmoothedRtt = -1;
+    private long mRttVariance;
+    private long mRto = INITIAL_RTO_MS;
+    private long mStartNanos;
+    private long mResumedBytes;
+    private long mLastPosted;
+
+    FileSender(FileTransferManager manager, long id, String address, File file, int chunkSize,
+               int window) {
+        mManager = manager;
+        mId = id;
+        mAddress = address;
+        mFile = file;
+        mChunkSize = chunkSize;
+        mWindow = window;
+        mSize = file.length();
+        mModified = file.lastModified();
+        mChunkCount = (int) ((mSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Starts offering the file, or offers it again after a suspension.
+     * Chunks which were in flight are forgotten, the receiver's answer to
+     * the offer tells which of them arrived.
+     *
+     * @return false if no worker was left to run the transfer
+     */
+    synchronized boolean start(WorkerPool workers) {
+        if (mFailure != null) {
+            return true;
+        }
+        // A pump still winding down from the suspension notices and quits
+        mGeneration++;
+        mRunning = true;
+        mSuspended = false;
+        mAccepted = false;
+        mInFlight.clear();
+        mResend.clear();
+        notifyAll();
+        return workers.start(new Pump(mGeneration));
+    }
+
+    /**
+     * Stops sending until {@link #start(WorkerPool)} is called again,
+     * because the link to the receiver is lost.
+     */
+    synchronized void suspend() {
+        if (mFailure != null || !mRunning) {
+            return;
+        }
+        mLog.i(TAG, "Suspending " + mFile.getName() + " until the link is back");
+        mSuspended = true;
+        mRunning = false;
+        post(TransferProgress.STATE_PAUSED);
+        notifyAll();
+    }
+
+    synchronized boolean isSuspended() {
+        return mSuspended;
+    }
+
+    /**
+     * Runs one attempt of the transfer, from the offer until the file is
+     * sent, the transfer fails or it is suspended.
+     */
+    private class Pump extends WorkerPool.Worker {
+        private final int mmGeneration;
+        private final Checksum mmChecksum = Crc32c.newChecksum();
+
+        Pump(int generation) {
+            super("FileSender-" + mFile.getName());
+            mmGeneration = generation;
+        }
+
+        @Override
+        protected void work() {
+            FileChannel channel = null;
+            boolean finished = true;
+            try {
+                channel = new FileInputStream(mFile).getChannel();
+                if (awaitAccept(this)) {
+                    pump(this, channel);
+                }
+            } catch (IOException e) {
+                mLog.e(TAG, "Sending " + mFile.getName() + " failed", e);
+                fail(e.getMessage());
+            } catch (InterruptedException e) {
+                fail("Interrupted");
+            } finally {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        mLog.e(TAG, "close() of " + mFile.getName() + " failed", e);
+                    }
+                }
+                synchronized (FileSender.this) {
+                    // A suspended transfer waits for the link, a newer pump owns a resumed one
+                    finished = mFailure != null || mCumulative >= mChunkCount;
+                }
+                if (finished) {
+                    mManager.finished(FileSender.this);
+                }
+            }
+        }
+
+        boolean isCurrent() {
+            return mmGeneration == mGeneration && !mSuspended && mFailure == null;
+        }
+
+        @Override
+        public void cancel() {
+            fail("Cancelled");
+        }
+    }
+
+    private void offer() {
+        byte[] name = mFile.getName().getBytes(FileTransferManager.UTF_8);
+        ByteBuffer out = FileTransferManager.message(FileTransferManager.OP_OFFER, mId,
+                8 + 4 + 2 + name.length + 8);
+        out.putLong(mSize);
+        out.putInt(mChunkSize);
+        out.putShort((short) name.length);
+        out.put(name);
+        out.putLong(mModified);
+        mManager.send(mAddress, MyConstants.CHANNEL_TRANSFER, out);
+    }
+
+    /**
+     * Waits for the receiver to accept, offering again every timeout in
+     * case the offer or its answer was lost with a link.
+     */
+    private boolean awaitAccept(Pump pump) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ACCEPT_TIMEOUT_MS;
+        while (true) {
+            offer();
+            synchronized (this) {
+                long retry = System.currentTimeMillis() + mRto;
+                mRto = Math.min(MAX_RTO_MS, mRto * 2);
+                while (!mAccepted && pump.isCurrent()) {
+                    long remaining = Math.min(retry, deadline) - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    wait(remaining);
+                }
+                if (!pump.isCurrent()) {
+                    return false;
+                }
+                if (mAccepted) {
+                    mStartNanos = System.nanoTime();
+                    mResumedBytes = ackedBytes();
+                    mLastProgress = System.currentTimeMillis();
+                    mRto = INITIAL_RTO_MS;
+                    return true;
+                }
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                fail("Offer not accepted");
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Keeps the window full until every chunk is acknowledged.
+     */
+    private void pump(Pump pump, FileChannel channel) throws IOException, InterruptedException {
+        while (true) {
+            int index;
+            synchronized (this) {
+                while (true) {
+                    if (!pump.isCurrent()) {
+                        return;
+                    }
+                    if (mCumulative >= mChunkCount) {
+                        mLog.i(TAG, "Sent " + mFile.getName() + (mCorrupt > 0
+                                ? ", resent " + mCorrupt + " chunks which failed verification" : ""));
+                        post(TransferProgress.STATE_DONE);
+                        return;
+                    }
+                    long timeout = expireInFlight();
+                    index = nextChunk();
+                    if (index >= 0) {
+                        long now = System.currentTimeMillis();
+                        mInFlight.put(index, new Flight(now, mSentOnce.get(index), now + mRto));
+                        mSentOnce.set(index);
+                        break;
+                    }
+                    wait(Math.max(1, timeout));
+                }
+            }
+            sendChunk(pump, channel, index);
+        }
+    }
+
+    /**
+     * Returns the chunk to send next, a lost one first, or -1 while the
+     * window is full or nothing is left.
+     */
+    private int nextChunk() {
+        if (mInFlight.size() >= mWindow) {
+            return -1;
+        }
+        while (!mResend.isEmpty()) {
+            int index = mResend.pollFirst();
+            if (index >= mCumulative && !mAcked.get(index) && !mInFlight.containsKey(index)) {
+                return index;
+            }
+        }
+        while (mNext < mChunkCount) {
+            int index = mNext++;
+            if (!mAcked.get(index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves chunks which were not acknowledged in time to the resend queue.
+     *
+     * @return Milliseconds until the next chunk in flight times out
+     */
+    private long expireInFlight() {
+        long now = System.currentTimeMillis();
+        long next = MAX_RTO_MS;
+        boolean expired = false;
+        for (Iterator<Map.Entry<Integer, Flight>> it = mInFlight.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Flight> entry = it.next();
+            long remaining = entry.getValue().mDeadline - now;
+            if (remaining <= 0) {
+                it.remove();
+                mResend.addLast(entry.getKey());
+                // A failed write says nothing about the round trip
+                expired |= !entry.getValue().mWriteFailed;
+            } else {
+                next = Math.min(next, remaining);
+            }
+        }
+        if (expired) {
+            // Back off until the receiver answers again
+            mRto = Math.min(MAX_RTO_MS, mRto * 2);
+            if (++mStrikes > MAX_STRIKES) {
+                fail("Peer stopped acknowledging");
+            }
+        } else if (now - mLastProgress > MAX_OUTAGE_MS) {
+            fail("Link lost");
+        }
+        return next;
+    }
+
+    /**
+     * Folds the round trip of an acknowledged chunk into the retransmit
+     * timeout, the way TCP does.
+     */
+    private void sampleRtt(Flight flight) {
+        if (flight == null || flight.mResent) {
+            // The ack may answer either copy, the sample would be ambiguous
+            return;
+        }
+        long rtt = System.currentTimeMillis() - flight.mSentAt;
+        if (mSmoothedRtt < 0) {
+            mSmoothedRtt = rtt;
+            mRttVariance = rtt / 2;
+        } else {
+            mRttVariance = (3 * mRttVariance + Math.abs(mSmoothedRtt - rtt)) / 4;
+            mSmoothedRtt = (7 * mSmoothedRtt + rtt) / 8;
+        }
+        mRto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, mSmoothedRtt + 4 * mRttVariance));
+    }
+
+    private void sendChunk(Pump pump, FileChannel channel, final int index) throws IOException {
+        long position = (long) index * mChunkSize;
+        int length = (int) Math.min(mChunkSize, mSize - position);
+        ByteBuffer out = FileTransferManager.message(FileTransferManager.OP_CHUNK, mId,
+                4 + 4 + length);
+        out.putInt(index);
+        int dataOffset = FileTransferManager.HEADER_SIZE + 4 + 4;
+        out.position(dataOffset);
+        while (out.hasRemaining()) {
+            int read = channel.read(out, position + out.position() - dataOffset);
+            if (read < 0) {
+                throw new EOFException(mFile.getName() + " shrank while sending");
+            }
+        }
+        out.putInt(FileTransferManager.HEADER_SIZE + 4,
+                Crc32c.compute(pump.mmChecksum, out.array(), dataOffset, length));
+        WriteHandle handle = mManager.send(mAddress, MyConstants.CHANNEL_BULK, out);
+        handle.setListener(new WriteHandle.Listener() {
+            @Override
+            public void onComplete(WriteHandle handle) {
+                if (!handle.isSuccess()) {
+                    requeue(index);
+                }
+            }
+        });
+    }
+
+    /**
+     * Brings the timeout of a chunk whose write failed forward, so it is
+     * resent soon but a full queue or a resuming link still gets a pause.
+     */
+    private synchronized void requeue(int index) {
+        Flight flight = mInFlight.get(index);
+        if (flight != null) {
+            flight.mWriteFailed = true;
+            flight.mDeadline = Math.min(flight.mDeadline, System.currentTimeMillis() + RETRY_DELAY_MS);
+            notifyAll();
+        }
+    }
+
+    /**
+     * The receiver accepted the offer.
+     *
+     * @param cumulative Chunks it holds in order
+     * @param bitmap     Which of the following chunks it holds too, one bit each
+     * @param count      Number of bits in the bitmap
+     */
+    synchronized void onAccepted(int cumulative, byte[] bitmap, int offset, int count) {
+        if (mAccepted || mFailure != null) {
+            return;
+        }
+        // The receiver is the authority, it may have lost what it had not recorded
+        mCumulative = Math.min(Math.max(0, cumulative), mChunkCount);
+        mNext = mCumulative;
+        mAcked.clear();
+        mSentOnce.clear();
+        for (int i = 0; i < count && mCumulative + i < mChunkCount; i++) {
+            if ((bitmap[offset + i / 8] & (1 << (i % 8))) != 0) {
+                mAcked.set(mCumulative + i);
+            }
+        }
+        if (mCumulative > 0 || !mAcked.isEmpty()) {
+            mLog.i(TAG, "Resuming " + mFile.getName() + " with "
+                    + (mCumulative + mAcked.cardinality()) + " of " + mChunkCount + " chunks verified");
+        }
+        mAccepted = true;
+        notifyAll();
+    }
+
+    synchronized void onAck(int cumulative, int[] sacks) {
+        if (!mAccepted) {
+            // Left over from before a suspension, the next accept sets the state
+            return;
+        }
+        boolean progress = false;
+        while (mCumulative < Math.min(cumulative, mChunkCount)) {
+            sampleRtt(mInFlight.remove(mCumulative));
+            mCumulative++;
+            progress = true;
+        }
+        for (int index : sacks) {
+            if (index >= mCumulative && index < mChunkCount && !mAcked.get(index)) {
+                mAcked.set(index);
+                sampleRtt(mInFlight.remove(index));
+                progress = true;
+            }
+        }
+        // Everything below the cumulative point is covered, forget it
+        mAcked.clear(0, mCumulative);
+        mSentOnce.clear(0, mCumulative);
+        if (progress) {
+            mStrikes = 0;
+            long now = System.currentTimeMillis();
+            mLastProgress = now;
+            if (now - mLastPosted >= FileTransferManager.PROGRESS_INTERVAL_MS) {
+                mLastPosted = now;
+                post(TransferProgress.STATE_RUNNING);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * The receiver got a chunk which failed verification, send it again
+     * right away.
+     */
+    synchronized void onNack(int index) {
+        if (mInFlight.remove(index) != null) {
+            mCorrupt++;
+            mResend.addFirst(index);
+            notifyAll();
+        }
+    }
+
+    synchronized void fail(String reason) {
+        if (mFailure != null || mCumulative >= mChunkCount) {
+            return;
+        }
+        mFailure = reason;
+        mLog.w(TAG, "Sending " + mFile.getName() + " failed: " + reason);
+        mManager.sendCancel(mAddress, mId, reason);
+        post(TransferProgress.STATE_FAILED);
+        notifyAll();
+        if (mSuspended) {
+            // No pump left to report it
+            mManager.finished(this);
+        }
+    }
+
+    private long ackedBytes() {
+        return Math.min(mSize, (long) (mCumulative + mAcked.cardinality()) * mChunkSize);
+    }
+
+    private void post(int state) {
+        mManager.post(FileTransferManager.progress(mId, mFile.getName(), false, state,
+                ackedBytes(), mSize, mStartNanos == 0 ? System.nanoTime() : mStartNanos,
+                mResumedBytes));
+    }
+}
@@ -0,0 +1,422 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import com.rodgermajor.androidgeek.common.logger.mLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Moves files between peers on top of the logical channels of a
+ * {@link MyChatService}.
+ *
+ * The sender offers a file on CHANNEL_TRANSFER and, once the receiver
+ * accepts, streams it as fixed size chunks on CHANNEL_BULK, keeping a window
+ * of chunks in flight. The receiver verifies the CRC32C of every chunk,
+ * writes it in place and answers with an ack holding the number of chunks
+ * received in order plus the chunks received beyond that, so the sender
+ * only resends what is really missing. A chunk failing verification is
+ * asked for again with a NACK.
+ *
+ * A transfer whose link is lost is suspended and offered again once the
+ * link is back. The receiver keeps a manifest of its verified chunks on
+ * disk and accepts with a bitmap of them, so the transfer carries on from
+ * there instead of from the start. The offer carries the modification time
+ * of the file, so chunks of an older version of it are not reused.
+ *
+ * Messages, all starting with an opcode byte and the transfer id:
+ * <pre>
+ *   OFFER   size:8 chunkSize:4 nameLength:2 name modified:8
+ *   ACCEPT  cumulative:4 count:4 bitmap of the count chunks after cumulative
+ *   CHUNK   index:4 crc32c:4 data
+ *   ACK     cumulative:4 count:2 index:4 ...
+ *   CANCEL  reason (UTF-8)
+ *   NACK    index:4
+ * </pre>
+ */
+public class FileTransferManager {
+    private static final String TAG = "FileTransferManager";
+
+    static final int OP_OFFER = 1;
+    static final int OP_ACCEPT = 2;
+    static final int OP_CHUNK = 3;
+    static final int OP_ACK = 4;
+    static final int OP_CANCEL = 5;
+    static final int OP_NACK = 6;
+
+    // Opcode and transfer id
+    static final int HEADER_SIZE = 1 + 8;
+
+    // Chunk bytes per CHUNK message
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    // Chunks in flight per transfer
+    public static final int DEFAULT_WINDOW = 8;
+
+    // Selective acks carried per ACK
+    static final int MAX_SACKS = 32;
+
+    // Finished incoming transfers remembered to answer late chunks
+    private static final int COMPLETED_HISTORY = 16;
+
+    // Progress is posted at most this often, plus once at the end
+    static final long PROGRESS_INTERVAL_MS = 250;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Where the manager sends its messages, MyChatService in practice.
+     */
+    interface Link {
+        WriteHandle write(String address, int channel, byte[] payload);
+    }
+
+    private final Link mLink;
+    private final ChatEventBus mEvents;
+    private final WorkerPool mWorkers;
+    private final Map<Long, FileSender> mSenders = new ConcurrentHashMap<Long, FileSender>();
+    private final Map<Long, FileReceiver> mReceivers = new ConcurrentHashMap<Long, FileReceiver>();
+    private final Map<Long, Integer> mCompleted = new LinkedHashMap<Long, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return size() > COMPLETED_HISTORY;
+        }
+    };
+    private final Random mRandom = new Random();
+    private volatile File mDownloadDirectory;
+    private volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int mWindow = DEFAULT_WINDOW;
+
+    FileTransferManager(Link link, ChatEventBus events, WorkerPool workers) {
+        mLink = link;
+        mEvents = events;
+        mWorkers = workers;
+    }
+
+    /**
+     * Sets where incoming files are stored. Offers are declined while unset.
+     */
+    public void setDownloadDirectory(File directory) {
+        mDownloadDirectory = directory;
+    }
+
+    /**
+     * Sets the chunk size and window of transfers started from now on.
+     */
+    public void setChunking(int chunkSize, int window) {
+        // A chunk plus its header has to fit a single message
+        mChunkSize = Math.max(1, Math.min(chunkSize, FrameCodec.MAX_PAYLOAD - HEADER_SIZE - 8));
+        mWindow = Math.max(1, window);
+    }
+
+    /**
+     * Starts sending a file to a peer.
+     *
+     * @return The id of the transfer, as found in its TransferProgress
+     */
+    public long send(String address, File file) throws IOException {
+        long id;
+        synchronized (mRandom) {
+            id = mRandom.nextLong();
+        }
+        FileSender sender = new FileSender(this, id, address, file, mChunkSize, mWindow);
+        mSenders.put(id, sender);
+        if (!sender.start(mWorkers)) {
+            mSenders.remove(id);
+            throw new IOException("No worker left to send " + file.getName());
+        }
+        return id;
+    }
+
+    /**
+     * Runs a worker of a transfer, such as a receiver saving its manifest.
+     *
+     * @return false if the pool has no thread left
+     */
+    boolean startWorker(WorkerPool.Worker worker) {
+        return mWorkers.start(worker);
+    }
+
+    /**
+     * Cancels a transfer in either direction.
+     */
+    public void cancel(long id) {
+        FileSender sender = mSenders.get(id);
+        if (sender != null) {
+            sender.fail("Cancelled");
+        }
+        FileReceiver receiver = mReceivers.get(id);
+        if (receiver != null) {
+            sendCancel(receiver.mAddress, id, "Cancelled");
+            receiver.fail("Cancelled", true);
+        }
+    }
+
+    /**
+     * Fails every transfer, used when the service stops. Incoming files
+     * keep what was verified, for the sender to resume later.
+     */
+    void cancelAll(String reason) {
+        for (FileSender sender : mSenders.values()) {
+            sender.fail(reason);
+        }
+        for (FileReceiver receiver : mReceivers.values()) {
+            receiver.fail(reason, false);
+        }
+    }
+
+    /**
+     * Suspends the transfers with a peer whose link was lost.
+     */
+    void onLinkLost(String address) {
+        for (FileSender sender : mSenders.values()) {
+            if (sender.mAddress.equals(address)) {
+                sender.suspend();
+            }
+        }
+        for (FileReceiver receiver : mReceivers.values()) {
+            if (receiver.mAddress.equals(address)) {
+                receiver.checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Resumes the transfers to a peer whose link is back.
+     */
+    void onLinkUp(String address) {
+        for (FileSender sender : mSenders.values()) {
+            if (sender.mAddress.equals(address) && sender.isSuspended()
+                    && !sender.start(mWorkers)) {
+                sender.fail("No worker left");
+            }
+        }
+    }
+
+    /**
+     * Handles a message of CHANNEL_TRANSFER or CHANNEL_BULK. Called on the
+     * read loop of the connection, the buffer is only valid during the call.
+     */
+    void onMessage(String address, byte[] buffer, int offset, int length) {
+        if (length < HEADER_SIZE) {
+            mLog.w(TAG, "Short transfer message from " + address);
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(buffer, offset, length);
+        int op = in.get();
+        long id = in.getLong();
+        try {
+            switch (op) {
+                case OP_OFFER:
+                    onOffer(address, id, in);
+                    break;
+                case OP_ACCEPT: {
+                    FileSender sender = mSenders.get(id);
+                    if (sender != null) {
+                        int cumulative = in.getInt();
+                        int count = in.getInt();
+                        if (count < 0 || (count + 7) / 8 > in.remaining()) {
+                            throw new IllegalArgumentException("Bad bitmap of " + count);
+                        }
+                        sender.onAccepted(cumulative, buffer, in.position(), count);
+                    }
+                    break;
+                }
+                case OP_CHUNK: {
+                    FileReceiver receiver = mReceivers.get(id);
+                    if (receiver != null) {
+                        int index = in.getInt();
+                        int crc = in.getInt();
+                        receiver.onChunk(index, crc, buffer, in.position(), in.remaining());
+                    } else {
+                        ackCompleted(address, id);
+                    }
+                    break;
+                }
+                case OP_ACK: {
+                    FileSender sender = mSenders.get(id);
+                    if (sender != null) {
+                        int cumulative = in.getInt();
+                        int[] sacks = new int[Math.min(in.getShort() & 0xffff, MAX_SACKS)];
+                        for (int i = 0; i < sacks.length; i++) {
+                            sacks[i] = in.getInt();
+                        }
+                        sender.onAck(cumulative, sacks);
+                    }
+                    break;
+                }
+                case OP_CANCEL: {
+                    String reason = new String(buffer, in.position(), in.remaining(), UTF_8);
+                    FileSender sender = mSenders.get(id);
+                    if (sender != null) {
+                        sender.fail("Peer: " + reason);
+                    }
+                    FileReceiver receiver = mReceivers.get(id);
+                    if (receiver != null) {
+                        receiver.fail("Peer: " + reason, false);
+                    }
+                    break;
+                }
+                case OP_NACK: {
+                    FileSender sender = mSenders.get(id);
+                    if (sender != null) {
+                        sender.onNack(in.getInt());
+                    }
+                    break;
+                }
+                default:
+                    mLog.w(TAG, "Ignoring transfer message " + op + " from " + address);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // A malformed message must not take the read loop down
+            mLog.w(TAG, "Malformed transfer message " + op + " from " + address, e);
+        }
+    }
+
+    private void onOffer(String address, long id, ByteBuffer in) {
+        FileReceiver known = mReceivers.get(id);
+        if (known != null) {
+            // Resumed after a lost link, or our answer was lost with it
+            known.accept();
+            return;
+        }
+        long size = in.getLong();
+        int chunkSize = in.getInt();
+        byte[] nameBytes = new byte[in.getShort() & 0xffff];
+        in.get(nameBytes);
+        String name = new File(new String(nameBytes, UTF_8)).getName();
+        // Senders which predate the fingerprint leave it out
+        long modified = in.remaining() >= 8 ? in.getLong() : 0;
+
+        File directory = mDownloadDirectory;
+        if (directory == null) {
+            sendCancel(address, id, "Not accepting files");
+            return;
+        }
+        // The chunk count has to fit an int, chunkSize is small enough for the product
+        if (chunkSize <= 0 || chunkSize > FrameCodec.MAX_PAYLOAD || size < 0
+                || size > (long) Integer.MAX_VALUE * chunkSize) {
+            sendCancel(address, id, "Bad offer");
+            return;
+        }
+        File target = new File(directory, name);
+        try {
+            // Never let the peer pick a path outside the download directory: getName() leaves
+            // "", "." and "..", which name the directory or its parent
+            if (name.isEmpty() || name.equals(".") || name.equals("..")
+                    || !directory.getCanonicalFile().equals(target.getCanonicalFile().getParentFile())) {
+                mLog.w(TAG, "Refusing file name " + name + " from " + address);
+                sendCancel(address, id, "Bad file name");
+                return;
+            }
+        } catch (IOException e) {
+            sendCancel(address, id, "Bad file name");
+            return;
+        }
+        // A partial file from an earlier attempt already holds its share of the space
+        File partial = new File(target.getPath() + ".part");
+        long needed = size - (partial.isFile() ? Math.min(partial.length(), size) : 0);
+        if (directory.isDirectory() && needed > directory.getUsableSpace()) {
+            sendCancel(address, id, "Not enough space");
+            return;
+        }
+        for (FileReceiver stale : mReceivers.values()) {
+            if (stale.isWriting(target)) {
+                // The sender started over, say after a restart, the new
+                // receiver picks the verified chunks up from the manifest
+                stale.fail("Offered again", false);
+            }
+        }
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            FileReceiver receiver = new FileReceiver(this, id, address, target, size, chunkSize,
+                    modified);
+            mReceivers.put(id, receiver);
+            mLog.i(TAG, "Receiving " + name + " (" + size + " bytes) from " + address);
+            receiver.accept();
+            receiver.checkComplete();
+        } catch (IOException e) {
+            mLog.e(TAG, "Cannot receive " + name, e);
+            sendCancel(address, id, "Cannot store file");
+        }
+    }
+
+    /**
+     * Returns a message array with the header filled in and room for
+     * extra bytes, positioned after the header.
+     */
+    static ByteBuffer message(int op, long id, int extra) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + extra);
+        out.put((byte) op);
+        out.putLong(id);
+        return out;
+    }
+
+    WriteHandle send(String address, int channel, ByteBuffer message) {
+        return mLink.write(address, channel, message.array());
+    }
+
+    void sendCancel(String address, long id, String reason) {
+        byte[] text = reason.getBytes(UTF_8);
+        ByteBuffer out = message(OP_CANCEL, id, text.length);
+        out.put(text);
+        send(address, MyConstants.CHANNEL_TRANSFER, out);
+    }
+
+    void finished(FileSender sender) {
+        mSenders.remove(sender.mId);
+    }
+
+    void finished(FileReceiver receiver, boolean complete) {
+        if (complete) {
+            synchronized (mCompleted) {
+                mCompleted.put(receiver.mId, receiver.getChunkCount());
+            }
+        }
+        mReceivers.remove(receiver.mId);
+    }
+
+    /**
+     * Acknowledges a chunk of a transfer we already finished, the sender
+     * missed our last ack.
+     */
+    private void ackCompleted(String address, long id) {
+        Integer chunks;
+        synchronized (mCompleted) {
+            chunks = mCompleted.get(id);
+        }
+        if (chunks != null) {
+            ByteBuffer out = message(OP_ACK, id, 4 + 2);
+            out.putInt(chunks);
+            out.putShort((short) 0);
+            send(address, MyConstants.CHANNEL_TRANSFER, out);
+        }
+    }
+
+    void post(TransferProgress progress) {
+        mEvents.transferProgress(progress);
+    }
+
+    /**
+     * Builds a progress snapshot, with the throughput since the transfer
+     * started or resumed, and the time the rest takes at that rate.
+     */
+    static TransferProgress progress(long id, String name, boolean incoming, int state,
+                                     long done, long total, long startNanos, long startBytes) {
+        long elapsedMs = Math.max(1, (System.nanoTime() - startNanos) / 1000000);
+        long rate = Math.max(0, done - startBytes) * 1000 / elapsedMs;
+        long eta = rate == 0 ? -1 : (total - done) * 1000 / rate;
+        if (state == TransferProgress.STATE_DONE) {
+            eta = 0;
+        }
+        return new TransferProgress(id, name, incoming, state, done, total, rate, eta);
+    }
+}
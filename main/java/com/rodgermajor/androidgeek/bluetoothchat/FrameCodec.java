@@ -0,0 +1,123 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wire format for the frames exchanged between two chat devices.
+ *
+ * Every frame starts with a fixed size header followed by the payload:
+ * <pre>
+ *   +--------+--------+--------+--------+--------+--------+------------
+ *   |      payload length (big endian)  |  type  | flags  | payload ...
+ *   +--------+--------+--------+--------+--------+--------+------------
+ * </pre>
+ * The length only counts the payload, so an empty frame is just a header.
+ * Data frames start their payload with the number of their logical channel.
+ * Use {@link FrameDecoder} to turn a byte stream back into frames.
+ */
+public final class FrameCodec {
+
+    // Size of the fixed frame header in bytes
+    public static final int HEADER_SIZE = 6;
+
+    // Largest payload a single frame may carry
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    // Frame types
+    public static final int TYPE_DATA = 1;      // a chat message for the UI
+    public static final int TYPE_HELLO = 2;     // session id and received count, first frame on a link
+    public static final int TYPE_ACK = 3;       // count of data frames received so far
+    public static final int TYPE_PING = 4;      // heartbeat, carries the sender's timestamp
+    public static final int TYPE_PONG = 5;      // answer to a ping, echoes its payload
+    public static final int TYPE_CREDIT = 6;    // receiver grants the sender more data frames
+
+    // Frame flags
+    public static final int FLAG_NONE = 0;
+    public static final int FLAG_MORE = 0x01;       // more fragments of this message follow
+    public static final int FLAG_CONTINUED = 0x02;  // continues the message of the previous fragment
+    public static final int FLAG_COMPRESSED = 0x04; // payload after the channel byte is deflated
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Writes a frame header into the given array.
+     *
+     * @param dst    Destination array, needs at least {@link #HEADER_SIZE} bytes from off
+     * @param off    Position of the header in dst
+     * @param type   One of the TYPE_ constants
+     * @param flags  Bitwise or of FLAG_ constants
+     * @param length Length of the payload which follows the header
+     */
+    public static void writeHeader(byte[] dst, int off, int type, int flags, int length) {
+        dst[off] = (byte) (length >>> 24);
+        dst[off + 1] = (byte) (length >>> 16);
+        dst[off + 2] = (byte) (length >>> 8);
+        dst[off + 3] = (byte) length;
+        dst[off + 4] = (byte) type;
+        dst[off + 5] = (byte) flags;
+    }
+
+    /**
+     * Returns the payload length stored in the header at off.
+     */
+    public static int readLength(byte[] src, int off) {
+        return ((src[off] & 0xff) << 24)
+                | ((src[off + 1] & 0xff) << 16)
+                | ((src[off + 2] & 0xff) << 8)
+                | (src[off + 3] & 0xff);
+    }
+
+    /**
+     * Returns the frame type stored in the header at off.
+     */
+    public static int readType(byte[] src, int off) {
+        return src[off + 4] & 0xff;
+    }
+
+    /**
+     * Returns the frame flags stored in the header at off.
+     */
+    public static int readFlags(byte[] src, int off) {
+        return src[off + 5] & 0xff;
+    }
+
+    /**
+     * Encodes a complete frame into dst.
+     *
+     * @return The number of bytes written, header included
+     */
+    public static int encode(int type, int flags, byte[] payload, int off, int len,
+                             byte[] dst, int dstOff) {
+        checkLength(len);
+        writeHeader(dst, dstOff, type, flags, len);
+        System.arraycopy(payload, off, dst, dstOff + HEADER_SIZE, len);
+        return HEADER_SIZE + len;
+    }
+
+    /**
+     * Writes a complete frame to the stream. Small frames are assembled in the
+     * scratch array so that header and payload leave in a single write.
+     *
+     * @param scratch Reusable array owned by the caller, at least {@link #HEADER_SIZE} long
+     */
+    public static void write(OutputStream out, byte[] scratch, int type, int flags,
+                             byte[] payload, int off, int len) throws IOException {
+        checkLength(len);
+        if (HEADER_SIZE + len <= scratch.length) {
+            out.write(scratch, 0, encode(type, flags, payload, off, len, scratch, 0));
+        } else {
+            writeHeader(scratch, 0, type, flags, len);
+            out.write(scratch, 0, HEADER_SIZE);
+            out.write(payload, off, len);
+        }
+    }
+
+    private static void checkLength(int len) {
+        if (len < 0 || len > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Frame payload of " + len
+                    + " bytes exceeds " + MAX_PAYLOAD);
+        }
+    }
+}
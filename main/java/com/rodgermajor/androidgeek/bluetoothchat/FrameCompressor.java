@@ -0,0 +1,202 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses data frames of one connection with deflate.
+ *
+ * A frame is only compressed when it is at least the threshold long, when
+ * a sample of it does not look like already compressed data, and when
+ * deflate actually makes it smaller. The deflater and inflater, and every
+ * buffer, are reused from frame to frame.
+ *
+ * Compression runs on the writer thread and inflation on the reader thread
+ * of the connection, the statistics may be read from any thread.
+ */
+class FrameCompressor {
+
+    // Bytes sampled for the entropy estimate
+    private static final int SAMPLE_SIZE = 256;
+
+    // Samples above this share of the highest possible entropy of their
+    // size are taken to be compressed already. Random bytes score over 0.87
+    // even in small samples, text stays below 0.8.
+    private static final double MAX_ENTROPY_RATIO = 0.85;
+
+    // ENTROPY_TERMS[c] is c * log2(c), for byte counts within a sample
+    private static final double[] ENTROPY_TERMS = new double[SAMPLE_SIZE + 1];
+
+    static {
+        for (int c = 1; c <= SAMPLE_SIZE; c++) {
+            ENTROPY_TERMS[c] = c * Math.log(c) / Math.log(2);
+        }
+    }
+
+    private final int mThreshold;
+
+    // Writer thread only
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final int[] mHistogram = new int[256];
+
+    // Reader thread only
+    private final Inflater mInflater = new Inflater();
+    private byte[] mInflated = new byte[4 * 1024];
+
+    // Statistics, guarded by this
+    private long mFramesCompressed;
+    private long mFramesSkipped;
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mCompressNanos;
+    private long mFramesInflated;
+    private long mInflateNanos;
+
+    /**
+     * @param threshold Frames shorter than this are sent as they are
+     */
+    FrameCompressor(int threshold) {
+        mThreshold = Math.max(1, threshold);
+    }
+
+    /**
+     * Compresses src into dst if that is worth it.
+     *
+     * @param maxLength Room in dst, compressed frames have to be shorter
+     *                  than the original anyway
+     * @return The compressed length, or -1 to send the frame as it is
+     */
+    int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int maxLength) {
+        if (len < mThreshold || looksCompressed(src, off, len)) {
+            skipped();
+            return -1;
+        }
+        long start = System.nanoTime();
+        mDeflater.reset();
+        mDeflater.setInput(src, off, len);
+        mDeflater.finish();
+        int room = Math.min(maxLength, len - 1);
+        int n = 0;
+        while (n < room && !mDeflater.finished()) {
+            n += mDeflater.deflate(dst, dstOff + n, room - n);
+        }
+        boolean smaller = mDeflater.finished();
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            mCompressNanos += nanos;
+            if (smaller) {
+                mFramesCompressed++;
+                mBytesIn += len;
+                mBytesOut += n;
+            } else {
+                mFramesSkipped++;
+            }
+        }
+        return smaller ? n : -1;
+    }
+
+    private synchronized void skipped() {
+        mFramesSkipped++;
+    }
+
+    /**
+     * Estimates the Shannon entropy of the start of the frame. Compressed,
+     * encrypted and media data come close to 8 bits per byte.
+     */
+    private boolean looksCompressed(byte[] src, int off, int len) {
+        int n = Math.min(len, SAMPLE_SIZE);
+        if (n < SAMPLE_SIZE / 2) {
+            // Too little to tell, let deflate decide
+            return false;
+        }
+        int[] histogram = mHistogram;
+        for (int i = 0; i < n; i++) {
+            histogram[src[off + i] & 0xff]++;
+        }
+        double sum = 0;
+        for (int i = 0; i < 256; i++) {
+            int c = histogram[i];
+            if (c != 0) {
+                sum += ENTROPY_TERMS[c];
+                histogram[i] = 0;
+            }
+        }
+        // H = log2(n) - sum(c * log2(c)) / n, at most log2(n)
+        double maxEntropy = ENTROPY_TERMS[n] / n;
+        double entropy = maxEntropy - sum / n;
+        return entropy > MAX_ENTROPY_RATIO * maxEntropy;
+    }
+
+    /**
+     * Inflates a compressed frame into a buffer owned by this compressor,
+     * valid until the next call.
+     *
+     * @return The inflated length, the bytes are in {@link #inflated()}
+     * @throws IOException If the frame is corrupt or inflates beyond
+     *                     {@link FrameCodec#MAX_PAYLOAD}
+     */
+    int inflate(byte[] src, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        mInflater.reset();
+        mInflater.setInput(src, off, len);
+        int n = 0;
+        try {
+            while (!mInflater.finished()) {
+                if (n == FrameCodec.MAX_PAYLOAD) {
+                    // Checked before growing, a peer must not get more than a payload out of a frame
+                    throw new IOException("Compressed frame inflates beyond "
+                            + FrameCodec.MAX_PAYLOAD + " bytes");
+                }
+                if (n == mInflated.length) {
+                    byte[] grown = new byte[Math.min(n * 2, FrameCodec.MAX_PAYLOAD)];
+                    System.arraycopy(mInflated, 0, grown, 0, n);
+                    mInflated = grown;
+                }
+                int room = Math.min(mInflated.length, FrameCodec.MAX_PAYLOAD) - n;
+                int inflated = mInflater.inflate(mInflated, n, room);
+                if (inflated == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            mFramesInflated++;
+            mInflateNanos += nanos;
+        }
+        return n;
+    }
+
+    byte[] inflated() {
+        return mInflated;
+    }
+
+    /**
+     * Returns the statistics so far.
+     */
+    synchronized CompressionStats snapshot() {
+        return new CompressionStats(mFramesCompressed, mFramesSkipped, mBytesIn, mBytesOut,
+                mCompressNanos, mFramesInflated, mInflateNanos);
+    }
+
+    /**
+     * Frees the native memory of the deflater, called by the writer thread
+     * on its way out.
+     */
+    void endDeflater() {
+        mDeflater.end();
+    }
+
+    /**
+     * Frees the native memory of the inflater, called by the reader thread
+     * on its way out.
+     */
+    void endInflater() {
+        mInflater.end();
+    }
+}
@@ -0,0 +1,148 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder which rebuilds whole frames out of a byte stream.
+ *
+ * Bytes are read straight into an internal buffer and complete frames are
+ * handed to the {@link Listener} in place, so the payload is never copied on
+ * its way through the decoder. A frame split over several reads is kept until
+ * the rest of it arrives; several frames arriving in one read are delivered
+ * one after the other.
+ */
+public class FrameDecoder {
+
+    /**
+     * Receives the frames rebuilt by the decoder.
+     */
+    public interface Listener {
+
+        /**
+         * Called for every complete frame. The payload is only valid for the
+         * duration of the call, the buffer is reused for following reads.
+         */
+        void onFrame(int type, int flags, byte[] buffer, int offset, int length)
+                throws IOException;
+    }
+
+    private final Listener mListener;
+    private final int mMaxPayload;
+    private byte[] mBuffer;
+
+    // Undecoded bytes live in mBuffer[mStart, mEnd)
+    private int mStart;
+    private int mEnd;
+
+    public FrameDecoder(Listener listener) {
+        this(listener, 4 * 1024, FrameCodec.MAX_PAYLOAD);
+    }
+
+    /**
+     * @param initialCapacity Size of the read buffer, grown when a larger frame arrives
+     * @param maxPayload      Frames announcing a larger payload are rejected
+     */
+    public FrameDecoder(Listener listener, int initialCapacity, int maxPayload) {
+        mListener = listener;
+        mMaxPayload = maxPayload;
+        mBuffer = new byte[Math.max(initialCapacity, FrameCodec.HEADER_SIZE)];
+    }
+
+    /**
+     * Performs a single read from the stream and delivers every frame it
+     * completed.
+     *
+     * @return The number of bytes read, or -1 at the end of the stream
+     */
+    public int readFrom(InputStream in) throws IOException {
+        makeRoom();
+        int count = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (count > 0) {
+            mEnd += count;
+            dispatch();
+        }
+        return count;
+    }
+
+    /**
+     * Feeds bytes which were read elsewhere and delivers every frame they
+     * completed.
+     */
+    public void feed(byte[] src, int off, int len) throws IOException {
+        while (len > 0) {
+            makeRoom();
+            int count = Math.min(len, mBuffer.length - mEnd);
+            System.arraycopy(src, off, mBuffer, mEnd, count);
+            mEnd += count;
+            off += count;
+            len -= count;
+            dispatch();
+        }
+    }
+
+    /**
+     * Returns the number of bytes received which do not form a whole frame yet.
+     */
+    public int pending() {
+        return mEnd - mStart;
+    }
+
+    /**
+     * Drops any partially received frame.
+     */
+    public void reset() {
+        mStart = 0;
+        mEnd = 0;
+    }
+
+    private void dispatch() throws IOException {
+        while (mEnd - mStart >= FrameCodec.HEADER_SIZE) {
+            int length = checkLength(FrameCodec.readLength(mBuffer, mStart));
+            int frameSize = FrameCodec.HEADER_SIZE + length;
+            if (mEnd - mStart < frameSize) {
+                break;
+            }
+            int type = FrameCodec.readType(mBuffer, mStart);
+            int flags = FrameCodec.readFlags(mBuffer, mStart);
+            int offset = mStart + FrameCodec.HEADER_SIZE;
+            mStart += frameSize;
+            mListener.onFrame(type, flags, mBuffer, offset, length);
+        }
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+        }
+    }
+
+    /**
+     * Makes sure the next read has space to land in, and that the frame
+     * currently being received fits in the buffer once complete. Partial data
+     * is only moved when the frame would otherwise run past the end.
+     */
+    private void makeRoom() throws IOException {
+        int pending = mEnd - mStart;
+        int needed = FrameCodec.HEADER_SIZE;
+        if (pending >= FrameCodec.HEADER_SIZE) {
+            needed += checkLength(FrameCodec.readLength(mBuffer, mStart));
+        }
+        if (needed > mBuffer.length) {
+            byte[] grown = new byte[Math.max(needed, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, mStart, grown, 0, pending);
+            mBuffer = grown;
+            mStart = 0;
+            mEnd = pending;
+        } else if (mStart + needed > mBuffer.length || mEnd == mBuffer.length) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, pending);
+            mStart = 0;
+            mEnd = pending;
+        }
+    }
+
+    private int checkLength(int length) throws IOException {
+        if (length < 0 || length > mMaxPayload) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,279 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.BitSet;
+
+/**
+ * Hands received messages to the UI in batches, at most one per display
+ * frame, instead of one main thread message per received message.
+ *
+ * Reader threads add messages from any thread. The first message of a
+ * batch asks the Choreographer for the next frame, and everything that
+ * arrives until that frame goes out in a single {@link Sink#onBatch} call.
+ * When no frame comes, with the screen off for instance, the batch goes
+ * out after the latency bound anyway. The UI can also {@link #flush()} the
+ * batch itself, to handle an event which has to come after the messages.
+ */
+public class InboundDispatcher implements Choreographer.FrameCallback {
+
+    /**
+     * Receives the batches on the main thread.
+     */
+    public interface Sink {
+
+        /**
+         * Called with the messages received since the last batch, in order.
+         * The sink has to release every buffer it takes from the batch, the
+         * batch itself is reused once the call returns. Buffers it did not
+         * take, because it threw for instance, are released for it.
+         */
+        void onBatch(Batch batch);
+    }
+
+    /**
+     * Messages of a batch, each with its channel and the id of its peer.
+     */
+    public static final class Batch {
+        private int mSize;
+        private int[] mChannels = new int[16];
+        private int[] mPeerIds = new int[16];
+        private PooledBuffer[] mBuffers = new PooledBuffer[16];
+
+        // Indices of the buffers handed to the sink, in any order
+        private final BitSet mTaken = new BitSet();
+
+        public int size() {
+            return mSize;
+        }
+
+        public int channel(int index) {
+            return mChannels[index];
+        }
+
+        public int peerId(int index) {
+            return mPeerIds[index];
+        }
+
+        /**
+         * Hands a buffer to the sink, which has to release it from then on.
+         */
+        public PooledBuffer buffer(int index) {
+            if (index < mSize) {
+                mTaken.set(index);
+            }
+            return mBuffers[index];
+        }
+
+        void add(int channel, int peerId, PooledBuffer buffer) {
+            if (mSize == mBuffers.length) {
+                int capacity = mSize * 2;
+                int[] channels = new int[capacity];
+                int[] peerIds = new int[capacity];
+                PooledBuffer[] buffers = new PooledBuffer[capacity];
+                System.arraycopy(mChannels, 0, channels, 0, mSize);
+                System.arraycopy(mPeerIds, 0, peerIds, 0, mSize);
+                System.arraycopy(mBuffers, 0, buffers, 0, mSize);
+                mChannels = channels;
+                mPeerIds = peerIds;
+                mBuffers = buffers;
+            }
+            mChannels[mSize] = channel;
+            mPeerIds[mSize] = peerId;
+            mBuffers[mSize] = buffer;
+            mSize++;
+        }
+
+        void releaseAll() {
+            mTaken.clear();
+            releaseUntaken();
+        }
+
+        /**
+         * Releases the buffers never handed out, then empties the batch.
+         */
+        void releaseUntaken() {
+            for (int i = 0; i < mSize; i++) {
+                if (!mTaken.get(i)) {
+                    mBuffers[i].release();
+                }
+                mBuffers[i] = null;
+            }
+            mSize = 0;
+            mTaken.clear();
+        }
+    }
+
+    private final Sink mSink;
+    private final Handler mHandler;
+    private final Choreographer mChoreographer;
+    private final long mMaxLatencyMs;
+    private final long mFrameIntervalNanos;
+
+    // Flushes a batch whose frame did not come in time
+    private final Runnable mDeadline = new Runnable() {
+        @Override
+        public void run() {
+            mChoreographer.removeFrameCallback(InboundDispatcher.this);
+            flush(System.nanoTime(), false);
+        }
+    };
+
+    // Guarded by this
+    private Batch mPending = new Batch();
+    private boolean mScheduled;
+    private boolean mClosed;
+    private long mScheduledNanos;
+
+    // Main thread only
+    private Batch mFlushing = new Batch();
+    private long mBatches;
+    private long mMessages;
+    private long mLateBatches;
+    private long mDroppedFrames;
+
+    /**
+     * Has to be created on the main thread.
+     *
+     * @param maxLatencyMs Longest a message waits for a frame
+     * @param refreshRate  Frames per second of the display
+     */
+    public InboundDispatcher(Sink sink, long maxLatencyMs, float refreshRate) {
+        mSink = sink;
+        mHandler = new Handler(Looper.getMainLooper());
+        mChoreographer = Choreographer.getInstance();
+        mMaxLatencyMs = maxLatencyMs;
+        mFrameIntervalNanos = (long) (1000000000L / (refreshRate > 0 ? refreshRate : 60));
+    }
+
+    /**
+     * Adds a received message to the next batch, called by reader threads.
+     */
+    public void offer(int channel, int peerId, PooledBuffer buffer) {
+        synchronized (this) {
+            if (mClosed) {
+                buffer.release();
+                return;
+            }
+            mPending.add(channel, peerId, buffer);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+            mScheduledNanos = System.nanoTime();
+        }
+        // Safe from any thread, the callbacks run on the main thread
+        mChoreographer.postFrameCallback(this);
+        mHandler.postDelayed(mDeadline, mMaxLatencyMs);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mHandler.removeCallbacks(mDeadline);
+        flush(frameTimeNanos, true);
+    }
+
+    /**
+     * Hands the messages received so far to the sink right away, main thread
+     * only. Events published after those messages, a peer leaving say, can
+     * so be handled after them too, instead of before the next frame.
+     */
+    public void flush() {
+        mChoreographer.removeFrameCallback(this);
+        mHandler.removeCallbacks(mDeadline);
+        Batch batch;
+        synchronized (this) {
+            batch = swap();
+        }
+        deliver(batch);
+    }
+
+    private void flush(long frameTimeNanos, boolean onFrame) {
+        Batch batch;
+        long scheduled;
+        synchronized (this) {
+            batch = swap();
+            scheduled = mScheduledNanos;
+        }
+        long start = System.nanoTime();
+        if (!deliver(batch)) {
+            return;
+        }
+        long end = System.nanoTime();
+        if (!onFrame) {
+            // No frames to drop, the display is not drawing
+            mLateBatches++;
+            return;
+        }
+        // Frames that went by before the batch was handled, frames missed
+        // while the main thread was busy elsewhere, then frames the sink
+        // itself overran
+        long waited = frameTimeNanos - scheduled - mFrameIntervalNanos;
+        if (waited > 0) {
+            mDroppedFrames += waited / mFrameIntervalNanos;
+        }
+        mDroppedFrames += Math.max(0, start - frameTimeNanos) / mFrameIntervalNanos
+                + (end - start) / mFrameIntervalNanos;
+    }
+
+    /**
+     * Takes the pending batch, to be delivered outside the lock.
+     */
+    private Batch swap() {
+        Batch batch = mPending;
+        mPending = mFlushing;
+        mFlushing = batch;
+        mScheduled = false;
+        return batch;
+    }
+
+    /**
+     * Hands a batch to the sink and counts it.
+     *
+     * @return false if the batch was empty
+     */
+    private boolean deliver(Batch batch) {
+        int size = batch.size();
+        if (size == 0) {
+            return false;
+        }
+        try {
+            mSink.onBatch(batch);
+        } finally {
+            // Normally the sink took them all, but after a throw the rest would leak
+            batch.releaseUntaken();
+        }
+        mBatches++;
+        mMessages += size;
+        return true;
+    }
+
+    /**
+     * Releases the messages still waiting and any that arrive afterwards.
+     */
+    public void close() {
+        mChoreographer.removeFrameCallback(this);
+        mHandler.removeCallbacks(mDeadline);
+        synchronized (this) {
+            mClosed = true;
+            mScheduled = false;
+            mPending.releaseAll();
+        }
+    }
+
+    /**
+     * Returns the number of frames missed between receiving messages and
+     * showing them, main thread only.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    public String toString() {
+        return mMessages + " messages in " + mBatches + " batches, " + mLateBatches
+                + " past the latency bound, " + mDroppedFrames + " dropped frames";
+    }
+}
@@ -0,0 +1,114 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+/**
+ * Histogram of the most recent round trip times of a link.
+ *
+ * Samples land in log-linear buckets: exact below 16 us, then eight buckets
+ * per power of two, which keeps every percentile within about 12% of the
+ * true value at a fixed size. Only the last windowSize samples are counted;
+ * the oldest one leaves its bucket when a new one arrives.
+ */
+public class LatencyHistogram {
+
+    // Values below this many microseconds get a bucket each
+    private static final int LINEAR = 16;
+
+    // Buckets per power of two above LINEAR, as a shift
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // Enough buckets for anything below 2^40 us
+    private static final int BUCKETS = LINEAR + (40 - 4) * SUB_BUCKETS;
+
+    private final int[] mCounts = new int[BUCKETS];
+    private final long[] mWindow;
+    private int mNext;
+    private int mSize;
+    private long mLast = -1;
+
+    /**
+     * @param windowSize How many recent samples the histogram covers
+     */
+    public LatencyHistogram(int windowSize) {
+        mWindow = new long[windowSize];
+    }
+
+    /**
+     * Adds a round trip time in microseconds.
+     */
+    public synchronized void record(long micros) {
+        micros = Math.max(0, micros);
+        if (mSize == mWindow.length) {
+            mCounts[bucketOf(mWindow[mNext])]--;
+        } else {
+            mSize++;
+        }
+        mWindow[mNext] = micros;
+        mNext = (mNext + 1) % mWindow.length;
+        mCounts[bucketOf(micros)]++;
+        mLast = micros;
+    }
+
+    /**
+     * Returns the lower bound of the bucket holding the given percentile of
+     * the window, in microseconds, or -1 when there are no samples yet.
+     *
+     * @param percentile 0 to 100
+     */
+    public synchronized long percentile(double percentile) {
+        if (mSize == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * mSize);
+        rank = Math.max(1, Math.min(mSize, rank));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+
+    /**
+     * Returns a snapshot of the window.
+     *
+     * @param missedBeats Heartbeats currently unanswered, carried along
+     */
+    public synchronized LinkStats snapshot(int missedBeats) {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        long sum = 0;
+        for (int i = 0; i < mSize; i++) {
+            long value = mWindow[i];
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        if (mSize == 0) {
+            min = -1;
+            max = -1;
+        }
+        return new LinkStats(mLast, min, mSize == 0 ? -1 : sum / mSize, percentile(50),
+                percentile(99), max, mSize, missedBeats);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, LINEAR + (exponent - 4) * SUB_BUCKETS + sub);
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+    }
+}
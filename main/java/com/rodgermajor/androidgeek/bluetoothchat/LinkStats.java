@@ -0,0 +1,35 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+/**
+ * Snapshot of the quality of a link, delivered with ChatListener.onLinkStats.
+ * Times are in microseconds, -1 while there are no samples yet.
+ */
+public final class LinkStats {
+    public final long lastRtt;
+    public final long minRtt;
+    public final long meanRtt;
+    public final long medianRtt;
+    public final long p99Rtt;
+    public final long maxRtt;
+    public final int samples;
+    public final int missedBeats;
+
+    public LinkStats(long lastRtt, long minRtt, long meanRtt, long medianRtt, long p99Rtt,
+                     long maxRtt, int samples, int missedBeats) {
+        this.lastRtt = lastRtt;
+        this.minRtt = minRtt;
+        this.meanRtt = meanRtt;
+        this.medianRtt = medianRtt;
+        this.p99Rtt = p99Rtt;
+        this.maxRtt = maxRtt;
+        this.samples = samples;
+        this.missedBeats = missedBeats;
+    }
+
+    @Override
+    public String toString() {
+        return "rtt " + lastRtt + "us (min " + minRtt + ", mean " + meanRtt
+                + ", p50 " + medianRtt + ", p99 " + p99Rtt + ", max " + maxRtt
+                + " over " + samples + "), missed " + missedBeats;
+    }
+}
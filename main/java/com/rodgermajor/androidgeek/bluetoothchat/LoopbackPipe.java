@@ -0,0 +1,128 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bounded in-memory byte pipe, one direction of a {@link LoopbackTransport}
+ * connection. Unlike java.io.PipedInputStream it does not care which threads
+ * read and write, and wakes up the other side as soon as data moves.
+ */
+final class LoopbackPipe {
+
+    private final byte[] mRing;
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+
+    private final InputStream mIn = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return LoopbackPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (LoopbackPipe.this) {
+                return mCount;
+            }
+        }
+
+        @Override
+        public void close() {
+            LoopbackPipe.this.close();
+        }
+    };
+
+    private final OutputStream mOut = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            LoopbackPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            LoopbackPipe.this.close();
+        }
+    };
+
+    LoopbackPipe(int capacity) {
+        mRing = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return mIn;
+    }
+
+    OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    /**
+     * Closes the pipe. The reader still gets the bytes already written, then
+     * the end of the stream; the writer fails straight away.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mCount == 0) {
+            if (mClosed) {
+                return -1;
+            }
+            waitUninterruptibly();
+        }
+        int count = Math.min(len, mCount);
+        int first = Math.min(count, mRing.length - mHead);
+        System.arraycopy(mRing, mHead, b, off, first);
+        System.arraycopy(mRing, 0, b, off + first, count - first);
+        mHead = (mHead + count) % mRing.length;
+        mCount -= count;
+        notifyAll();
+        return count;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (mCount == mRing.length && !mClosed) {
+                waitUninterruptibly();
+            }
+            if (mClosed) {
+                throw new IOException("Pipe closed");
+            }
+            int tail = (mHead + mCount) % mRing.length;
+            int count = Math.min(len, Math.min(mRing.length - mCount, mRing.length - tail));
+            System.arraycopy(b, off, mRing, tail, count);
+            mCount += count;
+            off += count;
+            len -= count;
+            notifyAll();
+        }
+    }
+
+    private void waitUninterruptibly() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+}
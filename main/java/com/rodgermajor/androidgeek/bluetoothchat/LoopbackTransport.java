@@ -0,0 +1,185 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link ChatTransport} which connects services in the same process through
+ * in-memory pipes. It runs as fast as the CPU allows, which makes it the
+ * transport of choice for benchmarks of the data path.
+ *
+ * Every service gets its own transport with a distinct local address, and
+ * all transports which should see each other share one {@link Network}.
+ */
+public class LoopbackTransport implements ChatTransport {
+
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * The set of listening loopback transports, by local address.
+     */
+    public static class Network {
+        private final Map<String, Server> mServers = new HashMap<String, Server>();
+
+        synchronized void register(String address, Server server) throws IOException {
+            if (mServers.containsKey(address)) {
+                throw new IOException("Address already in use: " + address);
+            }
+            mServers.put(address, server);
+        }
+
+        synchronized void unregister(String address, Server server) {
+            if (mServers.get(address) == server) {
+                mServers.remove(address);
+            }
+        }
+
+        synchronized Server lookup(String address) {
+            return mServers.get(address);
+        }
+    }
+
+    private final Network mNetwork;
+    private final String mLocalAddress;
+
+    public LoopbackTransport(Network network, String localAddress) {
+        mNetwork = network;
+        mLocalAddress = localAddress;
+    }
+
+    @Override
+    public ChatServerSocket listen(String name, UUID uuid, boolean secure) throws IOException {
+        Server server = new Server();
+        mNetwork.register(mLocalAddress, server);
+        return server;
+    }
+
+    @Override
+    public ChatSocket createSocket(String address, UUID uuid, boolean secure) {
+        return new Endpoint(address);
+    }
+
+    @Override
+    public void cancelDiscovery() {
+        // nothing to discover in memory
+    }
+
+    /**
+     * Server side, holds connections which have not been accepted yet.
+     */
+    private class Server implements ChatServerSocket {
+        private final ArrayDeque<Endpoint> mBacklog = new ArrayDeque<Endpoint>();
+        private boolean mClosed;
+
+        synchronized void enqueue(Endpoint endpoint) throws IOException {
+            if (mClosed) {
+                throw new IOException("Connection refused");
+            }
+            mBacklog.addLast(endpoint);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized ChatSocket accept() throws IOException {
+            while (mBacklog.isEmpty() && !mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (mClosed) {
+                throw new IOException("Server socket closed");
+            }
+            return mBacklog.pollFirst();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
+            mNetwork.unregister(mLocalAddress, this);
+        }
+    }
+
+    /**
+     * One end of a loopback connection.
+     */
+    private class Endpoint implements ChatSocket {
+        private final String mRemoteAddress;
+        private LoopbackPipe mIn;
+        private LoopbackPipe mOut;
+        private boolean mClosed;
+
+        Endpoint(String remoteAddress) {
+            mRemoteAddress = remoteAddress;
+        }
+
+        Endpoint(String remoteAddress, LoopbackPipe in, LoopbackPipe out) {
+            mRemoteAddress = remoteAddress;
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            Server server = mNetwork.lookup(mRemoteAddress);
+            if (server == null) {
+                throw new IOException("No loopback listener at " + mRemoteAddress);
+            }
+            LoopbackPipe toServer = new LoopbackPipe(PIPE_CAPACITY);
+            LoopbackPipe toClient = new LoopbackPipe(PIPE_CAPACITY);
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IOException("Socket closed");
+                }
+                mIn = toClient;
+                mOut = toServer;
+            }
+            server.enqueue(new Endpoint(mLocalAddress, toServer, toClient));
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mIn == null) {
+                throw new IOException("Not connected");
+            }
+            return mIn.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOut == null) {
+                throw new IOException("Not connected");
+            }
+            return mOut.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            if (mIn != null) {
+                mIn.close();
+                mOut.close();
+            }
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package com.rodgermajor.androidgeek.bluetoothchat;
 
 import android.os.Bundle;
+import android.util.Log;
 import android.support.v4.app.FragmentTransaction;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.ViewAnimator;
 
+import java.io.File;
+import java.io.IOException;
+
 import com.rodgermajor.androidgeek.common.activities.BaseLauncher;
+import com.rodgermajor.androidgeek.common.logger.mAsyncLogger;
 import com.rodgermajor.androidgeek.common.logger.mLog;
+import com.rodgermajor.androidgeek.common.logger.mLogFileNode;
+import com.rodgermajor.androidgeek.common.logger.mLogFilters;
 import com.rodgermajor.androidgeek.common.logger.mLogFragment;
+import com.rodgermajor.androidgeek.common.logger.mLogRouter;
 import com.rodgermajor.androidgeek.common.logger.mMLogWrapper;
 import com.rodgermajor.androidgeek.common.logger.mMessageMLogFilter;
 import com.google.android.gms.ads.AdRequest;
@@ -30,6 +38,9 @@ public class MainActivityLauncher extends BaseLauncher {
     private boolean mLogShown;
     private AdView mAdView;
 
+    // Log files, opened once per process
+    private static mLogFileNode mLogFile;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -84,22 +95,38 @@ public class MainActivityLauncher extends BaseLauncher {
         return super.onOptionsItemSelected(item);
     }
 
-    /** Create a chain of targets that will receive log data */
+    /** Create a tree of targets that will receive log data */
     @Override
     public void initializeLogging() {
-        // Wraps Android's native log framework.
-        mMLogWrapper mLogWrapper = new mMLogWrapper();
-        // Using mLog, front-end to the logging chain, emulates android.util.log method signatures.
-        mLog.setLogNode(mLogWrapper);
+        // Hands every target the same records, each through its own filter.
+        mLogRouter router = new mLogRouter();
 
-        // Filter strips out everything except the message text.
-        mMessageMLogFilter msgFilter = new mMessageMLogFilter();
-        mLogWrapper.setNext(msgFilter);
+        // Wraps Android's native log framework.
+        router.addRoute(mLogFilters.all(), new mMLogWrapper());
+
+        // Keeps the log in files, with priority and tag, so logcat wrapping loses nothing.
+        if (mLogFile == null) {
+            try {
+                mLogFile = new mLogFileNode(new File(getFilesDir(), "logs"));
+            } catch (IOException e) {
+                Log.e(TAG, "Log files unavailable", e);
+            }
+        }
+        if (mLogFile != null) {
+            router.addRoute(mLogFilters.all(), mLogFile);
+        }
 
-        // On screen logging via a fragment with a TextView.
+        // On screen logging via a fragment with a list, the filter strips out everything
+        // except the message text for this target only.
         mLogFragment mLogFragment = (mLogFragment) getSupportFragmentManager()
                 .findFragmentById(R.id.log_fragment);
-        msgFilter.setNext(mLogFragment.getLogView());
+        router.addRoute(mLogFilters.all(), new mMessageMLogFilter(mLogFragment.getLogView()));
+
+        // Using mLog, front-end to the logging tree, emulates android.util.log method signatures.
+        mLog.setLogNode(router);
+
+        // Print on a background thread, threads which log never run the targets.
+        mLog.startAsync(mAsyncLogger.DEFAULT_CAPACITY, mAsyncLogger.OverflowPolicy.DROP);
 
         mLog.i(TAG, "Ready");
     }
@@ -108,6 +135,9 @@ public class MainActivityLauncher extends BaseLauncher {
         if (mAdView != null) {
             mAdView.pause();
         }
+        if (mLogFile != null) {
+            mLogFile.flush();
+        }
         super.onPause();
     }
 
@@ -0,0 +1,86 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import com.rodgermajor.androidgeek.common.logger.mLog;
+
+import java.io.IOException;
+
+/**
+ * Puts messages back together from the fragments of each logical channel.
+ *
+ * Lives in the {@link ChatSession}, so a message cut short by a lost link is
+ * completed by the fragments replayed after the reconnect. Only the read
+ * loop of the current connection uses it.
+ */
+class MessageAssembler {
+    private static final String TAG = "MessageAssembler";
+
+    private final byte[][] mPartial = new byte[OutboundQueue.MAX_CHANNELS][];
+    private final int[] mLength = new int[OutboundQueue.MAX_CHANNELS];
+
+    /**
+     * Adds the fragment of a data frame.
+     *
+     * @return The complete message in a buffer leased from pool, or null while
+     * more fragments are due
+     * @throws IOException if the channel is unknown or the message too long
+     */
+    PooledBuffer add(BufferPool pool, int channel, int flags, byte[] src, int off, int len)
+            throws IOException {
+        if (channel >= OutboundQueue.MAX_CHANNELS) {
+            throw new IOException("Data on unknown channel " + channel);
+        }
+        boolean continued = (flags & FrameCodec.FLAG_CONTINUED) != 0;
+        if (!continued && mLength[channel] > 0) {
+            // The sender gave up on a message halfway, its start is useless
+            mLog.w(TAG, "Dropping " + mLength[channel] + " bytes of an unfinished message on channel "
+                    + channel);
+            mLength[channel] = 0;
+        } else if (continued && mLength[channel] == 0) {
+            mLog.w(TAG, "Dropping fragment without a start on channel " + channel);
+            return null;
+        }
+
+        boolean more = (flags & FrameCodec.FLAG_MORE) != 0;
+        if (!more && !continued) {
+            // Not fragmented, straight into the lease
+            PooledBuffer message = pool.acquire(len);
+            System.arraycopy(src, off, message.array(), 0, len);
+            return message;
+        }
+
+        int length = mLength[channel] + len;
+        if (length > FrameCodec.MAX_PAYLOAD) {
+            throw new IOException("Message on channel " + channel + " exceeds "
+                    + FrameCodec.MAX_PAYLOAD + " bytes");
+        }
+        byte[] partial = mPartial[channel];
+        if (partial == null || partial.length < length) {
+            byte[] grown = new byte[Math.min(FrameCodec.MAX_PAYLOAD,
+                    Math.max(length, partial == null ? 1024 : partial.length * 2))];
+            if (partial != null) {
+                System.arraycopy(partial, 0, grown, 0, mLength[channel]);
+            }
+            partial = grown;
+            mPartial[channel] = partial;
+        }
+        System.arraycopy(src, off, partial, mLength[channel], len);
+        mLength[channel] = length;
+        if (more) {
+            return null;
+        }
+
+        PooledBuffer message = pool.acquire(length);
+        System.arraycopy(partial, 0, message.array(), 0, length);
+        mLength[channel] = 0;
+        return message;
+    }
+
+    /**
+     * Drops every unfinished message.
+     */
+    void reset() {
+        for (int i = 0; i < mLength.length; i++) {
+            mLength[i] = 0;
+        }
+    }
+}
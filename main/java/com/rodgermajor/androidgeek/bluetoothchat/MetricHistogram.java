@@ -0,0 +1,73 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of everything recorded since the service was created, in
+ * power of two buckets. Cheaper and coarser than {@link LatencyHistogram}:
+ * recording is a few atomic adds with no lock and no allocation, and a
+ * percentile is known to within a factor of two.
+ */
+final class MetricHistogram {
+
+    // Bucket b holds values from 2^(b-1) to 2^b - 1, bucket 0 holds 0.
+    // Values are not negative, so 63 buckets past 0 cover them all.
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter mCount = new StripedCounter();
+    private final StripedCounter mSum = new StripedCounter();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void record(long value) {
+        value = Math.max(0, value);
+        mBuckets.getAndIncrement(BUCKETS - Long.numberOfLeadingZeros(value));
+        mCount.increment();
+        mSum.add(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    long count() {
+        return mCount.sum();
+    }
+
+    long mean() {
+        long count = mCount.sum();
+        return count == 0 ? 0 : mSum.sum() / count;
+    }
+
+    long max() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile,
+     * or 0 when nothing was recorded.
+     *
+     * @param percentile 0 to 100
+     */
+    long percentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = mBuckets.get(b);
+            total += counts[b];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return Math.min(b == 0 ? 0 : (1L << b) - 1, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+}
@@ -0,0 +1,76 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+/**
+ * Snapshot of the metrics of a chat service since it was created, see
+ * {@link MyChatService#getMetrics()}. Percentiles come from power of two
+ * buckets and are upper bounds, within a factor of two of the real value.
+ */
+public final class MetricsSnapshot {
+    public final long bytesIn;          // frame headers included
+    public final long framesIn;
+    public final long bytesOut;         // frame headers included, after compression
+    public final long framesOut;
+    public final long readWakeups;      // socket reads which returned
+    public final long reconnectAttempts;
+    public final long writes;           // messages fully written
+    public final long writeMeanUs;      // queueing included
+    public final long writeP50Us;
+    public final long writeP99Us;
+    public final long writeMaxUs;
+    public final int queued;            // messages waiting in every outbound queue
+    public final long queueDepthP99;
+    public final long queueDepthMax;
+    private final long[] mStateMillis;
+
+    public MetricsSnapshot(long bytesIn, long framesIn, long bytesOut, long framesOut,
+                           long readWakeups, long reconnectAttempts, long writes,
+                           long writeMeanUs, long writeP50Us, long writeP99Us, long writeMaxUs,
+                           int queued, long queueDepthP99, long queueDepthMax,
+                           long[] stateMillis) {
+        this.bytesIn = bytesIn;
+        this.framesIn = framesIn;
+        this.bytesOut = bytesOut;
+        this.framesOut = framesOut;
+        this.readWakeups = readWakeups;
+        this.reconnectAttempts = reconnectAttempts;
+        this.writes = writes;
+        this.writeMeanUs = writeMeanUs;
+        this.writeP50Us = writeP50Us;
+        this.writeP99Us = writeP99Us;
+        this.writeMaxUs = writeMaxUs;
+        this.queued = queued;
+        this.queueDepthP99 = queueDepthP99;
+        this.queueDepthMax = queueDepthMax;
+        mStateMillis = stateMillis.clone();
+    }
+
+    /**
+     * Returns the time spent in one of the MyChatService STATE_ constants,
+     * in milliseconds.
+     */
+    public long stateMillis(int state) {
+        return mStateMillis[state];
+    }
+
+    /**
+     * Returns the frames decoded per socket read, above 1 when reads
+     * return several frames at once.
+     */
+    public double framesPerWakeup() {
+        return readWakeups == 0 ? 0 : (double) framesIn / readWakeups;
+    }
+
+    @Override
+    public String toString() {
+        return "in " + framesIn + " frames / " + bytesIn + " bytes ("
+                + String.format("%.1f", framesPerWakeup()) + " per read), out " + framesOut
+                + " frames / " + bytesOut + " bytes, writes " + writes + " (mean " + writeMeanUs
+                + "us, p50 " + writeP50Us + ", p99 " + writeP99Us + ", max " + writeMaxUs
+                + "), queued " + queued + " (p99 " + queueDepthP99 + ", max " + queueDepthMax
+                + "), reconnects " + reconnectAttempts + ", ms none/listen/connecting/connected "
+                + mStateMillis[MyChatService.STATE_NONE] + "/"
+                + mStateMillis[MyChatService.STATE_LISTEN] + "/"
+                + mStateMillis[MyChatService.STATE_CONNECTING] + "/"
+                + mStateMillis[MyChatService.STATE_CONNECTED];
+    }
+}
@@ -2,25 +2,61 @@ package com.rodgermajor.androidgeek.bluetoothchat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 
 import com.rodgermajor.androidgeek.common.logger.mLog;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ *
+ * The links themselves come from a {@link ChatTransport}, Bluetooth RFCOMM
+ * by default, so the same logic can run over loopback or TCP off-device.
+ *
+ * The threads run as workers of a {@link WorkerPool}, so stop() can join
+ * every one of them and report those which do not finish, or, with
+ * stopAsync(), leave that to a background thread.
+ *
+ * In hub mode the service keeps accepting while connected and runs one
+ * ConnectedThread per peer. Events for the UI then carry the peer id the
+ * peer was announced with in {@link ChatListener#onDeviceName}.
+ *
+ * Every link carries a {@link ChatSession}. When a link this side dialled
+ * drops, the service dials the same peer again following its
+ * {@link ReconnectPolicy}, and both sides replay the messages the other one
+ * did not acknowledge before the drop, then send the ones still queued.
+ *
+ * Connected peers exchange heartbeats, which measure the round trip time of
+ * the link and declare it lost once too many of them go unanswered, long
+ * before a read on a dead RFCOMM socket would fail.
+ *
+ * Data is flow controlled with credits. Each side announces a receive
+ * window in its hello and grants the peer more frames as the UI releases
+ * the buffers of received messages, so a fast sender cannot flood a slow
+ * receiver's event queue.
+ *
+ * Messages travel on logical channels which share the one socket. Large
+ * messages are cut into fragments and the channels are interleaved by
+ * priority and weight, so a chat line never waits behind a bulk transfer.
+ *
+ * The service counts what goes through it, see {@link #getMetrics()}, and
+ * logs a summary at a fixed interval while it runs.
  */
 public class MyChatService {
     // Debugging
@@ -33,15 +69,63 @@ public class MyChatService {
     private static final UUID MY_UUID_SECURE =
             UUID.fromString("ba9ccfa6-65af-4f35-8ee1-1453c8869a93");
 
+    // Upper bound of worker threads, three per connected peer plus accept, connect and reconnect
+    private static final int MAX_WORKERS = 32;
+
+    // How long stop() waits for the workers to finish
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    // Unacknowledged messages kept per session for replay after a reconnect
+    private static final int RETRANSMIT_CAPACITY = 256;
+
+    // Round trip times kept per link for its statistics
+    private static final int LATENCY_WINDOW = 64;
+
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
+    private final ChatTransport mTransport;
+    private final ChatEventBus mEvents;
+    private final BufferPool mBufferPool;
+    private final WorkerPool mWorkers;
+    private final FileTransferManager mTransfers;
+    private int mOutboundCapacity = 64;
+    private OutboundQueue.OverflowPolicy mOverflowPolicy = OutboundQueue.OverflowPolicy.REJECT;
+    private long mHeartbeatIntervalMs = 1000;
+    private int mMaxMissedBeats = 3;
+    private int mReceiveWindow = 32;
+    private boolean mCompression = true;
+    private int mCompressionThreshold = 64;
+    private final int[] mChannelPriority = new int[OutboundQueue.MAX_CHANNELS];
+    private final int[] mChannelWeight = new int[OutboundQueue.MAX_CHANNELS];
     private AcceptThread mySecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
     private ConnectThread myConnectThread;
-    private ConnectedThread myConnectedThread;
-    private int mState;
-    private int mNewState;
+    private volatile ConnectedThread myConnectedThread;
+    private final Map<String, ConnectedThread> myPeers =
+            new ConcurrentHashMap<String, ConnectedThread>();
+    private volatile boolean mHubMode;
+    private volatile InboundDispatcher mInbound;
+    private int mNextPeerId;
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine();
+
+    // Reconnect state, the session we dialled and the ones peers dialled into
+    private ReconnectPolicy mReconnectPolicy = ReconnectPolicy.DEFAULT;
+    private ChatSession mSession;
+    private boolean mSessionSecure;
+    private final Map<String, ChatSession> mAcceptedSessions =
+            new ConcurrentHashMap<String, ChatSession>();
+    private ReconnectThread myReconnectThread;
+    private int mReconnectAttempt = -1;
+    private long mLostAtNanos;
+
+    // Time to recover statistics
+    private int mReconnectCount;
+    private long mLastRecoveryMs;
+    private long mTotalRecoveryMs;
+
+    // Runtime metrics, shared by every connection
+    private final ChatMetrics mMetrics = new ChatMetrics();
+    private long mMetricsIntervalMs = 60000;
+    private MetricsThread myMetricsThread;
 
     // MyConstants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -52,30 +136,330 @@ public class MyChatService {
     /**
      * Constructor. Prepares a new BluetoothChat session.
      */
-    public MyChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mNewState = mState;
-        mHandler = handler;
+    public MyChatService(Context context, ChatEventBus events) {
+        this(new BluetoothTransport(BluetoothAdapter.getDefaultAdapter()), events);
+    }
+
+    /**
+     * Constructor. Prepares a new chat session over the given transport.
+     */
+    public MyChatService(ChatTransport transport, ChatEventBus events) {
+        mTransport = transport;
+        mEvents = events;
+        mBufferPool = new BufferPool(16);
+        mWorkers = new WorkerPool("ChatWorker", MAX_WORKERS);
+
+        // Chat lines go ahead of everything else, other channels share equally
+        Arrays.fill(mChannelWeight, 1);
+        mChannelPriority[MyConstants.CHANNEL_CHAT] = 1;
+        mChannelPriority[MyConstants.CHANNEL_TRANSFER] = 1;
+
+        mTransfers = new FileTransferManager(new FileTransferManager.Link() {
+            @Override
+            public WriteHandle write(String address, int channel, byte[] payload) {
+                return MyChatService.this.write(address, channel, payload);
+            }
+        }, events, mWorkers);
+
+        // Update UI title according to the current state of the chat connection
+        mStateMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState) {
+                mLog.d(TAG, "state %d -> %d", oldState, newState);
+                mMetrics.stateChanged(newState);
+
+                // Give the new state to the subscribers so the UI Activity can update
+                mEvents.stateChanged(newState, oldState);
+            }
+        });
+    }
+
+    /**
+     * Return the current connection state. Never takes the service lock.
+     */
+    public int getState() {
+        return mStateMachine.get();
+    }
+
+    /**
+     * Register a listener for every state transition of the service.
+     */
+    public void addStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.addListener(listener);
+    }
+
+    public void removeStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.removeListener(listener);
+    }
+
+    /**
+     * Return the pool that received message buffers are leased from.
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Configure the outbound queue of the next connection.
+     *
+     * @param capacity How many messages may wait for the writer thread
+     * @param policy   What write() does when that many are already waiting
+     */
+    public synchronized void setOutboundPolicy(int capacity, OutboundQueue.OverflowPolicy policy) {
+        mOutboundCapacity = capacity;
+        mOverflowPolicy = policy;
+    }
+
+    /**
+     * Configure the heartbeat of the next connection.
+     *
+     * @param intervalMs     Time between heartbeats, 0 to send none
+     * @param maxMissedBeats Heartbeats in a row the peer may leave unanswered
+     *                       before the link is considered lost
+     */
+    public synchronized void setHeartbeat(long intervalMs, int maxMissedBeats) {
+        mHeartbeatIntervalMs = intervalMs;
+        mMaxMissedBeats = maxMissedBeats;
+    }
+
+    /**
+     * Set how a logical channel is scheduled. Takes effect on the next
+     * connection.
+     *
+     * @param channel  0 to OutboundQueue.MAX_CHANNELS - 1
+     * @param priority Channels with a higher priority always go first
+     * @param weight   Share of the link among channels of the same priority
+     */
+    public synchronized void setChannel(int channel, int priority, int weight) {
+        if (channel < 0 || channel >= OutboundQueue.MAX_CHANNELS) {
+            throw new IllegalArgumentException("No such channel: " + channel);
+        }
+        mChannelPriority[channel] = priority;
+        mChannelWeight[channel] = Math.max(1, weight);
+    }
+
+    /**
+     * Set how many messages a peer may send before the UI has released
+     * them. Takes effect on the next connection.
+     *
+     * @param frames The window, 0 to let peers send without limit
+     */
+    public synchronized void setReceiveWindow(int frames) {
+        mReceiveWindow = frames;
+    }
+
+    public synchronized int getReceiveWindow() {
+        return mReceiveWindow;
+    }
+
+    /**
+     * Set whether data frames are compressed on links to peers which can
+     * inflate them. Takes effect on the next connection.
+     *
+     * @param enabled   false to send every frame as it is
+     * @param threshold Frames with fewer bytes are never compressed
+     */
+    public synchronized void setCompression(boolean enabled, int threshold) {
+        mCompression = enabled;
+        mCompressionThreshold = threshold;
+    }
+
+    /**
+     * Return how well frames to and from a peer compress, or null when not
+     * connected to it.
+     */
+    public CompressionStats getCompressionStats(String address) {
+        ConnectedThread peer = findSession(address);
+        return peer == null ? null : peer.myCompressor.snapshot();
+    }
+
+    /**
+     * Return how many more messages may be sent to a peer before it grants
+     * more, Long.MAX_VALUE without flow control, or -1 when not connected.
+     */
+    public long getSendCredits(String address) {
+        ConnectedThread peer = findSession(address);
+        return peer == null ? -1 : peer.myOutbound.getCredits();
+    }
+
+    /**
+     * Return how long messages to a peer waited for credit in total, in
+     * milliseconds, or -1 when not connected.
+     */
+    public long getStalledMillis(String address) {
+        ConnectedThread peer = findSession(address);
+        return peer == null ? -1 : peer.myOutbound.getStalledMillis();
+    }
+
+    /**
+     * Return the round trip statistics of the link to a peer, or null when
+     * not connected to it.
+     */
+    public LinkStats getLinkStats(String address) {
+        ConnectedThread peer = findSession(address);
+        return peer == null ? null : peer.myLatency.snapshot(peer.myMissedBeats.get());
+    }
+
+    /**
+     * Return the metrics of the service since it was created. Never takes
+     * the service lock.
+     */
+    public MetricsSnapshot getMetrics() {
+        int queued = 0;
+        ConnectedThread connected = myConnectedThread;
+        if (connected != null) {
+            queued += connected.myOutbound.getDepth();
+        }
+        for (ConnectedThread peer : myPeers.values()) {
+            if (peer != connected) {
+                queued += peer.myOutbound.getDepth();
+            }
+        }
+        return mMetrics.snapshot(queued);
+    }
+
+    /**
+     * Set how often the metrics are logged, 0 to never log them. Takes
+     * effect on the next start().
+     */
+    public synchronized void setMetricsInterval(long intervalMs) {
+        mMetricsIntervalMs = intervalMs;
+    }
+
+    /**
+     * Set where files sent by peers are stored. Offers are declined until
+     * this is set.
+     */
+    public void setDownloadDirectory(File directory) {
+        mTransfers.setDownloadDirectory(directory);
+    }
+
+    /**
+     * Send a file to a peer in chunks on CHANNEL_BULK. Progress is reported
+     * with {@link ChatListener#onTransferProgress}.
+     *
+     * @param address Address of the peer, as reported in onDeviceName
+     * @param file    The file to send
+     * @return The id of the transfer
+     */
+    public long sendFile(String address, File file) throws IOException {
+        if (findSession(address) == null) {
+            throw new IOException("Not connected to " + address);
+        }
+        return mTransfers.send(address, file);
+    }
+
+    /**
+     * Cancel a file transfer in either direction.
+     */
+    public void cancelTransfer(long id) {
+        mTransfers.cancel(id);
+    }
+
+    /**
+     * Deliver received messages through the given dispatcher, batched per
+     * display frame, rather than as one event each. Null goes back to
+     * {@link ChatListener#onMessageRead}.
+     */
+    public void setInboundDispatcher(InboundDispatcher dispatcher) {
+        mInbound = dispatcher;
+    }
+
+    /**
+     * Return the file transfers of this service, to tune their chunking.
+     */
+    public FileTransferManager getTransfers() {
+        return mTransfers;
+    }
+
+    /**
+     * Switch hub mode on or off. Takes effect on the next start().
+     *
+     * @param hubMode true to serve many peers at once
+     */
+    public synchronized void setHubMode(boolean hubMode) {
+        mHubMode = hubMode;
+    }
+
+    public boolean isHubMode() {
+        return mHubMode;
+    }
+
+    /**
+     * Set how a lost link to the peer we dialled is retried.
+     *
+     * @param policy The policy, or null to go back to listening instead
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
     }
 
     /**
-     * Update UI title according to the current state of the chat connection
+     * Return how many lost links were recovered by reconnecting.
      */
-    private synchronized void updateUI_Title() {
-        mState = getState();
-        mLog.d(TAG, "updateUI_Title() " + mNewState + " -> " + mState);
-        mNewState = mState;
+    public synchronized int getReconnectCount() {
+        return mReconnectCount;
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(MyConstants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
+    /**
+     * Return the time from losing the last recovered link until its session
+     * resumed, in milliseconds.
+     */
+    public synchronized long getLastRecoveryMillis() {
+        return mLastRecoveryMs;
     }
 
     /**
-     * Return the current connection state.
+     * Return the average time to recover a lost link, in milliseconds.
      */
-    public synchronized int getState() {
-        return mState;
+    public synchronized long getAverageRecoveryMillis() {
+        return mReconnectCount == 0 ? 0 : mTotalRecoveryMs / mReconnectCount;
+    }
+
+    /**
+     * Return the connection state of one peer, STATE_CONNECTED or STATE_NONE.
+     */
+    public int getPeerState(String address) {
+        ConnectedThread peer = findSession(address);
+        return peer == null ? STATE_NONE : peer.myPeerState.get();
+    }
+
+    /**
+     * Return the addresses of the peers currently connected.
+     */
+    public List<String> getConnectedPeers() {
+        List<String> peers = new ArrayList<String>(myPeers.keySet());
+        ConnectedThread single = myConnectedThread;
+        if (single != null) {
+            peers.add(single.myAddress);
+        }
+        return peers;
+    }
+
+    /**
+     * Find the session of a peer, hub or single, without taking the lock.
+     */
+    private ConnectedThread findSession(String address) {
+        ConnectedThread peer = myPeers.get(address);
+        ConnectedThread single = myConnectedThread;
+        if (peer == null && single != null && address.equals(single.myAddress)) {
+            peer = single;
+        }
+        return peer;
+    }
+
+    /**
+     * Cancel the single connection and every hub peer.
+     */
+    private void cancelSessions() {
+        if (myConnectedThread != null) {
+            myConnectedThread.cancel();
+            myConnectedThread = null;
+        }
+        for (ConnectedThread peer : myPeers.values()) {
+            peer.cancel();
+        }
+        myPeers.clear();
     }
 
     /**
@@ -86,6 +470,7 @@ public class MyChatService {
         mLog.d(TAG, "start");
 
         // Cancel any thread attempting to make a connection
+        cancelReconnect();
 
         if (myConnectThread != null) {
             myConnectThread.cancel();
@@ -93,57 +478,91 @@ public class MyChatService {
         }
 
         // Cancel any thread currently running a connection
-        if (myConnectedThread != null) {
-            myConnectedThread.cancel();
-            myConnectedThread = null;
-        }
+        cancelSessions();
 
-        // Start the thread to listen on a BluetoothServerSocket
+        // Start the thread to listen on a ChatServerSocket
         if (mySecureAcceptThread == null) {
             mySecureAcceptThread = new AcceptThread(true);
-            mySecureAcceptThread.start();
+            mWorkers.start(mySecureAcceptThread);
         }
 //        if (mInsecureAcceptThread == null) {
 //            mInsecureAcceptThread = new AcceptThread(false);
-//            mInsecureAcceptThread.start();
+//            mWorkers.start(mInsecureAcceptThread);
 //        }
-        // Update UI title
-        updateUI_Title();
+
+        if (myMetricsThread == null && mMetricsIntervalMs > 0) {
+            myMetricsThread = new MetricsThread(mMetricsIntervalMs);
+            mWorkers.start(myMetricsThread);
+        }
+        mStateMachine.moveTo(STATE_LISTEN);
     }
 
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
      */
-    public synchronized void coonnect(BluetoothDevice device, boolean secure) {
-        mLog.d(TAG, "coonnect to: " + device);
+    public void coonnect(BluetoothDevice device, boolean secure) {
+        coonnect(device.getAddress(), secure);
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to the peer with the
+     * given transport address.
+     */
+    public synchronized void coonnect(String address, boolean secure) {
+        mLog.d(TAG, "coonnect to: %s", address);
 
+        // A peer picked by the user starts a new session
+        cancelReconnect();
+        if (mSession != null && !mHubMode) {
+            mSession.end("Connecting to another peer");
+        }
+        mSession = new ChatSession(address, true, RETRANSMIT_CAPACITY);
+        mSessionSecure = secure;
+        dial(address, secure, mSession);
+    }
+
+    /**
+     * Dial a peer on behalf of the given session.
+     */
+    private void dial(String address, boolean secure, ChatSession session) {
         // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
+        if (getState() == STATE_CONNECTING) {
             if (myConnectThread != null) {
                 myConnectThread.cancel();
                 myConnectThread = null;
             }
         }
 
-        // Cancel any thread currently running a connection
-        if (myConnectedThread != null) {
+        // Cancel any thread currently running a connection, a hub keeps its peers
+        if (!mHubMode && myConnectedThread != null) {
             myConnectedThread.cancel();
             myConnectedThread = null;
         }
 
         // Start the thread to coonnect with the given device
-        myConnectThread = new ConnectThread(device, secure);
-        myConnectThread.start();
-        // Update UI title
-        updateUI_Title();
+        myConnectThread = new ConnectThread(address, secure, session);
+        mWorkers.start(myConnectThread);
+
+        // A hub with peers stays connected while it dials another one
+        if (myPeers.isEmpty()) {
+            mStateMachine.moveTo(STATE_CONNECTING);
+        }
     }
 
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        mLog.d(TAG, "connected, Socket Type:" + socketType);
+    public synchronized void connected(ChatSocket socket, final String socketType) {
+        connected(socket, socketType, null);
+    }
+
+    /**
+     * Start the ConnectedThread for a link we dialled on behalf of session,
+     * or for an accepted link when session is null.
+     */
+    private synchronized void connected(ChatSocket socket, String socketType,
+                                        ChatSession session) {
+        mLog.d(TAG, "connected, Socket Type:%s", socketType);
 
         // Cancel the thread that completed the connection
         if (myConnectThread != null) {
@@ -151,6 +570,11 @@ public class MyChatService {
             myConnectThread = null;
         }
 
+        if (mHubMode) {
+            peerConnected(socket, socketType, session);
+            return;
+        }
+
         // Cancel any thread currently running a connection
         if (myConnectedThread != null) {
             myConnectedThread.cancel();
@@ -168,81 +592,222 @@ public class MyChatService {
         }
 
         // Start the thread to manage the connection and perform transmissions
-        myConnectedThread = new ConnectedThread(socket, socketType);
-        myConnectedThread.start();
+        myConnectedThread = new ConnectedThread(socket, socketType, session);
+        if (mReconnectAttempt >= 0) {
+            // Recovered, the time to recover is taken once the session resumes
+            myConnectedThread.myLostAtNanos = mLostAtNanos;
+            mReconnectAttempt = -1;
+        }
+        mWorkers.start(myConnectedThread);
 
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(MyConstants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(MyConstants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-        // Update UI title
-        updateUI_Title();
+        announcePeer(myConnectedThread);
+        mStateMachine.moveTo(STATE_CONNECTED);
     }
 
     /**
-     * Stop all threads
+     * Add a peer session in hub mode, leaving the others and the accept
+     * thread running.
      */
-    public synchronized void stop() {
-        mLog.d(TAG, "stop");
+    private void peerConnected(ChatSocket socket, String socketType, ChatSession session) {
+        ConnectedThread peer = new ConnectedThread(socket, socketType, session);
 
-        if (myConnectThread != null) {
-            myConnectThread.cancel();
-            myConnectThread = null;
+        // A peer coming back replaces its stale session
+        ConnectedThread stale = myPeers.put(peer.myAddress, peer);
+        if (stale != null) {
+            stale.cancel();
         }
-
-        if (myConnectedThread != null) {
-            myConnectedThread.cancel();
-            myConnectedThread = null;
+        if (!mWorkers.start(peer)) {
+            // Out of threads, the pool closed the link already
+            myPeers.remove(peer.myAddress);
+            return;
         }
 
-        if (mySecureAcceptThread != null) {
-            mySecureAcceptThread.cancel();
-            mySecureAcceptThread = null;
+        announcePeer(peer);
+        mEvents.peerStateChanged(peer.myPeerId, STATE_CONNECTED, peer.myAddress);
+
+        // Only the first peer changes the service state
+        mStateMachine.moveTo(STATE_CONNECTED);
+    }
+
+    /**
+     * Tell the UI Activity the name and address behind a peer id.
+     */
+    private void announcePeer(ConnectedThread peer) {
+        mEvents.deviceName(peer.myPeerId, peer.myName, peer.myAddress);
+    }
+
+    /**
+     * Stop all threads, and wait for them to finish.
+     *
+     * @return The names of the workers which were still running after the
+     * timeout, empty when everything shut down cleanly
+     */
+    public List<String> stop() {
+        shutDown();
+        return joinWorkers();
+    }
+
+    /**
+     * Stop all threads without waiting for them, for callers on the main
+     * thread. A background thread joins them and logs those which do not
+     * finish.
+     */
+    public void stopAsync() {
+        shutDown();
+        Thread joiner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                joinWorkers();
+            }
+        }, "MyChatService-stop");
+        joiner.setDaemon(true);
+        joiner.start();
+    }
+
+    /**
+     * Cancel every thread and move to STATE_NONE.
+     */
+    private void shutDown() {
+        mLog.d(TAG, "stop");
+        mTransfers.cancelAll("Service stopped");
+
+        synchronized (this) {
+            cancelReconnect();
+            if (mSession != null) {
+                mSession.end("Service stopped");
+                mSession = null;
+            }
+            for (ChatSession session : mAcceptedSessions.values()) {
+                session.end("Service stopped");
+            }
+            mAcceptedSessions.clear();
+
+            if (myConnectThread != null) {
+                myConnectThread.cancel();
+                myConnectThread = null;
+            }
+
+            cancelSessions();
+
+            if (mySecureAcceptThread != null) {
+                mySecureAcceptThread.cancel();
+                mySecureAcceptThread = null;
+            }
+
+            if (mInsecureAcceptThread != null) {
+                mInsecureAcceptThread.cancel();
+                mInsecureAcceptThread = null;
+            }
+
+            if (myMetricsThread != null) {
+                myMetricsThread.cancel();
+                myMetricsThread = null;
+            }
+            mStateMachine.moveTo(STATE_NONE);
         }
+    }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+    /**
+     * Wait for the workers to finish, outside the lock since they may need
+     * it on their way out.
+     */
+    private List<String> joinWorkers() {
+        List<String> stuck = mWorkers.cancelAll(STOP_TIMEOUT_MS);
+        if (!stuck.isEmpty()) {
+            mLog.w(TAG, "Workers still running after stop(): " + stuck);
         }
-        mState = STATE_NONE;
-        // Update UI title
-        updateUI_Title();
+        return stuck;
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue bytes for the ConnectedThread's writer. Never blocks unless the
+     * outbound policy is BLOCK and the queue is full, and never takes the
+     * service lock.
+     *
+     * In hub mode the bytes go to every connected peer.
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @return A handle which completes once the bytes are on the socket
+     * @see ConnectedThread#write(int, byte[])
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = myConnectedThread;
+    public WriteHandle write(byte[] out) {
+        return write(MyConstants.CHANNEL_CHAT, out);
+    }
+
+    /**
+     * Queue bytes on a logical channel.
+     *
+     * @param channel One of the CHANNEL_ constants, or another configured channel
+     * @param out     The bytes to write
+     */
+    public WriteHandle write(int channel, byte[] out) {
+        if (getState() != STATE_CONNECTED) return WriteHandle.failed("Not connected");
+
+        if (mHubMode) {
+            List<WriteHandle> handles = new ArrayList<WriteHandle>(myPeers.size());
+            for (ConnectedThread peer : myPeers.values()) {
+                handles.add(peer.write(channel, out));
+            }
+            return WriteHandle.all(handles);
         }
-        // Perform the write unsynchronized
-        r.write(out);
+
+        // Take a copy of the volatile ConnectedThread
+        ConnectedThread r = myConnectedThread;
+        if (r == null) return WriteHandle.failed("Not connected");
+        return r.write(channel, out);
+    }
+
+    /**
+     * Queue bytes for one peer only.
+     *
+     * @param address Address of the peer, as reported in onDeviceName
+     * @param out     The bytes to write
+     */
+    public WriteHandle write(String address, byte[] out) {
+        return write(address, MyConstants.CHANNEL_CHAT, out);
+    }
+
+    /**
+     * Queue bytes for one peer only, on a logical channel.
+     */
+    public WriteHandle write(String address, int channel, byte[] out) {
+        ConnectedThread r = findSession(address);
+        if (r == null) {
+            return WriteHandle.failed("Not connected to " + address);
+        }
+        return r.write(channel, out);
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
+    private void connectionFailed(ConnectThread attempt) {
+        synchronized (this) {
+            if (myConnectThread != attempt) {
+                // Superseded by a newer attempt, which owns the state now
+                return;
+            }
+            myConnectThread = null;
+            if (mReconnectAttempt >= 0) {
+                if (++mReconnectAttempt < mReconnectPolicy.getMaxAttempts()) {
+                    scheduleReconnect();
+                    return;
+                }
+                mLog.w(TAG, "Giving up reconnecting after " + mReconnectAttempt + " attempts");
+                mReconnectAttempt = -1;
+                mSession.end("Unable to reconnect");
+            }
+        }
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(MyConstants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(MyConstants.TOAST, "Unable to coonnect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        toast("Unable to coonnect device");
 
-        mState = STATE_NONE;
-        // Update UI title
-        updateUI_Title();
+        if (!myPeers.isEmpty()) {
+            // A hub keeps serving the peers it has
+            return;
+        }
+        mStateMachine.transition(STATE_CONNECTING, STATE_NONE);
 
         // Start the service over to restart listening mode
         MyChatService.this.start();
@@ -251,41 +816,148 @@ public class MyChatService {
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
+    private void connectionLost(ConnectedThread session) {
+        if (!session.myPeerState.compareAndSet(STATE_CONNECTED, STATE_NONE)) {
+            // Cancelled on purpose, or the reader and the heartbeat both saw the link
+            // die: whoever got here first handles it
+            return;
+        }
+        session.closeOutbound("Connection lost");
+        mTransfers.onLinkLost(session.myAddress);
+        if (session.myHub) {
+            if (session.mySession.mInitiator) {
+                // Only the side which dialled comes back, and a hub does not dial again
+                session.mySession.end("Connection lost");
+            }
+            peerLost(session);
+            return;
+        }
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(MyConstants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(MyConstants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        toast("Device connection was lost");
 
-        mState = STATE_NONE;
-        // Update UI title
-        updateUI_Title();
+        if (reconnect(session)) {
+            return;
+        }
+        if (session.mySession.mInitiator) {
+            session.mySession.end("Connection lost");
+        }
+        mStateMachine.transition(STATE_CONNECTED, STATE_NONE);
 
         // Start the service over to restart listening mode
         MyChatService.this.start();
     }
 
+    /**
+     * Start dialling the peer of a lost link again, if we dialled it in the
+     * first place and a policy is set. The peer keeps its session and waits
+     * in listening mode.
+     *
+     * @return true if reconnecting
+     */
+    private synchronized boolean reconnect(ConnectedThread lost) {
+        if (mReconnectPolicy == null || myConnectedThread != lost
+                || !lost.mySession.mInitiator || lost.mySession != mSession) {
+            return false;
+        }
+        if (!mStateMachine.transition(STATE_CONNECTED, STATE_CONNECTING)) {
+            return false;
+        }
+        lost.cancel();
+        myConnectedThread = null;
+        mLostAtNanos = System.nanoTime();
+        mReconnectAttempt = 0;
+        scheduleReconnect();
+        return true;
+    }
+
+    /**
+     * Start a worker which dials again after the policy's next delay.
+     */
+    private void scheduleReconnect() {
+        long delay = mReconnectPolicy.delayFor(mReconnectAttempt);
+        mLog.i(TAG, "Reconnect attempt " + (mReconnectAttempt + 1) + " to "
+                + mSession.mAddress + " in " + delay + " ms");
+        mMetrics.reconnectAttempts.increment();
+        myReconnectThread = new ReconnectThread(delay);
+        mWorkers.start(myReconnectThread);
+    }
+
+    private void cancelReconnect() {
+        if (mReconnectAttempt >= 0 && mSession != null) {
+            mSession.end("Reconnect cancelled");
+        }
+        mReconnectAttempt = -1;
+        if (myReconnectThread != null) {
+            myReconnectThread.cancel();
+            myReconnectThread = null;
+        }
+    }
+
+    /**
+     * Record the time it took to resume a session after its link was lost.
+     */
+    private synchronized void recovered(long lostAtNanos, int replayed) {
+        long recoveryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAtNanos);
+        mReconnectCount++;
+        mLastRecoveryMs = recoveryMs;
+        mTotalRecoveryMs += recoveryMs;
+        mLog.i(TAG, "Recovered in " + recoveryMs + " ms, replayed " + replayed + " messages");
+    }
+
+    /**
+     * Return the session of an accepted link, which lives on in case the
+     * peer comes back.
+     */
+    private ChatSession acceptedSession(String address) {
+        ChatSession session = mAcceptedSessions.get(address);
+        if (session == null) {
+            session = new ChatSession(address, false, RETRANSMIT_CAPACITY);
+            mAcceptedSessions.put(address, session);
+        }
+        return session;
+    }
+
+    private void toast(String text) {
+        mEvents.notice(text);
+    }
+
+    /**
+     * Drop a lost hub peer. The other peers and the accept thread carry on.
+     */
+    private synchronized void peerLost(ConnectedThread peer) {
+        if (myPeers.get(peer.myAddress) != peer) {
+            return;
+        }
+        myPeers.remove(peer.myAddress);
+        mLog.i(TAG, "Peer lost: " + peer.myAddress);
+        mEvents.peerStateChanged(peer.myPeerId, STATE_NONE, peer.myAddress);
+
+        if (myPeers.isEmpty()) {
+            mStateMachine.transition(STATE_CONNECTED,
+                    mySecureAcceptThread != null ? STATE_LISTEN : STATE_NONE);
+        }
+    }
+
     /**
      * This thread runs while listening for incoming connections. It behaves
      * like a server-side client. It runs until a connection is accepted
      * (or until cancelled).
      */
-    private class AcceptThread extends Thread {
+    private class AcceptThread extends WorkerPool.Worker {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final ChatServerSocket mmServerSocket;
         private String mSocketType;
 
         public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+            super(secure ? "AcceptThreadSecure" : "AcceptThreadInsecure");
+            ChatServerSocket tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
             // Create a new listening server socket
             try {
                 if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
+                    tmp = mTransport.listen(NAME_SECURE, MY_UUID_SECURE, true);
                 }else {
                     // do nothing
                 }
@@ -293,18 +965,15 @@ public class MyChatService {
                 mLog.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
             }
             mmServerSocket = tmp;
-            mState = STATE_LISTEN;
         }
 
-        public void run() {
-            mLog.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
+        protected void work() {
+            mLog.d(TAG, "Socket Type: %sBEGIN mAcceptThread%s", mSocketType, this);
 
-            BluetoothSocket socket = null;
+            ChatSocket socket = null;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Listen to the server socket if we're not connected, a hub always listens
+            while (mHubMode || MyChatService.this.getState() != STATE_CONNECTED) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -317,12 +986,17 @@ public class MyChatService {
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (MyChatService.this) {
-                        switch (mState) {
+                        int state = MyChatService.this.getState();
+                        if (mHubMode && state != STATE_NONE) {
+                            // A hub takes every peer that comes along
+                            connected(socket, mSocketType);
+                            continue;
+                        }
+                        switch (state) {
                             case STATE_LISTEN:
                             case STATE_CONNECTING:
                                 // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
+                                connected(socket, mSocketType);
                                 break;
                             case STATE_NONE:
                             case STATE_CONNECTED:
@@ -342,7 +1016,7 @@ public class MyChatService {
         }
 
         public void cancel() {
-            mLog.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            mLog.d(TAG, "Socket Type%scancel %s", mSocketType, this);
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -352,45 +1026,76 @@ public class MyChatService {
     }
 
 
+    /**
+     * This thread waits out the backoff delay before dialling a lost peer
+     * again.
+     */
+    private class ReconnectThread extends WorkerPool.Worker {
+        private final long myDelayMs;
+        private final CountDownLatch myCancelled = new CountDownLatch(1);
+
+        public ReconnectThread(long delayMs) {
+            super("ReconnectThread");
+            myDelayMs = delayMs;
+        }
+
+        protected void work() {
+            try {
+                if (myCancelled.await(myDelayMs, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (MyChatService.this) {
+                if (myReconnectThread != this) {
+                    return;
+                }
+                myReconnectThread = null;
+                dial(mSession.mAddress, mSessionSecure, mSession);
+            }
+        }
+
+        public void cancel() {
+            myCancelled.countDown();
+        }
+    }
+
     /**
      * This thread runs while attempting to make an outgoing connection
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mySocket;
-        private final BluetoothDevice myDevice;
+    private class ConnectThread extends WorkerPool.Worker {
+        private final ChatSocket mySocket;
+        private final ChatSession mySession;
         private String mySocketType;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            myDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(String address, boolean secure, ChatSession session) {
+            super(secure ? "ConnectThreadSecure" : "ConnectThreadInsecure");
+            mySession = session;
+            ChatSocket tmp = null;
             mySocketType = secure ? "Secure" : "Insecure";
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a ChatSocket for a connection with the
+            // given address
             try {
                 if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
+                    tmp = mTransport.createSocket(address, MY_UUID_SECURE, true);
                 } else {
-                   tmp = device.createRfcommSocketToServiceRecord(
-                           MY_UUID_SECURE
-                   );
+                   tmp = mTransport.createSocket(address, MY_UUID_SECURE, true);
                 }
             } catch (IOException e) {
                 mLog.e(TAG, "Socket Type: " + mySocketType + "create() failed", e);
             }
             mySocket = tmp;
-            mState = STATE_CONNECTING;
         }
 
-        public void run() {
+        protected void work() {
             mLog.i(TAG, "BEGIN myConnectThread SocketType:" + mySocketType);
-            setName("ConnectThread" + mySocketType);
 
             // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            mTransport.cancelDiscovery();
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the ChatSocket
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
@@ -403,7 +1108,7 @@ public class MyChatService {
                     mLog.e(TAG, "unable to close() " + mySocketType +
                             " socket during connection failure", e2);
                 }
-                connectionFailed();
+                connectionFailed(this);
                 return;
             }
 
@@ -413,7 +1118,7 @@ public class MyChatService {
             }
 
             // Start the connected thread
-            connected(mySocket, myDevice, mySocketType);
+            connected(mySocket, mySocketType, mySession);
         }
 
         public void cancel() {
@@ -428,18 +1133,56 @@ public class MyChatService {
     /**
      * This thread runs during a connection with a remote device.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mySocket;
+    private class ConnectedThread extends WorkerPool.Worker
+            implements FrameDecoder.Listener, PooledBuffer.ReleaseListener {
+        private final ChatSocket mySocket;
         private final InputStream myInStream;
         private final OutputStream myOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            mLog.d(TAG, "create ConnectedThread: " + socketType);
+        private final OutboundQueue myOutbound;
+        private final int myPeerId;
+        private final String myAddress;
+        private final String myName;
+        private final boolean myHub;
+        private final ChatSession mySession;
+        private final LatencyHistogram myLatency = new LatencyHistogram(LATENCY_WINDOW);
+        private final long myHeartbeatMs;
+        private final int myMaxMissedBeats;
+        private final int myReceiveWindow;
+        private final boolean myCompression;
+        private final FrameCompressor myCompressor;
+
+        // Messages the UI released since credit was last granted
+        private int myConsumed;
+        private final AtomicInteger myPeerState = new AtomicInteger(STATE_NONE);
+
+        // Heartbeats sent since the peer was last heard from
+        private final AtomicInteger myMissedBeats = new AtomicInteger();
+        private HeartbeatThread myHeartbeat;
+
+        // Set when this link replaces a lost one, to measure the time to recover
+        private long myLostAtNanos = -1;
+
+        // The writer starts once the peer's hello told us what to replay
+        private boolean myWriterStarted;
+
+        public ConnectedThread(ChatSocket socket, String socketType, ChatSession session) {
+            super("ConnectedThread-" + socket.getRemoteAddress());
+            mLog.d(TAG, "create ConnectedThread: %s", socketType);
             mySocket = socket;
+            myPeerId = mNextPeerId++;
+            myAddress = socket.getRemoteAddress();
+            myName = socket.getRemoteName();
+            myHub = mHubMode;
+            mySession = session != null ? session : acceptedSession(myAddress);
+            myHeartbeatMs = mHeartbeatIntervalMs;
+            myMaxMissedBeats = mMaxMissedBeats;
+            myReceiveWindow = mReceiveWindow;
+            myCompression = mCompression;
+            myCompressor = new FrameCompressor(mCompressionThreshold);
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the ChatSocket input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
@@ -449,47 +1192,284 @@ public class MyChatService {
 
             myInStream = tmpIn;
             myOutStream = tmpOut;
-            mState = STATE_CONNECTED;
+            myOutbound = new OutboundQueue(mOutboundCapacity, mOverflowPolicy, 4 * 1024);
+            myOutbound.setMetrics(mMetrics);
+            for (int i = 0; i < OutboundQueue.MAX_CHANNELS; i++) {
+                myOutbound.setChannel(i, mChannelPriority[i], mChannelWeight[i]);
+            }
+            myPeerState.set(STATE_CONNECTED);
         }
 
-        public void run() {
+        protected void work() {
             mLog.i(TAG, "BEGIN myConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            FrameDecoder decoder = new FrameDecoder(this);
+
+            // Say hello before anything else, the writer is not running yet
+            byte[] hello = new byte[ChatSession.HELLO_CAPS_SIZE];
+            mySession.writeHello(hello, myReceiveWindow, ChatSession.CAP_DEFLATE);
+            try {
+                FrameCodec.write(myOutStream, new byte[FrameCodec.HEADER_SIZE + hello.length],
+                        FrameCodec.TYPE_HELLO, FrameCodec.FLAG_NONE, hello, 0, hello.length);
+            } catch (IOException e) {
+                mLog.e(TAG, "hello failed", e);
+                connectionLost(this);
+                return;
+            }
 
             // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
+            while (myPeerState.get() == STATE_CONNECTED) {
                 try {
-                    // Read from the InputStream
-                    bytes = myInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(MyConstants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+                    // Read from the InputStream, whole frames come back through onFrame()
+                    int read = decoder.readFrom(myInStream);
+                    if (read < 0) {
+                        throw new IOException("End of stream");
+                    }
+                    mMetrics.readWakeups.increment();
+                    mMetrics.bytesIn.add(read);
                 } catch (IOException e) {
                     mLog.e(TAG, "disconnected", e);
-                    connectionLost();
+                    connectionLost(this);
+                    break;
+                }
+            }
+            myCompressor.endInflater();
+        }
+
+        @Override
+        public void onFrame(int type, int flags, byte[] buffer, int offset, int length)
+                throws IOException {
+            // Any frame shows the peer is still there
+            myMissedBeats.set(0);
+            mMetrics.framesIn.increment();
+            if (!myWriterStarted && type != FrameCodec.TYPE_HELLO) {
+                // A peer without sessions, nothing to resume
+                startWriter(null);
+            }
+            switch (type) {
+                case FrameCodec.TYPE_HELLO:
+                    onHello(buffer, offset, length);
+                    break;
+                case FrameCodec.TYPE_ACK:
+                    if (length < ChatSession.ACK_SIZE) {
+                        throw new IOException("Short ack frame");
+                    }
+                    mySession.mRetransmit.ackUpTo(ChatSession.getLong(buffer, offset));
+                    break;
+                case FrameCodec.TYPE_CREDIT:
+                    if (length < ChatSession.CREDIT_SIZE) {
+                        throw new IOException("Short credit frame");
+                    }
+                    myOutbound.grant(ChatSession.getInt(buffer, offset));
+                    break;
+                case FrameCodec.TYPE_PING:
+                    // Echo the payload, the decoder reuses its buffer
+                    byte[] pong = new byte[length];
+                    System.arraycopy(buffer, offset, pong, 0, length);
+                    myOutbound.offer(FrameCodec.TYPE_PONG, FrameCodec.FLAG_NONE, pong);
+                    break;
+                case FrameCodec.TYPE_PONG:
+                    if (length < 8) {
+                        throw new IOException("Short pong frame");
+                    }
+                    long rttNanos = System.nanoTime() - ChatSession.getLong(buffer, offset);
+                    myLatency.record(TimeUnit.NANOSECONDS.toMicros(rttNanos));
+                    mEvents.linkStats(myPeerId, myLatency.snapshot(0));
+                    break;
+                case FrameCodec.TYPE_DATA:
+                    if (length < 1) {
+                        throw new IOException("Data frame without a channel");
+                    }
+                    if (mySession.onReceived()) {
+                        byte[] ack = new byte[ChatSession.ACK_SIZE];
+                        ChatSession.putLong(ack, 0, mySession.getReceived());
+                        myOutbound.offer(FrameCodec.TYPE_ACK, FrameCodec.FLAG_NONE, ack);
+                    }
+
+                    // The decoder reuses its buffer, so lease the UI its own copy.
+                    // The UI hands it back to the pool once it has decoded it.
+                    int channel = buffer[offset] & 0xff;
+                    PooledBuffer message;
+                    if ((flags & FrameCodec.FLAG_COMPRESSED) != 0) {
+                        int inflated = myCompressor.inflate(buffer, offset + 1, length - 1);
+                        if (inflated > FrameCodec.MAX_PAYLOAD) {
+                            // Never let the pool see it, its IllegalArgumentException would
+                            // kill the reader instead of losing the link
+                            throw new IOException("Inflated frame of " + inflated
+                                    + " bytes exceeds " + FrameCodec.MAX_PAYLOAD);
+                        }
+                        message = mySession.mAssembler.add(mBufferPool, channel,
+                                flags & ~FrameCodec.FLAG_COMPRESSED, myCompressor.inflated(), 0,
+                                inflated);
+                    } else {
+                        message = mySession.mAssembler.add(mBufferPool, channel, flags,
+                                buffer, offset + 1, length - 1);
+                    }
+                    if (message == null) {
+                        // Fragments are copied aside right away, only whole messages wait for the UI
+                        credit();
+                        break;
+                    }
+                    if (myReceiveWindow > 0) {
+                        message.setReleaseListener(this);
+                    }
+                    if (channel == MyConstants.CHANNEL_TRANSFER
+                            || channel == MyConstants.CHANNEL_BULK) {
+                        // File transfers are handled here, they never reach the UI
+                        try {
+                            mTransfers.onMessage(myAddress, message.array(), 0, message.length());
+                        } finally {
+                            message.release();
+                        }
+                        break;
+                    }
+
+                    // Send the obtained message to the UI Activity
+                    InboundDispatcher inbound = mInbound;
+                    if (inbound != null) {
+                        inbound.offer(channel, myPeerId, message);
+                    } else {
+                        mEvents.messageRead(channel, myPeerId, message);
+                    }
                     break;
+                default:
+                    mLog.w(TAG, "Ignoring frame of unknown type " + type);
+                    break;
+            }
+        }
+
+        /**
+         * Resume or restart the session according to the peer's hello, then
+         * let the writer replay what the peer missed.
+         */
+        private void onHello(byte[] buffer, int offset, int length) throws IOException {
+            if (length < ChatSession.HELLO_SIZE) {
+                throw new IOException("Short hello frame");
+            }
+            if (myWriterStarted) {
+                mLog.w(TAG, "Ignoring repeated hello");
+                return;
+            }
+            long peerReceived = mySession.onHello(buffer, offset);
+            List<RetransmitBuffer.Frame> replay = null;
+            if (peerReceived >= 0) {
+                replay = mySession.mRetransmit.unacknowledged(peerReceived);
+                mLog.i(TAG, "Session resumed, replaying " + replay.size() + " frames");
+            }
+            if (myCompression && (ChatSession.helloCapabilities(buffer, offset, length)
+                    & ChatSession.CAP_DEFLATE) != 0) {
+                myOutbound.setCompressor(myCompressor);
+            }
+            int peerWindow = ChatSession.helloWindow(buffer, offset);
+            if (peerWindow > 0) {
+                // Replayed frames bypass the queue but still count
+                myOutbound.setCredits(peerWindow - (replay == null ? 0 : replay.size()));
+            }
+            startWriter(replay);
+            if (myLostAtNanos >= 0) {
+                recovered(myLostAtNanos, replay == null ? 0 : replay.size());
+            }
+        }
+
+        private void startWriter(List<RetransmitBuffer.Frame> replay) {
+            myWriterStarted = true;
+            // What the lost link did not send goes out after the replay
+            myOutbound.requeue(mySession.takeUnsent(replay != null));
+            if (!mWorkers.start(new WriterThread(this, replay))) {
+                startFailed();
+                return;
+            }
+            mTransfers.onLinkUp(myAddress);
+            if (myHeartbeatMs > 0) {
+                boolean started = true;
+                synchronized (this) {
+                    if (myPeerState.get() == STATE_CONNECTED) {
+                        myHeartbeat = new HeartbeatThread(this);
+                        started = mWorkers.start(myHeartbeat);
+                    }
+                }
+                if (!started) {
+                    startFailed();
                 }
             }
         }
 
         /**
-         * Write to the connected OutStream.
+         * Give up on a link the pool had no thread for, the way a dead link
+         * is given up on. Must not hold this thread's lock, connectionLost()
+         * takes the service lock.
          */
-        public void write(byte[] buffer) {
-            try {
-                myOutStream.write(buffer);
+        private void startFailed() {
+            connectionLost(this);
+            abort();
+        }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(MyConstants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
+        /**
+         * Called on the UI thread as it releases a received message.
+         */
+        @Override
+        public void onReleased() {
+            credit();
+        }
+
+        /**
+         * Count a consumed data frame. Credit goes back to the peer in
+         * batches of half a window.
+         */
+        private void credit() {
+            if (myReceiveWindow <= 0) {
+                return;
+            }
+            int grant = 0;
+            synchronized (this) {
+                if (++myConsumed >= Math.max(1, myReceiveWindow / 2)) {
+                    grant = myConsumed;
+                    myConsumed = 0;
+                }
+            }
+            if (grant > 0) {
+                byte[] credit = new byte[ChatSession.CREDIT_SIZE];
+                ChatSession.putInt(credit, 0, grant);
+                myOutbound.offer(FrameCodec.TYPE_CREDIT, FrameCodec.FLAG_NONE, credit);
+            }
+        }
+
+        /**
+         * Queue a message on a channel for the connected OutStream.
+         */
+        public WriteHandle write(int channel, byte[] buffer) {
+            return myOutbound.offer(channel, buffer);
+        }
+
+        /**
+         * Close the socket without marking the connection as cancelled, so
+         * the read loop reports it as lost.
+         */
+        void abort() {
+            try {
+                mySocket.close();
             } catch (IOException e) {
-                mLog.e(TAG, "Exception during write", e);
+                mLog.e(TAG, "close() of coonnect socket failed", e);
             }
         }
 
+        /**
+         * Close the outbound queue and keep the data messages it did not
+         * send in the session, for the link which resumes it.
+         */
+        void closeOutbound(String reason) {
+            myOutbound.close(reason, true);
+            mySession.keepUnsent(myOutbound.takeUnsent());
+        }
+
         public void cancel() {
+            myPeerState.set(STATE_NONE);
+            synchronized (this) {
+                if (myHeartbeat != null) {
+                    myHeartbeat.cancel();
+                    myHeartbeat = null;
+                }
+            }
+            closeOutbound("Connection closed");
             try {
                 mySocket.close();
             } catch (IOException e) {
@@ -497,4 +1477,154 @@ public class MyChatService {
             }
         }
     }
+
+    /**
+     * This thread sends a connection's heartbeats, and declares the link lost
+     * when the peer leaves too many of them unanswered.
+     */
+    private class HeartbeatThread extends WorkerPool.Worker {
+        private final ConnectedThread myConnection;
+        private final CountDownLatch myCancelled = new CountDownLatch(1);
+
+        public HeartbeatThread(ConnectedThread connection) {
+            super("HeartbeatThread-" + connection.myAddress);
+            myConnection = connection;
+        }
+
+        protected void work() {
+            while (myConnection.myPeerState.get() == STATE_CONNECTED) {
+                try {
+                    if (myCancelled.await(myConnection.myHeartbeatMs, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int missed = myConnection.myMissedBeats.getAndIncrement();
+                if (missed >= myConnection.myMaxMissedBeats) {
+                    mLog.w(TAG, myConnection.myAddress + " missed " + missed + " heartbeats");
+                    connectionLost(myConnection);
+                    // Unblock the read loop, which may wait on a dead socket for long
+                    myConnection.abort();
+                    return;
+                }
+
+                // The queue keeps a reference, so every ping gets its own payload
+                byte[] ping = new byte[8];
+                ChatSession.putLong(ping, 0, System.nanoTime());
+                myConnection.myOutbound.offer(FrameCodec.TYPE_PING, FrameCodec.FLAG_NONE, ping);
+            }
+        }
+
+        public void cancel() {
+            myCancelled.countDown();
+        }
+    }
+
+    /**
+     * This thread logs the service metrics at a fixed interval until the
+     * service stops.
+     */
+    private class MetricsThread extends WorkerPool.Worker {
+        private final long myIntervalMs;
+        private final CountDownLatch myCancelled = new CountDownLatch(1);
+
+        public MetricsThread(long intervalMs) {
+            super("MetricsThread");
+            myIntervalMs = intervalMs;
+        }
+
+        protected void work() {
+            while (true) {
+                try {
+                    if (myCancelled.await(myIntervalMs, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Skip the snapshot when nothing prints it
+                if (mLog.isLoggable(TAG, mLog.INFO)) {
+                    mLog.i(TAG, "Metrics: " + getMetrics());
+                }
+            }
+        }
+
+        public void cancel() {
+            myCancelled.countDown();
+        }
+    }
+
+    /**
+     * This thread drains a connection's outbound queue into its OutStream, so
+     * that callers of write() never wait on the socket.
+     */
+    private class WriterThread extends WorkerPool.Worker implements OutboundQueue.Callback {
+        private final ConnectedThread myConnection;
+        private final List<RetransmitBuffer.Frame> myReplay;
+
+        /**
+         * @param replay Frames the peer missed, written before anything queued
+         */
+        public WriterThread(ConnectedThread connection, List<RetransmitBuffer.Frame> replay) {
+            super("WriterThread-" + connection.myAddress);
+            myConnection = connection;
+            myReplay = replay;
+        }
+
+        protected void work() {
+            mLog.i(TAG, "BEGIN myWriterThread");
+            try {
+                if (myReplay != null) {
+                    // Already in the retransmit buffer and already shown, just resend
+                    byte[] scratch = new byte[FrameCodec.HEADER_SIZE];
+                    for (RetransmitBuffer.Frame frame : myReplay) {
+                        FrameCodec.write(myConnection.myOutStream, scratch, FrameCodec.TYPE_DATA,
+                                frame.mFlags, frame.mPayload, 0, frame.mPayload.length);
+                        mMetrics.framesOut.increment();
+                        mMetrics.bytesOut.add(FrameCodec.HEADER_SIZE + frame.mPayload.length);
+                    }
+                }
+                while (myConnection.myOutbound.drain(myConnection.myOutStream, this)) {
+                    // keep draining until the connection closes the queue
+                }
+            } catch (IOException e) {
+                mLog.e(TAG, "Exception during write", e);
+                // Closing the socket makes the read loop report the lost connection
+                myConnection.abort();
+            } catch (InterruptedException e) {
+                myConnection.closeOutbound("Writer interrupted");
+            }
+            // The messages of a failed batch went back to the queue, and from
+            // there to the session
+            myConnection.closeOutbound("Connection lost");
+            myConnection.myCompressor.endDeflater();
+            mLog.i(TAG, "END myWriterThread");
+        }
+
+        public void cancel() {
+            // A closed queue makes drain() return false
+            myConnection.myOutbound.close("Connection closed", true);
+        }
+
+        @Override
+        public void onFrameWritten(int type, int flags, byte[] buffer, int offset, int length) {
+            mMetrics.framesOut.increment();
+            mMetrics.bytesOut.add(FrameCodec.HEADER_SIZE + length);
+            if (type == FrameCodec.TYPE_DATA) {
+                // Keep a copy until the peer acknowledges it
+                byte[] frame = new byte[length];
+                System.arraycopy(buffer, offset, frame, 0, length);
+                myConnection.mySession.mRetransmit.add(flags, frame);
+            }
+        }
+
+        @Override
+        public void onWritten(int type, int channel, byte[] payload) {
+            if (type == FrameCodec.TYPE_DATA) {
+                // Share the sent message back to the UI Activity
+                mEvents.messageWritten(channel, payload);
+            }
+        }
+    }
 }
@@ -5,15 +5,19 @@ package com.rodgermajor.androidgeek.bluetoothchat;
  */
 public interface MyConstants {
 
-    // Message types sent from the myChatService Handler
+    // Kinds of the events queued by ChatEventBus, one per ChatListener method
     public static final int MESSAGE_STATE_CHANGE = 1;
     public static final int MESSAGE_READ = 2;
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_PEER_STATE_CHANGE = 6;
+    public static final int MESSAGE_LINK_STATS = 7;
+    public static final int MESSAGE_TRANSFER_PROGRESS = 8;
 
-    // Key names received from the myChatService Handler
-    public static final String DEVICE_NAME = "device_name";
-    public static final String TOAST = "toast";
+    // Logical channels multiplexed over a connection
+    public static final int CHANNEL_CHAT = 0;       // ChatMessages, sent ahead of bulk data
+    public static final int CHANNEL_BULK = 1;       // large transfers, file chunks
+    public static final int CHANNEL_TRANSFER = 2;   // file offers and acknowledgements
 
 }
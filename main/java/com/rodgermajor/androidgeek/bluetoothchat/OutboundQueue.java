@@ -0,0 +1,792 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Bounded queue of frames waiting to be written to a connection.
+ *
+ * Callers {@link #offer} frames and get a {@link WriteHandle} back straight
+ * away; a dedicated writer thread calls {@link #drain} in a loop to put them
+ * on the wire. Whatever is queued when the writer wakes up is coalesced into
+ * as few socket writes as possible.
+ *
+ * Data is queued per logical channel and cut into fragments, so one large
+ * message cannot hold up the others. Control frames always go first. Among
+ * channels the highest priority with data wins; channels of equal priority
+ * share the link in proportion to their weight. Every data frame carries
+ * its channel in the first payload byte, and FLAG_MORE / FLAG_CONTINUED
+ * tell the receiver how to put the fragments back together.
+ *
+ * With a compressor set, data frames are compressed one by one as they are
+ * copied into the coalescing buffer, outside of the queue lock.
+ *
+ * Once {@link #setCredits} was called, every data frame takes one credit
+ * granted by the peer and the writer holds data back while there are none.
+ * Control frames are never held back and never count against the capacity,
+ * so credit grants, acks and heartbeats keep flowing while data waits.
+ *
+ * When a link goes down, the data messages it did not send can be taken out
+ * of its closed queue with {@link #takeUnsent} and {@link #requeue}d on the
+ * link which resumes the session.
+ */
+public class OutboundQueue {
+
+    /**
+     * What {@link #offer} does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        BLOCK,          // wait for the writer to make room
+        DROP_OLDEST,    // fail the oldest queued message to make room
+        REJECT          // fail the new message
+    }
+
+    /**
+     * Notified on the writer thread as frames and messages leave.
+     */
+    public interface Callback {
+
+        /**
+         * Called for every frame handed to the stream. The payload is only
+         * valid for the duration of the call.
+         */
+        void onFrameWritten(int type, int flags, byte[] buffer, int offset, int length);
+
+        /**
+         * Called once every fragment of a message reached the stream.
+         */
+        void onWritten(int type, int channel, byte[] payload);
+    }
+
+    // Channel numbers fit the first payload byte, this many are scheduled
+    public static final int MAX_CHANNELS = 16;
+
+    // Message bytes per data frame unless configured otherwise
+    public static final int DEFAULT_FRAGMENT_SIZE = 1024;
+
+    // Scales the pass increments so small weights keep some precision
+    private static final long STRIDE = 1 << 16;
+
+    // Orders messages the way they were offered
+    static final Comparator<Entry> OFFER_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.mOrder < b.mOrder ? -1 : (a.mOrder == b.mOrder ? 0 : 1);
+        }
+    };
+
+    private final ArrayDeque<Entry> mControl = new ArrayDeque<Entry>();
+    private final Channel[] mChannels = new Channel[MAX_CHANNELS];
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final int mFragmentSize;
+    private int mDataCount;
+    private long mNextOrder;
+
+    // Requeued messages count down from here, so they rank before the others
+    private long mRequeuedOrder;
+    private long mVirtualTime;
+    private boolean mClosed;
+    private IOException mCloseReason;
+
+    // Credit based flow control, off until setCredits()
+    private boolean mFlowControl;
+    private long mCredits;
+    private long mStallStart;
+    private long mStalledNanos;
+    private long mStalls;
+
+    // Only touched by the writer thread
+    private final byte[] mCoalesce;
+    private volatile FrameCompressor mCompressor;
+    private volatile ChatMetrics mMetrics;
+    private final ArrayList<Piece> mBatch = new ArrayList<Piece>();
+    private final ArrayList<Piece> mFreePieces = new ArrayList<Piece>();
+
+    // Pieces of the batch handed to the stream so far
+    private int mReported;
+
+    // Statistics
+    private long mDropped;
+    private long mRejected;
+    private long mSocketWrites;
+
+    /**
+     * @param capacity     Maximum number of queued data messages
+     * @param policy       What to do with new messages while the queue is full
+     * @param coalesceSize Size of the buffer small frames are gathered in
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, int coalesceSize) {
+        this(capacity, policy, coalesceSize, DEFAULT_FRAGMENT_SIZE);
+    }
+
+    /**
+     * @param fragmentSize Message bytes per data frame, capped so that a
+     *                     fragment always fits the coalescing buffer
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, int coalesceSize,
+                         int fragmentSize) {
+        mCapacity = capacity;
+        mPolicy = policy;
+        mCoalesce = new byte[Math.max(coalesceSize, FrameCodec.HEADER_SIZE + 2)];
+        mFragmentSize = Math.max(1,
+                Math.min(fragmentSize, mCoalesce.length - FrameCodec.HEADER_SIZE - 1));
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            mChannels[i] = new Channel();
+        }
+    }
+
+    /**
+     * Sets how a channel is scheduled.
+     *
+     * @param priority Channels with a higher priority always go first
+     * @param weight   Share of the link among channels of the same priority
+     */
+    public synchronized void setChannel(int channel, int priority, int weight) {
+        Channel ch = mChannels[checkChannel(channel)];
+        ch.mPriority = priority;
+        ch.mWeight = Math.max(1, weight);
+    }
+
+    /**
+     * Compresses data frames from now on, or stops with null.
+     */
+    void setCompressor(FrameCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * Records queue depths and write latencies into the given metrics.
+     */
+    void setMetrics(ChatMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Queues a frame for writing. Data frames go to channel 0.
+     *
+     * @return A handle which completes once the frame is written or dropped
+     */
+    public WriteHandle offer(int type, int flags, byte[] payload) {
+        return offer(type, flags, 0, payload);
+    }
+
+    /**
+     * Queues a data message on a channel. Only blocks when the policy is
+     * {@link OverflowPolicy#BLOCK} and the queue is full.
+     *
+     * @return A handle which completes once the whole message is written or
+     * dropped
+     */
+    public WriteHandle offer(int channel, byte[] payload) {
+        return offer(FrameCodec.TYPE_DATA, FrameCodec.FLAG_NONE, channel, payload);
+    }
+
+    private WriteHandle offer(int type, int flags, int channel, byte[] payload) {
+        if (payload.length > FrameCodec.MAX_PAYLOAD) {
+            return WriteHandle.failed("Message too long: " + payload.length + " bytes");
+        }
+        if (channel < 0 || channel >= MAX_CHANNELS) {
+            return WriteHandle.failed("No such channel: " + channel);
+        }
+        WriteHandle handle = new WriteHandle();
+        Entry dropped = null;
+        boolean control = type != FrameCodec.TYPE_DATA;
+        int depth;
+        synchronized (this) {
+            while (!control && !mClosed && mDataCount >= mCapacity && dropped == null) {
+                switch (mPolicy) {
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            handle.fail(new IOException("Interrupted while queueing"));
+                            return handle;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dropped = pollOldestData();
+                        if (dropped == null) {
+                            // Everything queued is already on its way out
+                            mRejected++;
+                            handle.fail(new IOException("Outbound queue full"));
+                            return handle;
+                        }
+                        mDropped++;
+                        break;
+                    case REJECT:
+                        mRejected++;
+                        handle.fail(new IOException("Outbound queue full"));
+                        return handle;
+                }
+            }
+            if (mClosed) {
+                handle.fail(mCloseReason);
+                return handle;
+            }
+            Entry entry = new Entry(type, flags, channel, payload, handle, mNextOrder++);
+            if (control) {
+                mControl.addLast(entry);
+            } else {
+                Channel ch = mChannels[channel];
+                if (ch.mQueue.isEmpty()) {
+                    // An idle channel does not get to catch up on the time it sat out
+                    ch.mPass = Math.max(ch.mPass, mVirtualTime);
+                }
+                ch.mQueue.addLast(entry);
+                mDataCount++;
+            }
+            depth = mDataCount;
+            notifyAll();
+        }
+        ChatMetrics metrics = mMetrics;
+        if (metrics != null && !control) {
+            metrics.queueDepth.record(depth);
+        }
+        if (dropped != null) {
+            dropped.mHandle.fail(new IOException("Dropped, outbound queue full"));
+        }
+        return handle;
+    }
+
+    /**
+     * Waits for queued frames and writes as many as fit the coalescing
+     * buffer, chosen by the channel scheduler. Called in a loop by the
+     * writer thread.
+     *
+     * @return false once the queue is closed
+     * @throws IOException if the stream failed. Messages which reached the
+     *                     stream whole are done, the others go back to the
+     *                     queue to be sent again, see {@link #takeBack}
+     */
+    public boolean drain(OutputStream out, Callback callback)
+            throws IOException, InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (mClosed) {
+                    return false;
+                }
+                takeBatch();
+                if (!mBatch.isEmpty()) {
+                    break;
+                }
+                wait();
+            }
+            // Wake up any producer blocked on a full queue
+            notifyAll();
+        }
+
+        try {
+            writeBatch(out, callback);
+        } catch (IOException e) {
+            takeBack(e);
+            completeBatch(callback);
+            recycleBatch();
+            throw e;
+        }
+        completeBatch(callback);
+        recycleBatch();
+        return true;
+    }
+
+    /**
+     * Completes the messages whose last frame was handed to the stream.
+     */
+    private void completeBatch(Callback callback) {
+        ChatMetrics metrics = mMetrics;
+        long now = metrics != null ? System.nanoTime() : 0;
+        for (int i = 0; i < mReported; i++) {
+            Piece piece = mBatch.get(i);
+            if (piece.mLast) {
+                Entry entry = piece.mEntry;
+                if (metrics != null && entry.mType == FrameCodec.TYPE_DATA) {
+                    metrics.writeLatency.record((now - entry.mQueuedNanos) / 1000);
+                }
+                entry.mHandle.succeed();
+                if (callback != null) {
+                    callback.onWritten(entry.mType, entry.mChannel, entry.mPayload);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes back the frames of a batch which did not reach the stream. Data
+     * messages are rewound to their first fragment left out and put back at
+     * the head of their channel, control frames belong to the failed link
+     * and are failed.
+     */
+    private void takeBack(IOException failure) {
+        ArrayList<Entry> failed = new ArrayList<Entry>();
+        synchronized (this) {
+            // Backwards, so the earliest fragment of a message wins and messages
+            // taken off the same channel go back in their order
+            for (int i = mBatch.size() - 1; i >= mReported; i--) {
+                Piece piece = mBatch.get(i);
+                Entry entry = piece.mEntry;
+                if (entry.mType != FrameCodec.TYPE_DATA) {
+                    failed.add(entry);
+                    continue;
+                }
+                entry.mSent = piece.mStart;
+                if (piece.mLast) {
+                    // Taken off its channel along with its last fragment
+                    mChannels[entry.mChannel].mQueue.addFirst(entry);
+                    mDataCount++;
+                }
+            }
+        }
+        fail(failed, failure);
+    }
+
+    /**
+     * Picks the frames of the next batch: every control frame, then data
+     * fragments one at a time from the channel the scheduler picks, until
+     * the coalescing buffer is full or no credit is left.
+     */
+    private void takeBatch() {
+        int bytes = 0;
+        while (!mControl.isEmpty()) {
+            Entry entry = mControl.pollFirst();
+            bytes += FrameCodec.HEADER_SIZE + entry.mPayload.length;
+            mBatch.add(piece(entry, 0, entry.mPayload.length, entry.mFlags, true));
+        }
+        while (bytes < mCoalesce.length) {
+            Channel ch = pickChannel();
+            if (ch == null) {
+                break;
+            }
+            if (mFlowControl) {
+                if (mCredits <= 0) {
+                    if (mStallStart == 0) {
+                        mStallStart = System.nanoTime();
+                        mStalls++;
+                    }
+                    break;
+                }
+                mCredits--;
+            }
+            Entry entry = ch.mQueue.peekFirst();
+            int length = Math.min(mFragmentSize, entry.mPayload.length - entry.mSent);
+            int flags = FrameCodec.FLAG_NONE;
+            if (entry.mSent > 0) {
+                flags |= FrameCodec.FLAG_CONTINUED;
+            }
+            boolean last = entry.mSent + length == entry.mPayload.length;
+            if (!last) {
+                flags |= FrameCodec.FLAG_MORE;
+            }
+            mBatch.add(piece(entry, entry.mSent, length, flags, last));
+            entry.mSent += length;
+            if (last) {
+                ch.mQueue.pollFirst();
+                mDataCount--;
+            }
+            bytes += FrameCodec.HEADER_SIZE + 1 + length;
+            ch.mPass += STRIDE * (length + 1) / ch.mWeight;
+            mVirtualTime = ch.mPass;
+        }
+    }
+
+    /**
+     * Returns the channel to send the next fragment from: the highest
+     * priority with data queued, and among those the one furthest behind
+     * its fair share.
+     */
+    private Channel pickChannel() {
+        Channel best = null;
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            Channel ch = mChannels[i];
+            if (ch.mQueue.isEmpty()) {
+                continue;
+            }
+            if (best == null || ch.mPriority > best.mPriority
+                    || (ch.mPriority == best.mPriority && ch.mPass < best.mPass)) {
+                best = ch;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Removes the oldest data message which has not started going out.
+     */
+    private Entry pollOldestData() {
+        Channel oldest = null;
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            Channel ch = mChannels[i];
+            Entry candidate = null;
+            for (Entry entry : ch.mQueue) {
+                if (entry.mSent == 0) {
+                    candidate = entry;
+                    break;
+                }
+            }
+            if (candidate != null && (oldest == null
+                    || candidate.mOrder < firstUnsent(oldest).mOrder)) {
+                oldest = ch;
+            }
+        }
+        if (oldest == null) {
+            return null;
+        }
+        Entry entry = firstUnsent(oldest);
+        oldest.mQueue.remove(entry);
+        mDataCount--;
+        return entry;
+    }
+
+    private static Entry firstUnsent(Channel ch) {
+        for (Entry entry : ch.mQueue) {
+            if (entry.mSent == 0) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turns flow control on with the peer's initial window. May be negative
+     * when frames were sent outside the queue, which the peer has to grant
+     * back first.
+     */
+    public synchronized void setCredits(long credits) {
+        mFlowControl = true;
+        mCredits = credits;
+        notifyAll();
+    }
+
+    /**
+     * Adds credits granted by the peer and wakes the writer.
+     */
+    public synchronized void grant(long credits) {
+        mCredits += credits;
+        if (mCredits > 0 && mStallStart != 0) {
+            mStalledNanos += System.nanoTime() - mStallStart;
+            mStallStart = 0;
+        }
+        notifyAll();
+    }
+
+    private void writeBatch(OutputStream out, Callback callback) throws IOException {
+        FrameCompressor compressor = mCompressor;
+        mReported = 0;
+        int fill = 0;
+        int flushed = 0;
+        for (int i = 0; i < mBatch.size(); i++) {
+            Piece piece = mBatch.get(i);
+            Entry entry = piece.mEntry;
+            boolean data = entry.mType == FrameCodec.TYPE_DATA;
+            int payloadSize = data ? piece.mLength + 1 : piece.mLength;
+            int size = FrameCodec.HEADER_SIZE + payloadSize;
+            if (fill > 0 && fill + size > mCoalesce.length) {
+                flush(out, fill);
+                report(callback, flushed, i);
+                flushed = i;
+                fill = 0;
+            }
+            if (size <= mCoalesce.length) {
+                piece.mOffset = fill + FrameCodec.HEADER_SIZE;
+                int pos = piece.mOffset;
+                if (data) {
+                    mCoalesce[pos++] = (byte) entry.mChannel;
+                }
+                int compressed = data && compressor != null
+                        ? compressor.compress(entry.mPayload, piece.mStart, piece.mLength,
+                                mCoalesce, pos, piece.mLength)
+                        : -1;
+                if (compressed >= 0) {
+                    piece.mFlags |= FrameCodec.FLAG_COMPRESSED;
+                    payloadSize = compressed + 1;
+                    size = FrameCodec.HEADER_SIZE + payloadSize;
+                } else {
+                    System.arraycopy(entry.mPayload, piece.mStart, mCoalesce, pos, piece.mLength);
+                }
+                piece.mWireLength = payloadSize;
+                FrameCodec.writeHeader(mCoalesce, fill, entry.mType, piece.mFlags, payloadSize);
+                fill += size;
+            } else {
+                // A control frame too big to gather, goes out on its own
+                flush(out, fill);
+                report(callback, flushed, i);
+                fill = 0;
+                FrameCodec.write(out, mCoalesce, entry.mType, piece.mFlags, entry.mPayload, 0,
+                        piece.mLength);
+                synchronized (this) {
+                    mSocketWrites++;
+                }
+                mReported = i + 1;
+                if (callback != null) {
+                    callback.onFrameWritten(entry.mType, piece.mFlags, entry.mPayload, 0,
+                            piece.mLength);
+                }
+                flushed = i + 1;
+            }
+        }
+        if (fill > 0) {
+            flush(out, fill);
+        }
+        report(callback, flushed, mBatch.size());
+        out.flush();
+    }
+
+    /**
+     * Reports the frames of the batch from start to end, which were just
+     * flushed out of the coalescing buffer.
+     */
+    private void report(Callback callback, int start, int end) {
+        mReported = end;
+        if (callback == null) {
+            return;
+        }
+        for (int i = start; i < end; i++) {
+            Piece piece = mBatch.get(i);
+            callback.onFrameWritten(piece.mEntry.mType, piece.mFlags, mCoalesce, piece.mOffset,
+                    piece.mWireLength);
+        }
+    }
+
+    private void flush(OutputStream out, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        out.write(mCoalesce, 0, length);
+        synchronized (this) {
+            mSocketWrites++;
+        }
+    }
+
+    private Piece piece(Entry entry, int start, int length, int flags, boolean last) {
+        Piece piece = mFreePieces.isEmpty()
+                ? new Piece() : mFreePieces.remove(mFreePieces.size() - 1);
+        piece.mEntry = entry;
+        piece.mStart = start;
+        piece.mLength = length;
+        piece.mFlags = flags;
+        piece.mLast = last;
+        return piece;
+    }
+
+    private void recycleBatch() {
+        for (int i = 0; i < mBatch.size(); i++) {
+            Piece piece = mBatch.get(i);
+            piece.mEntry = null;
+            mFreePieces.add(piece);
+        }
+        mBatch.clear();
+    }
+
+    /**
+     * Closes the queue. Messages still queued are failed with the reason
+     * and later offers fail right away.
+     */
+    public void close(String reason) {
+        close(reason, false);
+    }
+
+    /**
+     * Closes the queue, and with keepData leaves the data messages in it
+     * for {@link #takeUnsent} instead of failing them. Control frames are
+     * failed either way.
+     */
+    void close(String reason, boolean keepData) {
+        ArrayList<Entry> pending = new ArrayList<Entry>();
+        IOException failure = new IOException(reason);
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mCloseReason = failure;
+            pending.addAll(mControl);
+            mControl.clear();
+            if (!keepData) {
+                for (int i = 0; i < MAX_CHANNELS; i++) {
+                    pending.addAll(mChannels[i].mQueue);
+                    mChannels[i].mQueue.clear();
+                }
+                mDataCount = 0;
+            }
+            notifyAll();
+        }
+        fail(pending, failure);
+    }
+
+    /**
+     * Takes the data messages which did not go out whole, oldest first. A
+     * message the writer started keeps the count of bytes it sent, so it
+     * carries on with the next fragment wherever it is requeued.
+     */
+    synchronized List<Entry> takeUnsent() {
+        ArrayList<Entry> unsent = new ArrayList<Entry>(mDataCount);
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            unsent.addAll(mChannels[i].mQueue);
+            mChannels[i].mQueue.clear();
+        }
+        mDataCount = 0;
+        Collections.sort(unsent, OFFER_ORDER);
+        return unsent;
+    }
+
+    /**
+     * Queues messages taken from another queue ahead of those offered here,
+     * whatever the capacity. Fails them if this queue is closed.
+     *
+     * @param entries Messages oldest first, as {@link #takeUnsent} returns them
+     */
+    void requeue(List<Entry> entries) {
+        IOException failure;
+        synchronized (this) {
+            failure = mCloseReason;
+            if (!mClosed) {
+                for (int i = entries.size() - 1; i >= 0; i--) {
+                    Entry entry = entries.get(i);
+                    Channel ch = mChannels[entry.mChannel];
+                    if (ch.mQueue.isEmpty()) {
+                        ch.mPass = Math.max(ch.mPass, mVirtualTime);
+                    }
+                    entry.mOrder = --mRequeuedOrder;
+                    ch.mQueue.addFirst(entry);
+                    mDataCount++;
+                }
+                notifyAll();
+                return;
+            }
+        }
+        fail(entries, failure);
+    }
+
+    /**
+     * Fails the handles of the given messages.
+     */
+    static void fail(List<Entry> entries, IOException failure) {
+        for (int i = 0; i < entries.size(); i++) {
+            entries.get(i).mHandle.fail(failure);
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting for the writer.
+     */
+    public synchronized int getDepth() {
+        return mControl.size() + mDataCount;
+    }
+
+    /**
+     * Returns the number of messages waiting on one channel.
+     */
+    public synchronized int getDepth(int channel) {
+        return mChannels[checkChannel(channel)].mQueue.size();
+    }
+
+    /**
+     * Returns the data frames which may still be sent before the peer grants
+     * more, or Long.MAX_VALUE without flow control.
+     */
+    public synchronized long getCredits() {
+        return mFlowControl ? mCredits : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the total time data waited for credits, in milliseconds.
+     */
+    public synchronized long getStalledMillis() {
+        long stalled = mStalledNanos;
+        if (mStallStart != 0) {
+            stalled += System.nanoTime() - mStallStart;
+        }
+        return stalled / 1000000;
+    }
+
+    /**
+     * Returns how many times data had to wait for credits.
+     */
+    public synchronized long getStallCount() {
+        return mStalls;
+    }
+
+    /**
+     * Returns how many messages were dropped by {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Returns how many messages were refused by {@link OverflowPolicy#REJECT}.
+     */
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * Returns how many writes were issued to the stream, which is lower than
+     * the number of frames when coalescing kicks in.
+     */
+    public synchronized long getSocketWriteCount() {
+        return mSocketWrites;
+    }
+
+    private static int checkChannel(int channel) {
+        if (channel < 0 || channel >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("No such channel: " + channel);
+        }
+        return channel;
+    }
+
+    private static final class Channel {
+        final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+        int mPriority;
+        int mWeight = 1;
+
+        // Scheduler position, advances by the bytes sent divided by the weight
+        long mPass;
+    }
+
+    /**
+     * A queued frame or message.
+     */
+    static final class Entry {
+        final int mType;
+        final int mFlags;
+        final int mChannel;
+        final byte[] mPayload;
+        final WriteHandle mHandle;
+        long mOrder;
+        final long mQueuedNanos = System.nanoTime();
+
+        // Bytes of the payload already taken by the writer
+        int mSent;
+
+        Entry(int type, int flags, int channel, byte[] payload, WriteHandle handle, long order) {
+            mType = type;
+            mFlags = flags;
+            mChannel = channel;
+            mPayload = payload;
+            mHandle = handle;
+            mOrder = order;
+        }
+    }
+
+    /**
+     * One frame of a batch, a whole control frame or one fragment of a
+     * message. Reused by the writer thread.
+     */
+    private static final class Piece {
+        Entry mEntry;
+        int mStart;
+        int mLength;
+        int mFlags;
+        boolean mLast;
+
+        // Position and length of the frame payload in the coalescing buffer
+        int mOffset;
+        int mWireLength;
+    }
+}
@@ -0,0 +1,78 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+/**
+ * A byte array leased from a {@link BufferPool}. Only the first
+ * {@link #length()} bytes of {@link #array()} are valid.
+ *
+ * Whoever ends up consuming the buffer must call {@link #release()} exactly
+ * once, after which the array may be handed out again and must not be touched.
+ */
+public final class PooledBuffer {
+
+    /**
+     * Told once the consumer hands the buffer back.
+     */
+    interface ReleaseListener {
+        void onReleased();
+    }
+
+    private final BufferPool mPool;
+    private final byte[] mData;
+    private int mLength;
+    private boolean mLeased;
+    private ReleaseListener mReleaseListener;
+
+    PooledBuffer(BufferPool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    /**
+     * Returns the backing array, which may be longer than {@link #length()}.
+     */
+    public byte[] array() {
+        return mData;
+    }
+
+    /**
+     * Returns the number of valid bytes at the start of the array.
+     */
+    public int length() {
+        return mLength;
+    }
+
+    void setLength(int length) {
+        mLength = length;
+    }
+
+    int capacity() {
+        return mData.length;
+    }
+
+    void lease() {
+        mLeased = true;
+    }
+
+    synchronized void setReleaseListener(ReleaseListener listener) {
+        mReleaseListener = listener;
+    }
+
+    /**
+     * Hands the buffer back to its pool.
+     */
+    public void release() {
+        ReleaseListener listener;
+        synchronized (this) {
+            if (!mLeased) {
+                throw new IllegalStateException("PooledBuffer released twice");
+            }
+            mLeased = false;
+            listener = mReleaseListener;
+            mReleaseListener = null;
+        }
+        mPool.recycle(this);
+        if (listener != null) {
+            listener.onReleased();
+        }
+    }
+}
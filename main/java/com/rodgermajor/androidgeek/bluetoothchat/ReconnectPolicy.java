@@ -0,0 +1,60 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.util.Random;
+
+/**
+ * How {@link MyChatService} retries a link it lost: jittered exponential
+ * backoff, starting at a base delay and growing up to a cap.
+ *
+ * The jitter spreads the retries of several devices which lost the same
+ * hub at the same moment, so they do not all come back in lockstep.
+ */
+public class ReconnectPolicy {
+
+    /**
+     * A reasonable policy for RFCOMM links: first retry after about 100 ms,
+     * backing off to 5 s, giving up after 20 attempts.
+     */
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(100, 5000, 2.0, 0.5, 20);
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param baseDelayMs Delay before the first attempt
+     * @param maxDelayMs  Cap of the delay between attempts
+     * @param multiplier  Growth of the delay after each failed attempt
+     * @param jitter      Fraction of each delay which is randomised, 0 to 1
+     * @param maxAttempts Attempts before giving up
+     */
+    public ReconnectPolicy(long baseDelayMs, long maxDelayMs, double multiplier, double jitter,
+                           int maxAttempts) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMultiplier = multiplier;
+        mJitter = Math.max(0, Math.min(1, jitter));
+        mMaxAttempts = maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Returns how long to wait before the given attempt, counting from 0.
+     */
+    public long delayFor(int attempt) {
+        double delay = mBaseDelayMs * Math.pow(mMultiplier, attempt);
+        delay = Math.min(delay, mMaxDelayMs);
+        double random;
+        synchronized (mRandom) {
+            random = mRandom.nextDouble();
+        }
+        // Keep (1 - jitter) of the delay fixed and randomise the rest
+        return (long) (delay * (1 - mJitter) + delay * mJitter * random);
+    }
+}
@@ -0,0 +1,114 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the data frames a session has written until the peer acknowledges
+ * them, so they can be replayed when the link is resumed.
+ *
+ * Frames are numbered implicitly: the n-th data frame written in a session
+ * has sequence number n, which is also the count the receiving side keeps.
+ *
+ * When the buffer is full the oldest frame is dropped unacknowledged, and
+ * the session can no longer be resumed without losing it, see
+ * {@link #hasDropped()}.
+ */
+class RetransmitBuffer {
+
+    /**
+     * A data frame as it went on the wire.
+     */
+    static final class Frame {
+        final int mFlags;
+        final byte[] mPayload;
+
+        Frame(int flags, byte[] payload) {
+            mFlags = flags;
+            mPayload = payload;
+        }
+    }
+
+    private final int mCapacity;
+    private final ArrayDeque<Frame> mFrames;
+
+    // Sequence number of the last frame written and of the last one acknowledged
+    private long mSent;
+    private long mAcked;
+
+    // Frames which had to be dropped unacknowledged because the buffer was full
+    private long mOverflow;
+    private boolean mDropped;
+
+    RetransmitBuffer(int capacity) {
+        mCapacity = capacity;
+        mFrames = new ArrayDeque<Frame>(capacity);
+    }
+
+    /**
+     * Records a data frame which was just written.
+     */
+    synchronized void add(int flags, byte[] payload) {
+        mSent++;
+        if (mFrames.size() == mCapacity) {
+            mFrames.pollFirst();
+            mAcked++;
+            mOverflow++;
+            mDropped = true;
+        }
+        mFrames.addLast(new Frame(flags, payload));
+    }
+
+    /**
+     * Forgets every frame up to and including seq.
+     */
+    synchronized void ackUpTo(long seq) {
+        seq = Math.min(seq, mSent);
+        while (mAcked < seq) {
+            mFrames.pollFirst();
+            mAcked++;
+        }
+    }
+
+    /**
+     * Returns the frames the peer has not received, given the last sequence
+     * number it reported, and forgets the ones it has.
+     */
+    synchronized List<Frame> unacknowledged(long peerReceived) {
+        if (peerReceived > mSent) {
+            // Frames whose write failed here did reach the peer after all
+            mFrames.clear();
+            mSent = peerReceived;
+            mAcked = peerReceived;
+        }
+        ackUpTo(peerReceived);
+        return new ArrayList<Frame>(mFrames);
+    }
+
+    synchronized long getSent() {
+        return mSent;
+    }
+
+    synchronized long getOverflowCount() {
+        return mOverflow;
+    }
+
+    /**
+     * Returns true if a frame was dropped unacknowledged since the last
+     * reset, so a replay could leave a gap.
+     */
+    synchronized boolean hasDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Drops everything and starts numbering from zero again.
+     */
+    synchronized void reset() {
+        mFrames.clear();
+        mSent = 0;
+        mAcked = 0;
+        mDropped = false;
+    }
+}
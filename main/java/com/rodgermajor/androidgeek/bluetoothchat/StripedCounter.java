@@ -0,0 +1,42 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter threads can bump concurrently without fighting over one cache
+ * line: every thread adds to a cell picked by its id, and reading sums the
+ * cells. Cells sit a cache line apart so neighbours do not share one.
+ *
+ * Adding neither allocates nor locks, reading is not atomic across cells.
+ */
+final class StripedCounter {
+
+    // Longs per 64 byte cache line
+    private static final int PAD = 8;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PAD);
+
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(Math.max(1, Math.min(cpus, 16)) * 2 - 1);
+    }
+
+    void add(long delta) {
+        int cell = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+        mCells.getAndAdd(cell, delta);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PAD);
+        }
+        return sum;
+    }
+}
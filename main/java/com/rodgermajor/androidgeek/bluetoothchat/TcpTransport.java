@@ -0,0 +1,166 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import com.rodgermajor.androidgeek.common.logger.mLog;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * {@link ChatTransport} over localhost TCP sockets, for benchmarks and soak
+ * tests which want a real kernel socket between the two ends.
+ *
+ * Addresses are port numbers on the loopback interface, written as a string.
+ * A dialling socket first sends the port its own transport listens on, so
+ * the accepting side knows the peer by an address it can dial back rather
+ * than by the ephemeral port the connection came from. A peer which does not
+ * listen is known as "localhost:" and that ephemeral port, which cannot be
+ * dialled. A connection whose port does not arrive within a short timeout
+ * is dropped, and accepting goes on with the next one.
+ */
+public class TcpTransport implements ChatTransport {
+    private static final String TAG = "TcpTransport";
+
+    // How long an accepted connection may take to send its listening port. The
+    // dialler sends it right after connecting, over loopback, and accept() waits
+    // for it, so a silent client must not hold up the next one for long
+    private static final int HANDSHAKE_TIMEOUT_MS = 200;
+
+    private final int mListenPort;
+    private volatile int mBoundPort = -1;
+
+    /**
+     * @param listenPort Port listen() binds to, 0 picks a free one
+     */
+    public TcpTransport(int listenPort) {
+        mListenPort = listenPort;
+    }
+
+    /**
+     * Returns the port the last listen() bound to, or -1.
+     */
+    public int getBoundPort() {
+        return mBoundPort;
+    }
+
+    @Override
+    public ChatServerSocket listen(String name, UUID uuid, boolean secure) throws IOException {
+        final ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getByName(null), mListenPort));
+        mBoundPort = server.getLocalPort();
+        return new ChatServerSocket() {
+            @Override
+            public ChatSocket accept() throws IOException {
+                while (true) {
+                    Socket accepted = server.accept();
+                    try {
+                        return new TcpSocket(accepted);
+                    } catch (IOException e) {
+                        // One bad client must not end listening for the others
+                        mLog.w(TAG, "Dropping " + accepted.getRemoteSocketAddress()
+                                + ", no port received", e);
+                        accepted.close();
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public ChatSocket createSocket(String address, UUID uuid, boolean secure) throws IOException {
+        int port;
+        try {
+            port = Integer.parseInt(address);
+        } catch (NumberFormatException e) {
+            throw new IOException("Cannot dial " + address);
+        }
+        return new TcpSocket(port, mBoundPort);
+    }
+
+    @Override
+    public void cancelDiscovery() {
+        // nothing to discover on the loopback interface
+    }
+
+    private static class TcpSocket implements ChatSocket {
+        private final Socket mSocket;
+        private final int mPort;
+        private final int mListenPort;
+        private final String mAddress;
+
+        /**
+         * @param listenPort Port this side listens on, -1 if it does not
+         */
+        TcpSocket(int port, int listenPort) {
+            mSocket = new Socket();
+            mPort = port;
+            mListenPort = listenPort;
+            mAddress = String.valueOf(port);
+        }
+
+        /**
+         * Reads the port the peer listens on, which names it.
+         */
+        TcpSocket(Socket accepted) throws IOException {
+            mSocket = accepted;
+            mListenPort = -1;
+            mSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            // Unbuffered, so nothing past the port is read here
+            int port = new DataInputStream(accepted.getInputStream()).readInt();
+            mSocket.setSoTimeout(0);
+            mSocket.setTcpNoDelay(true);
+            if (port > 0) {
+                mPort = port;
+                mAddress = String.valueOf(port);
+            } else {
+                mPort = accepted.getPort();
+                mAddress = "localhost:" + mPort;
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect(new InetSocketAddress(InetAddress.getByName(null), mPort));
+            mSocket.setTcpNoDelay(true);
+            mSocket.getOutputStream().write(ByteBuffer.allocate(4).putInt(mListenPort).array());
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return "localhost:" + mPort;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+/**
+ * Snapshot of a file transfer, delivered with ChatListener.onTransferProgress.
+ */
+public final class TransferProgress {
+
+    // Transfer states
+    public static final int STATE_RUNNING = 0;
+    public static final int STATE_DONE = 1;
+    public static final int STATE_FAILED = 2;
+    public static final int STATE_PAUSED = 3;       // link lost, resumes once it is back
+
+    public final long id;
+    public final String name;
+    public final boolean incoming;
+    public final int state;
+    public final long bytesDone;
+    public final long totalBytes;
+    public final long bytesPerSecond;
+    public final long etaMillis;       // -1 while unknown
+
+    public TransferProgress(long id, String name, boolean incoming, int state, long bytesDone,
+                            long totalBytes, long bytesPerSecond, long etaMillis) {
+        this.id = id;
+        this.name = name;
+        this.incoming = incoming;
+        this.state = state;
+        this.bytesDone = bytesDone;
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.etaMillis = etaMillis;
+    }
+
+    /**
+     * Returns how far along the transfer is, 0 to 100.
+     */
+    public int percent() {
+        return totalBytes == 0 ? 100 : (int) (bytesDone * 100 / totalBytes);
+    }
+
+    @Override
+    public String toString() {
+        return (incoming ? "receiving " : "sending ") + name + " " + percent() + "% ("
+                + bytesDone + "/" + totalBytes + " bytes, " + bytesPerSecond / 1024 + " KB/s, eta "
+                + etaMillis + " ms)";
+    }
+}
@@ -0,0 +1,128 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Incremental UTF-8 decoder for text arriving in chunks.
+ *
+ * A character whose bytes are split over two chunks is carried over to
+ * the next call instead of turning into garbage at the end of the first.
+ * The charset decoder and its buffers are reused from chunk to chunk, one
+ * decoder serves one connection and is not thread safe.
+ */
+public class Utf8StreamDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Longest UTF-8 sequence
+    private static final int MAX_SEQUENCE = 4;
+
+    private final CharsetDecoder mDecoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Bytes of a character left incomplete by the previous chunk
+    private final ByteBuffer mCarry = ByteBuffer.allocate(MAX_SEQUENCE);
+    private final CharBuffer mChars;
+
+    // The last chunk's array, wrapped once and repositioned for each chunk
+    private byte[] mWrapped;
+    private ByteBuffer mInput;
+
+    public Utf8StreamDecoder() {
+        this(1024);
+    }
+
+    /**
+     * @param charCapacity Chars decoded between two copies into the output
+     */
+    public Utf8StreamDecoder(int charCapacity) {
+        mChars = CharBuffer.allocate(Math.max(charCapacity, 2));
+    }
+
+    /**
+     * Decodes the next chunk of the stream, appending its complete
+     * characters to out.
+     *
+     * @param endOfInput true for the last chunk, an incomplete character
+     *                   at its end then becomes U+FFFD and the decoder is
+     *                   ready for a new stream
+     */
+    public void decode(byte[] src, int off, int len, boolean endOfInput, StringBuilder out) {
+        int end = off + len;
+        // Complete the carried character byte by byte, at most three of them
+        while (mCarry.position() > 0 && off < end) {
+            mCarry.put(src[off++]);
+            mCarry.flip();
+            drain(mCarry, false, out);
+            mCarry.compact();
+        }
+        ByteBuffer in = wrap(src, off, end - off);
+        drain(in, endOfInput, out);
+        if (in.hasRemaining()) {
+            // The start of a character completed by the next chunk
+            mCarry.put(in);
+        }
+        if (endOfInput) {
+            finish(out);
+        }
+    }
+
+    /**
+     * Ends the stream, flushing an incomplete character as U+FFFD.
+     */
+    public void finish(StringBuilder out) {
+        if (mCarry.position() > 0) {
+            mCarry.flip();
+            drain(mCarry, true, out);
+            mCarry.clear();
+        }
+        while (mDecoder.flush(mChars).isOverflow()) {
+            copy(out);
+        }
+        copy(out);
+        reset();
+    }
+
+    /**
+     * Drops a partly decoded stream.
+     */
+    public void reset() {
+        mDecoder.reset();
+        mCarry.clear();
+        mChars.clear();
+    }
+
+    private ByteBuffer wrap(byte[] src, int off, int len) {
+        if (src != mWrapped) {
+            mWrapped = src;
+            mInput = ByteBuffer.wrap(src);
+        }
+        mInput.limit(off + len);
+        mInput.position(off);
+        return mInput;
+    }
+
+    private void drain(ByteBuffer in, boolean endOfInput, StringBuilder out) {
+        CoderResult result;
+        while ((result = mDecoder.decode(in, mChars, endOfInput)).isOverflow()) {
+            copy(out);
+        }
+        if (result.isError()) {
+            // Replacement is set for every error, this is not reached
+            in.position(in.position() + result.length());
+        }
+        copy(out);
+    }
+
+    private void copy(StringBuilder out) {
+        mChars.flip();
+        out.append(mChars.array(), mChars.arrayOffset(), mChars.limit());
+        mChars.clear();
+    }
+}
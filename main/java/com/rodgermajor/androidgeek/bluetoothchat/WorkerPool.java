@@ -0,0 +1,196 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import com.rodgermajor.androidgeek.common.logger.mLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the accept, connect and connection workers of a {@link MyChatService}.
+ *
+ * On runtimes with virtual threads every worker gets its own virtual thread.
+ * Elsewhere, Android included, workers share a bounded pool of named
+ * platform threads, so a flapping link reuses idle threads instead of
+ * creating new ones. The pool knows every live worker, which lets
+ * {@link #cancelAll(long)} cancel and join all of them and name the ones
+ * which did not finish in time.
+ */
+public class WorkerPool {
+    private static final String TAG = "WorkerPool";
+
+    // Idle platform threads are kept this long for the next worker
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * A unit of work run by the pool. cancel() must unblock work(), usually
+     * by closing the socket it is blocked on.
+     */
+    public abstract static class Worker implements Runnable {
+        private final String mName;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Thread mThread;
+        private WorkerPool mPool;
+
+        protected Worker(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public final void run() {
+            Thread thread = Thread.currentThread();
+            String previous = thread.getName();
+            thread.setName(mName);
+            mThread = thread;
+            try {
+                work();
+            } finally {
+                mThread = null;
+                Thread.interrupted();
+                thread.setName(previous);
+                mPool.mLive.remove(this);
+                mDone.countDown();
+            }
+        }
+
+        /**
+         * The body of the worker.
+         */
+        protected abstract void work();
+
+        /**
+         * Asks the worker to stop as soon as possible.
+         */
+        public abstract void cancel();
+
+        boolean await(long timeoutMs) throws InterruptedException {
+            return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final boolean mVirtual;
+    private final Set<Worker> mLive =
+            Collections.newSetFromMap(new ConcurrentHashMap<Worker, Boolean>());
+
+    /**
+     * @param namePrefix Prefix of the platform thread names
+     * @param maxThreads Upper bound of platform threads, ignored with virtual threads
+     */
+    public WorkerPool(final String namePrefix, int maxThreads) {
+        ExecutorService executor = newVirtualThreadExecutor();
+        mVirtual = executor != null;
+        if (executor == null) {
+            ThreadFactory factory = new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, namePrefix + "-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            executor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), factory);
+        }
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns an executor with one virtual thread per task, or null when the
+     * runtime has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if workers run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return mVirtual;
+    }
+
+    /**
+     * Starts a worker. If the pool is exhausted the worker is cancelled
+     * instead, which closes whatever resources it holds.
+     *
+     * @return true if the worker was started
+     */
+    public boolean start(Worker worker) {
+        worker.mPool = this;
+        mLive.add(worker);
+        try {
+            mExecutor.execute(worker);
+            return true;
+        } catch (RejectedExecutionException e) {
+            mLog.e(TAG, "No thread left for " + worker.getName(), e);
+            mLive.remove(worker);
+            worker.mDone.countDown();
+            worker.cancel();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of workers which have not finished yet.
+     */
+    public int getLiveCount() {
+        return mLive.size();
+    }
+
+    /**
+     * Cancels every live worker and waits for all of them to finish. Must not
+     * be called while holding a lock the workers need to finish.
+     *
+     * @param timeoutMs How long to wait for all of them together
+     * @return The names of the workers still running after the timeout
+     */
+    public List<String> cancelAll(long timeoutMs) {
+        List<Worker> workers = new ArrayList<Worker>(mLive);
+        for (Worker worker : workers) {
+            worker.cancel();
+            Thread thread = worker.mThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<String> stuck = new ArrayList<String>();
+        for (Worker worker : workers) {
+            try {
+                if (!worker.await(Math.max(0, deadline - System.currentTimeMillis()))) {
+                    stuck.add(worker.getName());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stuck.add(worker.getName());
+            }
+        }
+        return stuck;
+    }
+}
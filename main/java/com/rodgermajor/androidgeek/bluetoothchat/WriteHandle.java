@@ -0,0 +1,136 @@
+package com.rodgermajor.androidgeek.bluetoothchat;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks a message handed to {@link MyChatService#write(byte[])} until it has
+ * either been written to the socket or given up on.
+ */
+public class WriteHandle {
+
+    /**
+     * Notified once the write completes, on the thread which completed it.
+     */
+    public interface Listener {
+        void onComplete(WriteHandle handle);
+    }
+
+    private boolean mDone;
+    private IOException mFailure;
+    private Listener mListener;
+
+    /**
+     * Returns a handle which has already failed with the given reason.
+     */
+    static WriteHandle failed(String reason) {
+        WriteHandle handle = new WriteHandle();
+        handle.fail(new IOException(reason));
+        return handle;
+    }
+
+    /**
+     * Returns a handle which completes once all of the given handles have,
+     * and only succeeds if every one of them did.
+     */
+    static WriteHandle all(List<WriteHandle> handles) {
+        if (handles.isEmpty()) {
+            return failed("Not connected");
+        }
+        final WriteHandle combined = new WriteHandle();
+        final AtomicInteger remaining = new AtomicInteger(handles.size());
+        Listener listener = new Listener() {
+            @Override
+            public void onComplete(WriteHandle handle) {
+                if (!handle.isSuccess()) {
+                    combined.fail(handle.getFailure());
+                } else if (remaining.decrementAndGet() == 0) {
+                    combined.succeed();
+                }
+            }
+        };
+        for (WriteHandle handle : handles) {
+            handle.setListener(listener);
+        }
+        return combined;
+    }
+
+    /**
+     * Returns true once the write succeeded or failed.
+     */
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Returns true if the message reached the socket.
+     */
+    public synchronized boolean isSuccess() {
+        return mDone && mFailure == null;
+    }
+
+    /**
+     * Returns why the write failed, or null.
+     */
+    public synchronized IOException getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * Waits for the write to complete. Never call this on the UI thread.
+     *
+     * @param timeoutMs How long to wait at most
+     * @return true if the write completed in time
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!mDone) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the listener to call on completion. If the write is already done
+     * the listener is called right away.
+     */
+    public void setListener(Listener listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListener = listener;
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    void succeed() {
+        complete(null);
+    }
+
+    void fail(IOException failure) {
+        complete(failure);
+    }
+
+    private void complete(IOException failure) {
+        Listener listener;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mFailure = failure;
+            listener = mListener;
+            mListener = null;
+            notifyAll();
+        }
+        if (listener != null) {
+            listener.onComplete(this);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.rodgermajor.androidgeek.common.activities;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 
+import com.rodgermajor.androidgeek.common.logger.mAsyncLogger;
 import com.rodgermajor.androidgeek.common.logger.mLog;
 import com.rodgermajor.androidgeek.common.logger.mMLogWrapper;
 
@@ -29,6 +30,9 @@ public class BaseLauncher extends FragmentActivity {
         mMLogWrapper mLogWrapper = new mMLogWrapper();
         mLog.setLogNode(mLogWrapper);
 
+        // Print on a background thread, threads which log never run the chain.
+        mLog.startAsync(mAsyncLogger.DEFAULT_CAPACITY, mAsyncLogger.OverflowPolicy.DROP);
+
         mLog.i(TAG, "Ready");
     }
 }
@@ -0,0 +1,224 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Backend which takes log records off the calling thread, see
+ * {@link mLog#startAsync}.
+ *
+ * Records go into a ring of preallocated slots. Any thread may log, each
+ * claiming a slot with a compare-and-set, so logging neither locks nor
+ * allocates nor waits. A single consumer thread drains the ring in batches
+ * into the mLogNode chain. When the ring is full the overflow policy
+ * decides what becomes of a record, and dropped records are counted.
+ *
+ * A record is stamped with the time it was logged, not the time the consumer
+ * got to it, so queueing does not shift it.
+ */
+public class mAsyncLogger {
+
+    /**
+     * What happens to a record logged while the ring is full.
+     */
+    public enum OverflowPolicy {
+        DROP,           // drop the new record
+        CALLER_RUNS     // print the new record on the calling thread, out of order
+    }
+
+    // Slots unless asked otherwise
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Longest the consumer sleeps when it may have missed a wake up
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final OverflowPolicy mPolicy;
+    private final int mMask;
+
+    // Slot i is free for the producer claiming position p when its sequence
+    // is p, and holds the record of position p once it is p + 1
+    private final AtomicLongArray mSequences;
+    private final long[] mTimes;
+    private final int[] mPriorities;
+    private final String[] mTags;
+    private final String[] mMessages;
+    private final Throwable[] mThrowables;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    // Set by the consumer before it parks, so producers only unpark it then
+    private final AtomicBoolean mIdle = new AtomicBoolean();
+    private final Thread mConsumer;
+    private volatile boolean mStopped;
+
+    // Consumer only
+    private long mHead;
+
+    /**
+     * @param capacity Records that may wait for the consumer, rounded up to
+     *                 a power of two
+     */
+    mAsyncLogger(int capacity, OverflowPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        mPolicy = policy;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mTimes = new long[size];
+        mPriorities = new int[size];
+        mTags = new String[size];
+        mMessages = new String[size];
+        mThrowables = new Throwable[size];
+
+        mConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "mLog");
+        mConsumer.setDaemon(true);
+        mConsumer.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    void start() {
+        mConsumer.start();
+    }
+
+    /**
+     * Queues a record for the consumer. Never blocks.
+     */
+    void offer(int priority, String tag, String msg, Throwable tr) {
+        long now = System.currentTimeMillis();
+        long position = mTail.get();
+        int index;
+        while (true) {
+            index = (int) position & mMask;
+            long lag = mSequences.get(index) - position;
+            if (lag == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (lag < 0) {
+                // The slot still holds a record from one lap ago
+                mDropped.incrementAndGet();
+                if (mPolicy == OverflowPolicy.CALLER_RUNS) {
+                    mLog.deliver(now, priority, tag, msg, tr);
+                }
+                return;
+            } else {
+                position = mTail.get();
+            }
+        }
+        mTimes[index] = now;
+        mPriorities[index] = priority;
+        mTags[index] = tag;
+        mMessages[index] = msg;
+        mThrowables[index] = tr;
+        // Publishes the slot's fields to the consumer
+        mSequences.lazySet(index, position + 1);
+        if (mIdle.get() && mIdle.compareAndSet(true, false)) {
+            LockSupport.unpark(mConsumer);
+        }
+    }
+
+    private void consume() {
+        while (true) {
+            if (drain(mMask + 1) > 0) {
+                continue;
+            }
+            if (mStopped) {
+                return;
+            }
+            mIdle.set(true);
+            // A record published before the flag was up did not unpark us
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            mIdle.set(false);
+        }
+    }
+
+    /**
+     * Delivers up to a batch of records to the mLogNode chain.
+     *
+     * @return The number of records delivered
+     */
+    private int drain(int batch) {
+        int n = 0;
+        for (; n < batch; n++) {
+            int index = (int) mHead & mMask;
+            if (mSequences.get(index) != mHead + 1) {
+                break;
+            }
+            long time = mTimes[index];
+            int priority = mPriorities[index];
+            String tag = mTags[index];
+            String msg = mMessages[index];
+            Throwable tr = mThrowables[index];
+            mTags[index] = null;
+            mMessages[index] = null;
+            mThrowables[index] = null;
+            mSequences.lazySet(index, mHead + mMask + 1);
+            mHead++;
+            try {
+                mLog.deliver(time, priority, tag, msg, tr);
+            } catch (RuntimeException e) {
+                // A broken node must not kill the consumer, and logging it would loop
+                android.util.Log.e("mAsyncLogger", "Log node failed", e);
+            }
+        }
+        return n;
+    }
+
+    private boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+
+    /**
+     * Returns the records which did not fit in the ring, dropped or printed
+     * on the caller's thread depending on the overflow policy.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Delivers what is still queued and stops the consumer. Called on the
+     * consumer thread, which happens when it dies of an uncaught exception,
+     * it delivers the rest itself.
+     *
+     * @return false if the consumer had not finished within the timeout
+     */
+    boolean stop(long timeoutMs) {
+        mStopped = true;
+        if (Thread.currentThread() == mConsumer) {
+            while (drain(mMask + 1) > 0) {
+                // until the ring is empty
+            }
+            return true;
+        }
+        LockSupport.unpark(mConsumer);
+        try {
+            mConsumer.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !mConsumer.isAlive();
+    }
+
+    @Override
+    public String toString() {
+        return "mAsyncLogger{capacity=" + (mMask + 1) + ", policy=" + mPolicy
+                + ", dropped=" + mDropped.get() + "}";
+    }
+}
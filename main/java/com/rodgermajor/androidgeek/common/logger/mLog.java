@@ -1,10 +1,24 @@
 package com.rodgermajor.androidgeek.common.logger;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
  * Helper class for a list (or tree) of LoggerNodes.
  *
  * Most of the methods in this class server only to map a method call in mLog to its equivalent
  * in mLogNode.
+ *
+ * Once {@link #startAsync} was called, records are queued for a background thread instead of
+ * running the mLogNode chain on the calling thread. A thread dying of an uncaught exception
+ * then first prints what is queued, so the records leading up to a crash reach the sinks.
+ *
+ * Records below a minimum level, global or per tag, are dropped before any work happens. To
+ * keep building the message out of a disabled call, pass a {@link Supplier} or a format with
+ * its arguments instead of a concatenated string: the message is only built once
+ * {@link #isLoggable} said yes.
  */
 public class mLog {
     // Grabbing the native values from Android's native logging facilities,
@@ -18,7 +32,25 @@ public class mLog {
     public static final int ASSERT = android.util.Log.ASSERT;
 
     // Stores the beginning of the mLogNode topology.
-    private static com.rodgermajor.androidgeek.common.logger.mLogNode mMLogNode;
+    private static volatile com.rodgermajor.androidgeek.common.logger.mLogNode mMLogNode;
+
+    // Takes records off the calling thread, null while logging synchronously.
+    private static volatile mAsyncLogger mAsync;
+
+    // How long a crashing thread waits for the queued records to be printed
+    private static final long CRASH_DRAIN_MS = 500;
+    private static boolean mCrashHandlerInstalled;
+
+    // Records below these levels are dropped. The per tag map is copied on write.
+    private static volatile int mMinLevel = VERBOSE;
+    private static volatile Map<String, Integer> mTagLevels = Collections.emptyMap();
+
+    /**
+     * Builds a log message, only called when the message will be printed.
+     */
+    public interface Supplier {
+        String get();
+    }
 
     /**
      * Returns the next mLogNode in the linked list.
@@ -34,9 +66,161 @@ public class mLog {
         mMLogNode = node;
     }
 
+    /**
+     * Sets the level below which records are dropped, for tags without a level of their own.
+     * A level above ASSERT silences them all.
+     */
+    public static void setMinLevel(int level) {
+        mMinLevel = level;
+    }
+
+    public static int getMinLevel() {
+        return mMinLevel;
+    }
+
+    /**
+     * Sets the level below which records of one tag are dropped, whatever the global level.
+     */
+    public static synchronized void setTagLevel(String tag, int level) {
+        Map<String, Integer> levels = new HashMap<String, Integer>(mTagLevels);
+        levels.put(tag, level);
+        mTagLevels = levels;
+    }
+
+    /**
+     * Makes a tag follow the global level again.
+     */
+    public static synchronized void clearTagLevel(String tag) {
+        if (mTagLevels.containsKey(tag)) {
+            Map<String, Integer> levels = new HashMap<String, Integer>(mTagLevels);
+            levels.remove(tag);
+            mTagLevels = levels.isEmpty() ? Collections.<String, Integer>emptyMap() : levels;
+        }
+    }
+
+    /**
+     * Returns whether a record of this tag and priority would reach the mLogNode chain. Takes
+     * no lock and allocates nothing.
+     */
+    public static boolean isLoggable(String tag, int priority) {
+        if (mMLogNode == null) {
+            return false;
+        }
+        Map<String, Integer> levels = mTagLevels;
+        if (tag != null && !levels.isEmpty()) {
+            Integer level = levels.get(tag);
+            if (level != null) {
+                return priority >= level;
+            }
+        }
+        return priority >= mMinLevel;
+    }
+
+    /**
+     * Queues log data for a background thread which prints it to the mLogNode chain from now
+     * on. Calling it again returns the running backend.
+     *
+     * @param capacity Records that may wait for the background thread
+     * @param policy   What happens to a record when that many are waiting
+     */
+    public static synchronized mAsyncLogger startAsync(int capacity,
+                                                      mAsyncLogger.OverflowPolicy policy) {
+        if (mAsync == null) {
+            mAsyncLogger async = new mAsyncLogger(capacity, policy);
+            async.start();
+            mAsync = async;
+        }
+        if (!mCrashHandlerInstalled) {
+            mCrashHandlerInstalled = true;
+            installCrashHandler();
+        }
+        return mAsync;
+    }
+
+    /**
+     * Chains a handler in front of the default one for uncaught exceptions. It goes back to
+     * printing synchronously, after what is queued, and prints the exception before the
+     * process dies.
+     */
+    private static void installCrashHandler() {
+        final Thread.UncaughtExceptionHandler previous =
+                Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                try {
+                    stopAsync(CRASH_DRAIN_MS);
+                    println(ERROR, "mLog", "Uncaught exception in " + thread.getName(), e);
+                } catch (Throwable t) {
+                    // The previous handler must run whatever happens here
+                } finally {
+                    if (previous != null) {
+                        previous.uncaughtException(thread, e);
+                    } else {
+                        // What the thread group does without a default handler
+                        System.err.print("Exception in thread \"" + thread.getName() + "\" ");
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Goes back to printing on the calling thread, after the records still queued.
+     *
+     * @return false if the queued records were not all printed within the timeout
+     */
+    public static synchronized boolean stopAsync(long timeoutMs) {
+        mAsyncLogger async = mAsync;
+        if (async == null) {
+            return true;
+        }
+        mAsync = null;
+        return async.stop(timeoutMs);
+    }
+
+    /**
+     * Returns the background backend, or null while logging synchronously.
+     */
+    public static mAsyncLogger getAsyncLogger() {
+        return mAsync;
+    }
+
     public static void println(int priority, String tag, String msg, Throwable tr) {
-        if (mMLogNode != null) {
-            mMLogNode.println(priority, tag, msg, tr);
+        if (!isLoggable(tag, priority)) {
+            return;
+        }
+        mAsyncLogger async = mAsync;
+        if (async != null) {
+            async.offer(priority, tag, msg, tr);
+        } else {
+            deliver(priority, tag, msg, tr);
+        }
+    }
+
+    /**
+     * Runs the mLogNode chain, on the calling thread or the background one.
+     */
+    static void deliver(int priority, String tag, String msg, Throwable tr) {
+        com.rodgermajor.androidgeek.common.logger.mLogNode node = mMLogNode;
+        if (node != null) {
+            node.println(priority, tag, msg, tr);
+        }
+    }
+
+    /**
+     * Runs the mLogNode chain for a record logged earlier, keeping the time it was logged for
+     * nodes which take records.
+     */
+    static void deliver(long timeMillis, int priority, String tag, String msg, Throwable tr) {
+        com.rodgermajor.androidgeek.common.logger.mLogNode node = mMLogNode;
+        if (node instanceof mLogRouter) {
+            ((mLogRouter) node).println(timeMillis, priority, tag, msg, tr);
+        } else if (node instanceof mLogRecordNode) {
+            ((mLogRecordNode) node).println(new mLogRecord(timeMillis, priority, tag, msg, tr));
+        } else if (node != null) {
+            node.println(priority, tag, msg, tr);
         }
     }
 
@@ -47,6 +231,26 @@ public class mLog {
         println(priority, tag, msg, null);
     }
 
+    /**
+     * Builds the message only if it will be printed.
+     */
+    public static void println(int priority, String tag, Supplier msg) {
+        if (isLoggable(tag, priority)) {
+            println(priority, tag, msg.get(), null);
+        }
+    }
+
+    /**
+     * Formats the message, as String.format does, only if it will be printed. Arguments of
+     * primitive types are still boxed by the caller. With a Throwable as the only argument,
+     * the level methods pick their (tag, msg, tr) overload instead.
+     */
+    public static void printf(int priority, String tag, String format, Object... args) {
+        if (isLoggable(tag, priority)) {
+            println(priority, tag, String.format(Locale.US, format, args), null);
+        }
+    }
+
    /**
      * Prints a message at VERBOSE priority.
      */
@@ -58,6 +262,25 @@ public class mLog {
         v(tag, msg, null);
     }
 
+    public static void v(String tag, Supplier msg) {
+        println(VERBOSE, tag, msg);
+    }
+
+    /**
+     * Prints a formatted message at VERBOSE priority.
+     */
+    public static void v(String tag, String format, Object arg) {
+        if (isLoggable(tag, VERBOSE)) {
+            printf(VERBOSE, tag, format, arg);
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, VERBOSE)) {
+            printf(VERBOSE, tag, format, arg1, arg2);
+        }
+    }
+
 
     /**
      * Prints a message at DEBUG priority.
@@ -70,6 +293,25 @@ public class mLog {
         d(tag, msg, null);
     }
 
+    public static void d(String tag, Supplier msg) {
+        println(DEBUG, tag, msg);
+    }
+
+    /**
+     * Prints a formatted message at DEBUG priority.
+     */
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(tag, DEBUG)) {
+            printf(DEBUG, tag, format, arg);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, DEBUG)) {
+            printf(DEBUG, tag, format, arg1, arg2);
+        }
+    }
+
     /**
      * Prints a message at INFO priority.
      */
@@ -81,6 +323,25 @@ public class mLog {
         i(tag, msg, null);
     }
 
+    public static void i(String tag, Supplier msg) {
+        println(INFO, tag, msg);
+    }
+
+    /**
+     * Prints a formatted message at INFO priority.
+     */
+    public static void i(String tag, String format, Object arg) {
+        if (isLoggable(tag, INFO)) {
+            printf(INFO, tag, format, arg);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, INFO)) {
+            printf(INFO, tag, format, arg1, arg2);
+        }
+    }
+
     /**
      * Prints a message at WARN priority.
      */
@@ -102,6 +363,25 @@ public class mLog {
         w(tag, null, tr);
     }
 
+    public static void w(String tag, Supplier msg) {
+        println(WARN, tag, msg);
+    }
+
+    /**
+     * Prints a formatted message at WARN priority.
+     */
+    public static void w(String tag, String format, Object arg) {
+        if (isLoggable(tag, WARN)) {
+            printf(WARN, tag, format, arg);
+        }
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, WARN)) {
+            printf(WARN, tag, format, arg1, arg2);
+        }
+    }
+
     /**
      * Prints a message at ERROR priority.
      */
@@ -113,6 +393,25 @@ public class mLog {
         e(tag, msg, null);
     }
 
+    public static void e(String tag, Supplier msg) {
+        println(ERROR, tag, msg);
+    }
+
+    /**
+     * Prints a formatted message at ERROR priority.
+     */
+    public static void e(String tag, String format, Object arg) {
+        if (isLoggable(tag, ERROR)) {
+            printf(ERROR, tag, format, arg);
+        }
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, ERROR)) {
+            printf(ERROR, tag, format, arg1, arg2);
+        }
+    }
+
     /**
      * Prints a message at ASSERT priority.
      */
@@ -0,0 +1,155 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns the segments written by {@link mLogFileNode} back into text, one line per record:
+ * time, priority, tag and message.
+ *
+ * Reading a segment stops at its first record which is not whole, which is where the writer
+ * was, or died, when the segment was copied. Runs on a device or, on pulled files, with
+ * {@code java mLogFileDecoder <directory or segment>...}.
+ */
+public class mLogFileDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+
+    /**
+     * Decodes every segment of a directory, oldest first.
+     *
+     * @return The number of records decoded
+     */
+    public int decodeDirectory(File directory, Appendable out) throws IOException {
+        int records = 0;
+        for (File segment : mLogFileNode.listSegments(directory)) {
+            records += decodeSegment(segment, out);
+        }
+        return records;
+    }
+
+    /**
+     * @return The number of records decoded
+     * @throws IOException If the file is not a segment or cannot be read
+     */
+    public int decodeSegment(File segment, Appendable out) throws IOException {
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            buffer = ByteBuffer.wrap(bytes);
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.remaining() < mLogFileNode.HEADER_SIZE || buffer.getInt() != mLogFileNode.MAGIC) {
+            throw new IOException(segment + " is not a log segment");
+        }
+        int version = buffer.get();
+        if (version != mLogFileNode.VERSION) {
+            throw new IOException(segment + " has unknown version " + version);
+        }
+        long segmentStart = buffer.getLong();
+
+        List<String> tags = new ArrayList<String>();
+        int records = 0;
+        while (buffer.remaining() >= 5) {
+            int size = buffer.getInt();
+            if (size <= 0 || size > buffer.remaining()) {
+                // Never written, or cut short
+                break;
+            }
+            ByteBuffer record = buffer.slice();
+            record.limit(size);
+            buffer.position(buffer.position() + size);
+
+            int kind = record.get();
+            if (kind == mLogFileNode.KIND_TAG) {
+                int id = (int) getVarint(record);
+                if (id != tags.size()) {
+                    break;
+                }
+                tags.add(getUtf8(record));
+            } else if (kind == mLogFileNode.KIND_ENTRY) {
+                long time = segmentStart + getVarint(record);
+                int priority = record.get();
+                int tagId = (int) getVarint(record);
+                if (tagId < 0 || tagId >= tags.size()) {
+                    break;
+                }
+                out.append(mDateFormat.format(new Date(time))).append(' ')
+                        .append(priorityName(priority)).append(' ')
+                        .append(tags.get(tagId)).append(": ")
+                        .append(getUtf8(record)).append('\n');
+                records++;
+            } else {
+                break;
+            }
+        }
+        return records;
+    }
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64 && buffer.hasRemaining(); shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static String getUtf8(ByteBuffer buffer) {
+        return new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining(), UTF_8);
+    }
+
+    static String priorityName(int priority) {
+        switch (priority) {
+            case mLog.VERBOSE:
+                return "V";
+            case mLog.DEBUG:
+                return "D";
+            case mLog.INFO:
+                return "I";
+            case mLog.WARN:
+                return "W";
+            case mLog.ERROR:
+                return "E";
+            case mLog.ASSERT:
+                return "A";
+            default:
+                return "-";
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        mLogFileDecoder decoder = new mLogFileDecoder();
+        Writer out = new OutputStreamWriter(System.out, UTF_8);
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isDirectory()) {
+                decoder.decodeDirectory(file, out);
+            } else {
+                decoder.decodeSegment(file, out);
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,320 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * mLogNode which keeps the log in files, so it survives logcat wrapping around. Read the files
+ * back with {@link mLogFileDecoder}.
+ *
+ * The log is cut into segment files, each mapped into memory whole when it is opened: writing a
+ * record is a copy into the mapping, with no system call. A segment is closed once it is full
+ * or older than the rotation age, and the oldest segments are deleted past the segment limit.
+ *
+ * Records are compact: the time as an offset from the segment's start, the priority, and the
+ * tag as a number defined by a tag record the first time the segment sees it. Each record's
+ * size is written after its contents, and the mapped file starts out zeroed, so a record cut
+ * short by a crash reads as the end of the segment.
+ */
+public class mLogFileNode implements mLogRecordNode {
+
+    // "MLOG", then the format version and the segment's start time
+    static final int MAGIC = 0x4D4C4F47;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 1 + 8;
+
+    // What follows a record's size
+    static final int KIND_TAG = 1;
+    static final int KIND_ENTRY = 2;
+
+    static final String PREFIX = "log-";
+    static final String SUFFIX = ".bin";
+
+    // Size, kind, time offset, priority and tag id at their longest
+    private static final int ENTRY_OVERHEAD = 4 + 1 + 10 + 1 + 5;
+
+    // Bytes of a tag kept, longer ones are cut
+    private static final int MAX_TAG_BYTES = 255;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final long DEFAULT_ROTATE_MS = 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final long mRotateMs;
+    private final int mMaxSegments;
+
+    // Guarded by this
+    private MappedByteBuffer mBuffer;
+    private long mSegmentStart;
+    private long mNextSequence;
+    private final Map<String, Integer> mTagIds = new HashMap<String, Integer>();
+    private boolean mFailed;
+
+    // Records are built here, then copied into the mapping at once
+    private byte[] mScratch = new byte[256];
+    private int mLength;
+
+    private mLogNode mNext;
+
+    public mLogFileNode(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_ROTATE_MS, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Opens a new segment in the directory, after those left by earlier runs.
+     *
+     * @param segmentSize Bytes of a segment
+     * @param rotateMs    Age at which a segment is closed even if not full, 0 for never
+     * @param maxSegments Segments kept, the oldest are deleted
+     */
+    public mLogFileNode(File directory, int segmentSize, long rotateMs, int maxSegments)
+            throws IOException {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " too small");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mRotateMs = rotateMs;
+        mMaxSegments = Math.max(1, maxSegments);
+
+        File[] segments = listSegments(directory);
+        mNextSequence = segments.length == 0 ? 0 : sequenceOf(segments[segments.length - 1]) + 1;
+        openSegment(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the segments of a directory, oldest first.
+     */
+    static File[] listSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (sequenceOf(file) >= 0) {
+                files[count++] = file;
+            }
+        }
+        File[] segments = Arrays.copyOf(files, count);
+        // The sequence is zero padded, so names sort in order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Returns the sequence number in a segment's name, or -1 if it is not a segment.
+     */
+    static long sequenceOf(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        println(new mLogRecord(priority, tag, msg, tr));
+    }
+
+    @Override
+    public void println(mLogRecord record) {
+        synchronized (this) {
+            if (!mFailed) {
+                try {
+                    write(record.timeMillis, record.priority,
+                            record.tag == null ? "" : record.tag, record.getMessageWithStackTrace());
+                } catch (IOException e) {
+                    // Logging about the log through mLog would come back here
+                    mFailed = true;
+                    android.util.Log.e("mLogFileNode", "Log file disabled", e);
+                }
+            }
+        }
+
+        record.printTo(mNext);
+    }
+
+    private void write(long now, int priority, String tag, String msg) throws IOException {
+        Integer tagId = mTagIds.get(tag);
+        int longest = ENTRY_OVERHEAD + 3 * msg.length();
+        if (tagId == null) {
+            longest += ENTRY_OVERHEAD + Math.min(3 * tag.length(), MAX_TAG_BYTES);
+        }
+        // A message longer than a whole segment is cut rather than rotating forever
+        longest = Math.min(longest, mSegmentSize - HEADER_SIZE);
+        if (longest > mBuffer.remaining() || (mRotateMs > 0 && now - mSegmentStart >= mRotateMs)) {
+            openSegment(now);
+            tagId = null;
+        }
+
+        if (tagId == null) {
+            tagId = mTagIds.size();
+            mLength = 0;
+            putByte(KIND_TAG);
+            putVarint(tagId);
+            putUtf8(tag, MAX_TAG_BYTES);
+            append();
+            mTagIds.put(tag, tagId);
+        }
+
+        mLength = 0;
+        putByte(KIND_ENTRY);
+        // Records stamped by racing threads, or a clock set back, may predate the segment
+        putVarint(Math.max(0, now - mSegmentStart));
+        putByte(priority);
+        putVarint(tagId);
+        putUtf8(msg, mBuffer.remaining() - 4 - mLength);
+        append();
+    }
+
+    /**
+     * Copies the record built in the scratch array into the mapping, at once, and writes its
+     * size last, which makes it visible to a reader of the file.
+     */
+    private void append() {
+        int start = mBuffer.position();
+        mBuffer.position(start + 4);
+        mBuffer.put(mScratch, 0, mLength);
+        mBuffer.putInt(start, mLength);
+    }
+
+    private void ensureScratch(int length) {
+        if (length > mScratch.length) {
+            mScratch = Arrays.copyOf(mScratch, Math.max(length, 2 * mScratch.length));
+        }
+    }
+
+    private void putByte(int value) {
+        ensureScratch(mLength + 1);
+        mScratch[mLength++] = (byte) value;
+    }
+
+    private void putVarint(long value) {
+        ensureScratch(mLength + 10);
+        while ((value & ~0x7FL) != 0) {
+            mScratch[mLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mScratch[mLength++] = (byte) value;
+    }
+
+    /**
+     * Encodes the text as UTF-8, whole characters only, up to the given number of bytes.
+     */
+    private void putUtf8(String text, int limit) {
+        int length = text.length();
+        int end = mLength + Math.min(limit, 3 * length);
+        ensureScratch(end);
+        byte[] out = mScratch;
+        int n = mLength;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (n + 1 > end) {
+                    break;
+                }
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                if (n + 2 > end) {
+                    break;
+                }
+                out[n++] = (byte) (0xC0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                if (n + 4 > end) {
+                    break;
+                }
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                out[n++] = (byte) (0xF0 | (cp >> 18));
+                out[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                if (n + 3 > end) {
+                    break;
+                }
+                // A lone surrogate becomes U+FFFD, as String.getBytes() would do
+                if (c >= '\uD800' && c <= '\uDFFF') {
+                    c = '\uFFFD';
+                }
+                out[n++] = (byte) (0xE0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        mLength = n;
+    }
+
+    private void openSegment(long now) throws IOException {
+        // The system writes the old mapping back on its own, forcing it here would stall a log
+        // call for the whole segment
+        File file = new File(mDirectory, String.format("%s%08d%s", PREFIX, mNextSequence++, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            // Mapping past the end grows the file with zeros, which read as its end
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } finally {
+            // The mapping stays valid once the file is closed
+            raf.close();
+        }
+        mSegmentStart = now;
+        mTagIds.clear();
+        mBuffer.putInt(MAGIC);
+        mBuffer.put((byte) VERSION);
+        mBuffer.putLong(now);
+
+        File[] segments = listSegments(mDirectory);
+        for (int i = 0; i < segments.length - mMaxSegments; i++) {
+            if (!segments[i].delete()) {
+                android.util.Log.w("mLogFileNode", "Cannot delete " + segments[i]);
+            }
+        }
+    }
+
+    /**
+     * Asks the system to write what was logged so far to the storage. Logged records already
+     * survive the process dying, this is for the device going down.
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the next mLogNode in the chain.
+     */
+    public mLogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the mLogNode data will be sent to.
+     */
+    public void setNext(mLogNode node) {
+        mNext = node;
+    }
+}
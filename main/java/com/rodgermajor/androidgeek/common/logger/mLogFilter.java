@@ -0,0 +1,16 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+/**
+ * Decides which records a sink of an {@link mLogRouter} gets. Build them with
+ * {@link mLogFilters}, which does the costly part, compiling a pattern for instance, once.
+ */
+public interface mLogFilter {
+
+    /**
+     * Called for every record on the logging thread, so it should not allocate.
+     *
+     * @param tag May be null
+     */
+    public boolean accept(int priority, String tag);
+
+}
@@ -0,0 +1,169 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Builds {@link mLogFilter}s. Everything is worked out when the filter is built: patterns are
+ * compiled, and the answer of a tag filter is kept per tag, so matching a record is a map
+ * lookup once its tag was seen.
+ */
+public final class mLogFilters {
+
+    private static final mLogFilter ALL = new mLogFilter() {
+        @Override
+        public boolean accept(int priority, String tag) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "all";
+        }
+    };
+
+    private mLogFilters() {}
+
+    /**
+     * Takes every record.
+     */
+    public static mLogFilter all() {
+        return ALL;
+    }
+
+    /**
+     * Takes records of the given priority and above.
+     */
+    public static mLogFilter atLeast(final int level) {
+        return new mLogFilter() {
+            @Override
+            public boolean accept(int priority, String tag) {
+                return priority >= level;
+            }
+
+            @Override
+            public String toString() {
+                return "priority >= " + level;
+            }
+        };
+    }
+
+    /**
+     * Takes records whose tag starts with one of the prefixes.
+     */
+    public static mLogFilter tagPrefix(final String... prefixes) {
+        final String[] copy = prefixes.clone();
+        return new TagFilter() {
+            @Override
+            boolean matches(String tag) {
+                for (String prefix : copy) {
+                    if (tag.startsWith(prefix)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public String toString() {
+                return "tag prefix " + Arrays.toString(copy);
+            }
+        };
+    }
+
+    /**
+     * Takes records whose whole tag matches the regular expression.
+     */
+    public static mLogFilter tagMatches(String regex) {
+        final Pattern pattern = Pattern.compile(regex);
+        return new TagFilter() {
+            @Override
+            boolean matches(String tag) {
+                return pattern.matcher(tag).matches();
+            }
+
+            @Override
+            public String toString() {
+                return "tag matches " + pattern;
+            }
+        };
+    }
+
+    /**
+     * Takes records every filter takes.
+     */
+    public static mLogFilter allOf(final mLogFilter... filters) {
+        final mLogFilter[] copy = filters.clone();
+        return new mLogFilter() {
+            @Override
+            public boolean accept(int priority, String tag) {
+                for (mLogFilter filter : copy) {
+                    if (!filter.accept(priority, tag)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Takes records any of the filters takes.
+     */
+    public static mLogFilter anyOf(final mLogFilter... filters) {
+        final mLogFilter[] copy = filters.clone();
+        return new mLogFilter() {
+            @Override
+            public boolean accept(int priority, String tag) {
+                for (mLogFilter filter : copy) {
+                    if (filter.accept(priority, tag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Takes the records the filter does not take.
+     */
+    public static mLogFilter not(final mLogFilter filter) {
+        return new mLogFilter() {
+            @Override
+            public boolean accept(int priority, String tag) {
+                return !filter.accept(priority, tag);
+            }
+        };
+    }
+
+    /**
+     * A filter on the tag alone, which keeps its answer for each tag it saw. Tags are
+     * constants in practice, so the map stays small, and it stops growing at a bound anyway.
+     * A record without a tag never matches.
+     */
+    private abstract static class TagFilter implements mLogFilter {
+        private static final int MAX_CACHED_TAGS = 256;
+
+        private final ConcurrentHashMap<String, Boolean> mCache =
+                new ConcurrentHashMap<String, Boolean>();
+
+        abstract boolean matches(String tag);
+
+        @Override
+        public boolean accept(int priority, String tag) {
+            if (tag == null) {
+                return false;
+            }
+            Boolean match = mCache.get(tag);
+            if (match == null) {
+                match = matches(tag);
+                if (mCache.size() < MAX_CACHED_TAGS) {
+                    mCache.put(tag, match);
+                }
+            }
+            return match;
+        }
+    }
+}
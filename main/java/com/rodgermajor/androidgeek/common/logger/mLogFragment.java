@@ -3,52 +3,44 @@ package com.rodgermajor.androidgeek.common.logger;
 import android.graphics.Typeface;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
-import android.text.Editable;
-import android.text.TextWatcher;
-import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ScrollView;
+import android.widget.AdapterView;
 
 /**
  * Simple fraggment which contains a LogView and uses is to output log data it receives
  * through the mLogNode interface.
+ *
+ * Tapping the log pauses it, so the lines on screen hold still, and tapping it again follows
+ * the new lines.
  */
 public class mLogFragment extends Fragment {
 
     private mMLogView mMLogView;
-    private ScrollView mScrollView;
 
     public mLogFragment() {}
 
     public View inflateViews() {
-        mScrollView = new ScrollView(getActivity());
-        ViewGroup.LayoutParams scrollParams = new ViewGroup.LayoutParams(
+        mMLogView = new mMLogView(getActivity());
+        ViewGroup.LayoutParams logParams = new ViewGroup.LayoutParams(
                 ViewGroup.LayoutParams.MATCH_PARENT,
                 ViewGroup.LayoutParams.MATCH_PARENT);
-        mScrollView.setLayoutParams(scrollParams);
-
-        mMLogView = new mMLogView(getActivity());
-        ViewGroup.LayoutParams logParams = new ViewGroup.LayoutParams(scrollParams);
-        logParams.height = ViewGroup.LayoutParams.WRAP_CONTENT;
         mMLogView.setLayoutParams(logParams);
         mMLogView.setClickable(true);
         mMLogView.setFocusable(true);
-        mMLogView.setTypeface(Typeface.MONOSPACE);
+        mMLogView.setLineTypeface(Typeface.MONOSPACE);
 
         // Want to set padding as 16 dips, setPadding takes pixels.
         int paddingDips = 16;
         double scale = getResources().getDisplayMetrics().density;
         int paddingPixels = (int) ((paddingDips * (scale)) + .5);
         mMLogView.setPadding(paddingPixels, paddingPixels, paddingPixels, paddingPixels);
-        mMLogView.setCompoundDrawablePadding(paddingPixels);
+        mMLogView.setClipToPadding(false);
+        mMLogView.setDivider(null);
 
-        mMLogView.setGravity(Gravity.BOTTOM);
-        mMLogView.setTextAppearance(getActivity(), android.R.style.TextAppearance_Holo_Medium);
-
-        mScrollView.addView(mMLogView);
-        return mScrollView;
+        mMLogView.setLineTextAppearance(android.R.style.TextAppearance_Holo_Medium);
+        return mMLogView;
     }
 
     @Override
@@ -57,16 +49,10 @@ public class mLogFragment extends Fragment {
 
         View result = inflateViews();
 
-        mMLogView.addTextChangedListener(new TextWatcher() {
-            @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
-
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {}
-
+        mMLogView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
-            public void afterTextChanged(Editable s) {
-                mScrollView.fullScroll(ScrollView.FOCUS_DOWN);
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                mMLogView.setFollowing(!mMLogView.isFollowing());
             }
         });
         return result;
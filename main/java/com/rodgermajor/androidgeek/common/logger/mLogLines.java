@@ -0,0 +1,64 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+/**
+ * The last lines of log output, oldest first. Adding past the capacity overwrites the oldest
+ * line, so the memory held stays the same however long the log runs.
+ *
+ * Not thread safe, the log view only touches it on the main thread.
+ */
+class mLogLines {
+
+    private String[] mLines;
+    private int mStart;
+    private int mSize;
+
+    mLogLines(int capacity) {
+        mLines = new String[Math.max(1, capacity)];
+    }
+
+    int capacity() {
+        return mLines.length;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns a line, 0 being the oldest still kept.
+     */
+    String get(int index) {
+        return mLines[(mStart + index) % mLines.length];
+    }
+
+    void add(String line) {
+        if (mSize < mLines.length) {
+            mLines[(mStart + mSize++) % mLines.length] = line;
+        } else {
+            mLines[mStart] = line;
+            mStart = (mStart + 1) % mLines.length;
+        }
+    }
+
+    /**
+     * Changes the capacity, keeping the newest lines.
+     */
+    void resize(int capacity) {
+        String[] lines = new String[Math.max(1, capacity)];
+        int keep = Math.min(mSize, lines.length);
+        for (int i = 0; i < keep; i++) {
+            lines[i] = get(mSize - keep + i);
+        }
+        mLines = lines;
+        mStart = 0;
+        mSize = keep;
+    }
+
+    void clear() {
+        for (int i = 0; i < mLines.length; i++) {
+            mLines[i] = null;
+        }
+        mStart = 0;
+        mSize = 0;
+    }
+}
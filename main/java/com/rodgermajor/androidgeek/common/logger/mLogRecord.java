@@ -0,0 +1,67 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+/**
+ * One log record, as an {@link mLogRouter} hands it to each of its sinks. It never changes, so
+ * every sink sees the same instance, and what is expensive to format, the stack trace, is
+ * formatted once for all of them.
+ */
+public final class mLogRecord {
+    public final long timeMillis;
+    public final int priority;
+    public final String tag;        // may be null
+    public final String message;    // may be null
+    public final Throwable throwable;
+
+    // Formatted on first use, racing threads at worst format it twice
+    private volatile String mStackTrace;
+
+    public mLogRecord(int priority, String tag, String message, Throwable throwable) {
+        this(System.currentTimeMillis(), priority, tag, message, throwable);
+    }
+
+    public mLogRecord(long timeMillis, int priority, String tag, String message,
+                      Throwable throwable) {
+        this.timeMillis = timeMillis;
+        this.priority = priority;
+        this.tag = tag;
+        this.message = message;
+        this.throwable = throwable;
+    }
+
+    /**
+     * Returns the stack trace of the throwable, or null without one.
+     */
+    public String getStackTrace() {
+        if (throwable == null) {
+            return null;
+        }
+        String stackTrace = mStackTrace;
+        if (stackTrace == null) {
+            stackTrace = android.util.Log.getStackTraceString(throwable);
+            mStackTrace = stackTrace;
+        }
+        return stackTrace;
+    }
+
+    /**
+     * Returns the message followed by the stack trace, if any, never null.
+     */
+    public String getMessageWithStackTrace() {
+        String stackTrace = getStackTrace();
+        if (stackTrace == null) {
+            return message == null ? "" : message;
+        }
+        return message == null ? stackTrace : message + "\n" + stackTrace;
+    }
+
+    /**
+     * Hands the record to a node, whole if it takes records.
+     */
+    void printTo(mLogNode node) {
+        if (node instanceof mLogRecordNode) {
+            ((mLogRecordNode) node).println(this);
+        } else if (node != null) {
+            node.println(priority, tag, message, throwable);
+        }
+    }
+}
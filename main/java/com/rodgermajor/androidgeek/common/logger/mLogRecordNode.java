@@ -0,0 +1,14 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+/**
+ * mLogNode which can take a whole {@link mLogRecord}, sharing the record and what it already
+ * formatted with the other sinks of an {@link mLogRouter}.
+ */
+public interface mLogRecordNode extends mLogNode {
+
+    /**
+     * Prints a record, which may not be changed.
+     */
+    public void println(mLogRecord record);
+
+}
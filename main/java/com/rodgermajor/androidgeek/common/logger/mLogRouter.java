@@ -0,0 +1,86 @@
+package com.rodgermajor.androidgeek.common.logger;
+
+/**
+ * Sends each record to every sink whose filter takes it, where an mLogNode chain hands it from
+ * one node to the next. A screen and a file can so get different records, each with its own
+ * priority and tag. A router is itself a sink, so routers nest into a tree.
+ *
+ * The record is built once, only if some filter takes it, and the same instance goes to every
+ * sink. Routes are set up before logging starts; adding one later is safe but copies them all.
+ */
+public class mLogRouter implements mLogRecordNode {
+
+    private static final class Route {
+        final mLogFilter mFilter;
+        final mLogNode mSink;
+
+        Route(mLogFilter filter, mLogNode sink) {
+            mFilter = filter;
+            mSink = sink;
+        }
+    }
+
+    private volatile Route[] mRoutes = new Route[0];
+
+    /**
+     * Sends the records the filter takes to the sink, after the sinks added before.
+     *
+     * @return This router, to chain the calls
+     */
+    public synchronized mLogRouter addRoute(mLogFilter filter, mLogNode sink) {
+        Route[] routes = new Route[mRoutes.length + 1];
+        System.arraycopy(mRoutes, 0, routes, 0, mRoutes.length);
+        routes[mRoutes.length] = new Route(filter, sink);
+        mRoutes = routes;
+        return this;
+    }
+
+    /**
+     * Stops sending records to the sink.
+     */
+    public synchronized void removeRoutes(mLogNode sink) {
+        int kept = 0;
+        Route[] routes = new Route[mRoutes.length];
+        for (Route route : mRoutes) {
+            if (route.mSink != sink) {
+                routes[kept++] = route;
+            }
+        }
+        Route[] trimmed = new Route[kept];
+        System.arraycopy(routes, 0, trimmed, 0, kept);
+        mRoutes = trimmed;
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        println(0, priority, tag, msg, tr);
+    }
+
+    /**
+     * Prints a record logged at the given time, which {@link mAsyncLogger} passes for the
+     * records it queued. 0 stamps the record with the time it is built.
+     */
+    public void println(long timeMillis, int priority, String tag, String msg, Throwable tr) {
+        Route[] routes = mRoutes;
+        mLogRecord record = null;
+        for (Route route : routes) {
+            if (route.mFilter.accept(priority, tag)) {
+                if (record == null) {
+                    record = timeMillis == 0
+                            ? new mLogRecord(priority, tag, msg, tr)
+                            : new mLogRecord(timeMillis, priority, tag, msg, tr);
+                }
+                record.printTo(route.mSink);
+            }
+        }
+    }
+
+    @Override
+    public void println(mLogRecord record) {
+        for (Route route : mRoutes) {
+            if (route.mFilter.accept(record.priority, record.tag)) {
+                record.printTo(route.mSink);
+            }
+        }
+    }
+}
@@ -1,24 +1,66 @@
 package com.rodgermajor.androidgeek.common.logger;
 
-import android.app.Activity;
 import android.content.Context;
+import android.graphics.Typeface;
 import android.util.*;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-/** Simple TextView which is used to output log data received through the mLogNode interface.
+import java.util.ArrayDeque;
+
+/** Simple list which is used to output log data received through the mLogNode interface.
+ *
+ * Only the last lines are kept, in a ring, and only the visible ones have a view, recycled as
+ * the list scrolls. Lines logged from any thread are shown at most once per display frame, so
+ * the cost of a line stays the same however long the log runs.
+ *
+ * While paused, see {@link #setFollowing}, the list stands still and new lines wait, up to the
+ * line limit, until it follows the log again.
 */
-public class mMLogView extends TextView implements mLogNode {
+public class mMLogView extends ListView implements mLogRecordNode, Choreographer.FrameCallback {
+
+    // Lines kept unless asked otherwise
+    public static final int DEFAULT_MAX_LINES = 500;
+
+    private Choreographer mChoreographer;
+    private final mLogLines mLines = new mLogLines(DEFAULT_MAX_LINES);
+    private final LineAdapter mAdapter = new LineAdapter();
+
+    // Lines for the next frame, guarded by mPending
+    private final ArrayDeque<String> mPending = new ArrayDeque<String>();
+    private boolean mScheduled;
+    private volatile boolean mFollowing = true;
+    private volatile int mMaxLines = DEFAULT_MAX_LINES;
+
+    // How lines look, main thread only
+    private Typeface mTypeface = Typeface.MONOSPACE;
+    private int mTextAppearance;
 
     public mMLogView(Context context) {
         super(context);
+        init();
     }
 
     public mMLogView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        init();
     }
 
     public mMLogView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        // Views are created on the main thread, whose Choreographer we want
+        mChoreographer = Choreographer.getInstance();
+        setAdapter(mAdapter);
+        setStackFromBottom(true);
+        setTranscriptMode(TRANSCRIPT_MODE_ALWAYS_SCROLL);
     }
 
     /**
@@ -26,10 +68,16 @@ public class mMLogView extends TextView implements mLogNode {
      */
     @Override
     public void println(int priority, String tag, String msg, Throwable tr) {
+        println(new mLogRecord(priority, tag, msg, tr));
+    }
 
-        
+    /**
+     * Formats the log record and prints it out to the LogView.
+     */
+    @Override
+    public void println(mLogRecord record) {
         String priorityStr = null;
-        switch(priority) {
+        switch(record.priority) {
             case android.util.Log.VERBOSE:
                 priorityStr = "VERBOSE";
                 break;
@@ -52,30 +100,21 @@ public class mMLogView extends TextView implements mLogNode {
                 break;
         }
 
-        String exceptionStr = null;
-        if (tr != null) {
-            exceptionStr = android.util.Log.getStackTraceString(tr);
-        }
+        // Shared with the other sinks of the record, formatted once
+        String exceptionStr = record.getStackTrace();
 
-        final StringBuilder outputBuilder = new StringBuilder();
+        StringBuilder outputBuilder = new StringBuilder();
 
         String delimiter = "\t";
         appendIfNotNull(outputBuilder, priorityStr, delimiter);
-        appendIfNotNull(outputBuilder, tag, delimiter);
-        appendIfNotNull(outputBuilder, msg, delimiter);
+        appendIfNotNull(outputBuilder, record.tag, delimiter);
+        appendIfNotNull(outputBuilder, record.message, delimiter);
         appendIfNotNull(outputBuilder, exceptionStr, delimiter);
 
-        ((Activity) getContext()).runOnUiThread( (new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Display the text we just generated within the LogView.
-                appendToLog(outputBuilder.toString());
-            }
-        })));
+        // Display the text we just generated within the LogView.
+        appendToLog(outputBuilder.toString());
 
-        if (mNext != null) {
-            mNext.println(priority, tag, msg, tr);
-        }
+        record.printTo(mNext);
     }
 
     public mLogNode getNext() {
@@ -102,10 +141,128 @@ public class mMLogView extends TextView implements mLogNode {
     }
     mLogNode mNext;
 
-    /** Outputs the string as a new line of log data in the LogView. */
+    /** Outputs the string as a new line of log data in the LogView, from any thread. */
     public void appendToLog(String s) {
-        append("\n" + s);
+        synchronized (mPending) {
+            // Lines past the limit would leave the ring right away
+            if (mPending.size() >= mMaxLines) {
+                mPending.removeFirst();
+            }
+            mPending.addLast(s);
+            if (mScheduled || !mFollowing) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mChoreographer.postFrameCallback(this);
+    }
+
+    /** Moves the lines which arrived since the last frame into the list. */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (mPending) {
+            mScheduled = false;
+            if (!mFollowing || mPending.isEmpty()) {
+                return;
+            }
+            while (!mPending.isEmpty()) {
+                mLines.add(mPending.removeFirst());
+            }
+        }
+        // The transcript mode scrolls the new last line into view
+        mAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * Follows the log, showing new lines as they arrive, or pauses it so the lines on screen
+     * can be read. Main thread only.
+     */
+    public void setFollowing(boolean following) {
+        mFollowing = following;
+        setTranscriptMode(following ? TRANSCRIPT_MODE_ALWAYS_SCROLL : TRANSCRIPT_MODE_DISABLED);
+        if (following) {
+            synchronized (mPending) {
+                if (mScheduled || mPending.isEmpty()) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    public boolean isFollowing() {
+        return mFollowing;
+    }
+
+    /** Sets how many lines are kept, the oldest ones go first. Main thread only. */
+    public void setMaxLogLines(int maxLines) {
+        synchronized (mPending) {
+            mMaxLines = Math.max(1, maxLines);
+            while (mPending.size() > mMaxLines) {
+                mPending.removeFirst();
+            }
+        }
+        mLines.resize(mMaxLines);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    public int getMaxLogLines() {
+        return mMaxLines;
+    }
+
+    /** Sets the typeface of the lines. */
+    public void setLineTypeface(Typeface typeface) {
+        mTypeface = typeface;
+        mAdapter.notifyDataSetInvalidated();
+    }
+
+    /** Sets the text appearance of the lines, a style resource. */
+    public void setLineTextAppearance(int resId) {
+        mTextAppearance = resId;
+        mAdapter.notifyDataSetInvalidated();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        synchronized (mPending) {
+            mScheduled = false;
+        }
+        mChoreographer.removeFrameCallback(this);
+        super.onDetachedFromWindow();
+    }
+
+    /** Shows the kept lines, reusing the views which scrolled out. */
+    private class LineAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return mLines.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mLines.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView line = (TextView) convertView;
+            if (line == null) {
+                line = new TextView(getContext());
+                if (mTextAppearance != 0) {
+                    line.setTextAppearance(getContext(), mTextAppearance);
+                }
+                line.setTypeface(mTypeface);
+            }
+            line.setText(mLines.get(position));
+            return line;
+        }
+    }
 
 }
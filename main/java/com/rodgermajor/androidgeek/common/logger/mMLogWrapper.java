@@ -5,7 +5,7 @@ import android.util.Log;
 /**
  * Helper class which wraps Android's native mLog utility in the Logger interface.
  */
-public class mMLogWrapper implements mLogNode {
+public class mMLogWrapper implements mLogRecordNode {
 
     private mLogNode mNext;
     /**
@@ -27,20 +27,14 @@ public class mMLogWrapper implements mLogNode {
      */
     @Override
     public void println(int priority, String tag, String msg, Throwable tr) {
-        String useMsg = msg;
-        if (useMsg == null) {
-            useMsg = "";
-        }
-
-        if (tr != null) {
-            msg += "\n" + Log.getStackTraceString(tr);
-        }
+        println(new mLogRecord(priority, tag, msg, tr));
+    }
 
-        Log.println(priority, tag, useMsg);
+    @Override
+    public void println(mLogRecord record) {
+        Log.println(record.priority, record.tag, record.getMessageWithStackTrace());
 
         // If this isn't the last node in the chain, move things along.
-        if (mNext != null) {
-            mNext.println(priority, tag, msg, tr);
-        }
+        record.printTo(mNext);
     }
 }